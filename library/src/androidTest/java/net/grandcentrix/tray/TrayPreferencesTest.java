@@ -1,7 +1,11 @@
 package net.grandcentrix.tray;
 
+import net.grandcentrix.tray.core.TrayStorage;
 import net.grandcentrix.tray.provider.TrayProviderTestCase;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by pascalwelsch on 6/5/15.
  */
@@ -23,6 +27,48 @@ public class TrayPreferencesTest extends TrayProviderTestCase {
         assertEquals(0, others.getAll().size());
     }
 
+    public void testAnnexKeepsOtherVersionChecks() throws Exception {
+        final int[] creates = new int[1];
+        for (int i = 0; i < 2; i++) {
+            new TrayPreferences(getProviderMockContext(), "unrelated", 1) {
+                @Override
+                protected void onCreate(final int initialVersion) {
+                    creates[0]++;
+                }
+            };
+            new TrayPreferences(getProviderMockContext(), "test", 1)
+                    .annexModule("test2");
+        }
+        assertEquals(1, creates[0]);
+    }
+
+    public void testDeferredVersionCheck() throws Exception {
+        final int[] creates = new int[1];
+        final TrayPreferences prefs = new TrayPreferences(getProviderMockContext(), "test", 1,
+                TrayStorage.Type.USER, true) {
+            @Override
+            protected void onCreate(final int initialVersion) {
+                creates[0]++;
+            }
+        };
+        assertEquals(0, creates[0]);
+        // the first write checks the version
+        prefs.put("key", "value");
+        assertEquals(1, creates[0]);
+        assertEquals(1, prefs.getVersion());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final TrayPreferences started = new TrayPreferences(getProviderMockContext(), "test2",
+                1, TrayStorage.Type.USER, true) {
+            @Override
+            protected void onCreate(final int initialVersion) {
+                latch.countDown();
+            }
+        };
+        started.startVersionCheck();
+        assertTrue(latch.await(1000, TimeUnit.MILLISECONDS));
+    }
+
     public void testGetContext() throws Exception {
         final TrayPreferences prefs = new TrayPreferences(
                 getProviderMockContext(), "test", 1) {
@@ -38,6 +84,70 @@ public class TrayPreferencesTest extends TrayProviderTestCase {
         };
     }
 
+    public void testPutWithTtl() throws Exception {
+        final TrayPreferences prefs = new TrayPreferences(
+                getProviderMockContext(), "test", 1) {
+        };
+        prefs.setCacheEnabled(true);
+        assertTrue(prefs.put("token", "abc", 60000));
+        assertTrue(prefs.put("window", 3, 50));
+        assertTrue(prefs.put("forever", true));
+        assertEquals(3, prefs.getAll().size());
+        assertEquals(3, prefs.getInt("window", 0));
+        assertNotNull(prefs.getPref("token").expires());
+
+        Thread.sleep(100);
+        // the cached item expired as well
+        assertEquals(0, prefs.getInt("window", 0));
+        assertEquals(2, prefs.getAll().size());
+        assertEquals("abc", prefs.getString("token", null));
+
+        // saving without a ttl keeps the item
+        assertTrue(prefs.put("token", "def"));
+        assertNull(prefs.getPref("token").expires());
+        prefs.setCacheEnabled(false);
+
+        try {
+            prefs.put("key", "value", 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("ttl"));
+        }
+    }
+
+    public void testVersionCheckedOncePerProcess() throws Exception {
+        final int[] creates = new int[1];
+        for (int i = 0; i < 3; i++) {
+            new TrayPreferences(getProviderMockContext(), "test", 1) {
+                @Override
+                protected void onCreate(final int initialVersion) {
+                    creates[0]++;
+                }
+            };
+        }
+        assertEquals(1, creates[0]);
+
+        // a different version is checked again
+        final int[] upgrades = new int[1];
+        final TrayPreferences prefs = new TrayPreferences(getProviderMockContext(), "test", 2) {
+            @Override
+            protected void onUpgrade(final int oldVersion, final int newVersion) {
+                upgrades[0]++;
+            }
+        };
+        assertEquals(1, upgrades[0]);
+        assertEquals(2, prefs.getVersion());
+
+        // wiping forgets the checked version
+        prefs.wipe();
+        new TrayPreferences(getProviderMockContext(), "test", 1) {
+            @Override
+            protected void onCreate(final int initialVersion) {
+                creates[0]++;
+            }
+        };
+        assertEquals(2, creates[0]);
+    }
 
     public void testLegacyInstantiation() throws Exception {
         new TrayModulePreferences(getProviderMockContext(), "test", 1);
@@ -172,6 +172,20 @@ public class TrayTest extends TrayProviderTestCase {
         assertEquals(4, all.size());
     }
 
+    public void testSize() throws Exception {
+        final TestTrayModulePreferences module2 =
+                new TestTrayModulePreferences(getProviderMockContext(), "module2");
+        assertEquals(0, mTray.size());
+
+        mTrayModulePref.put("test", "test");
+        module2.put("test", "test");
+        module2.put("test2", "test");
+        assertEquals(3, mTray.size());
+        assertEquals(1, mTrayModulePref.size());
+        assertEquals(2, module2.size());
+        assertTrue(module2.keys().contains("test2"));
+    }
+
     public void testWipe() throws Exception {
         assertEquals(1, mTrayModulePref.getVersion());
         final TestTrayModulePreferences module2 =
@@ -100,6 +100,22 @@ public class AbstractTrayPreferenceTest extends TestCase {
         assertEquals(0l, mTrayAccessor.getLong(WRONG_KEY, 0l));
     }
 
+    public void testPutWithTtlWithoutSupport() throws Exception {
+        // the mock storage can't expire items, they are saved forever
+        assertTrue(mTrayAccessor.put(KEY, TEST_STRING, 1000));
+        assertEquals(TEST_STRING, mTrayAccessor.getString(KEY, ""));
+        assertNull(((TrayItem) mTrayAccessor.getPref(KEY)).expires());
+        assertTrue(mTrayAccessor.put(KEY, TEST_INT, 1000));
+        assertEquals(TEST_INT, mTrayAccessor.getInt(KEY, 0));
+
+        try {
+            mTrayAccessor.put(KEY, TEST_STRING, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("ttl"));
+        }
+    }
+
     public void testString() throws Exception {
         mTrayAccessor.put(KEY, TEST_STRING);
         assertEquals(TEST_STRING, mTrayAccessor.getString(KEY, ""));
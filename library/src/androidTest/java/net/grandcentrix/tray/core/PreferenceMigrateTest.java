@@ -26,6 +26,10 @@ import android.support.annotation.NonNull;
 import java.util.Date;
 import java.util.HashMap;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -84,6 +88,35 @@ public class PreferenceMigrateTest extends TestCase {
 
     private MockSimplePreferences mTrayPreference;
 
+    public void testMigrateMany() throws Exception {
+        final MockTrayStorage storage = spy(new MockTrayStorage("test"));
+        mTrayPreference = new MockSimplePreferences(storage, 1);
+        mDataStore.put("a", "1");
+        mDataStore.put("b", "2");
+
+        mTrayPreference.migrate(new TestMigration(NEW_KEY, OLD_KEY),
+                new TestMigration("newA", "a"), new TestMigration("newB", "b"));
+
+        // written and read back at once
+        verify(storage, times(1)).commit(anyCollectionOf(EditOperation.class));
+        verify(storage, times(1)).getMany(NEW_KEY, "newA", "newB");
+        assertEquals(0, mDataStore.size());
+        assertEquals("2", mTrayPreference.getString("newB", null));
+    }
+
+    public void testMigrateCommitFailed() throws Exception {
+        final MockTrayStorage storage = spy(new MockTrayStorage("test"));
+        doReturn(false).when(storage).commit(anyCollectionOf(EditOperation.class));
+        mTrayPreference = new MockSimplePreferences(storage, 1);
+        final TestMigration migration = spy(new TestMigration(NEW_KEY, OLD_KEY));
+
+        mTrayPreference.migrate(migration);
+        verify(migration, never()).onPostMigrate(any(TrayItem.class));
+        verify(storage, never()).getMany(NEW_KEY);
+        // the source keeps the data
+        assertEquals(DATA, mDataStore.get(OLD_KEY));
+    }
+
     public void testMigrateTwice() throws Exception {
         final Migration migration = new TestMigration(NEW_KEY, OLD_KEY);
         mTrayPreference.migrate(migration);
@@ -29,6 +29,7 @@ import android.annotation.SuppressLint;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 
 public class PreferenceTest extends TestCase {
 
@@ -76,6 +77,17 @@ public class PreferenceTest extends TestCase {
         assertTrue(mockPreference.contains("a"));
     }
 
+    public void testKeysAndSize() throws Exception {
+        final MockSimplePreferences mockPreference = new MockSimplePreferences(1);
+        assertEquals(0, mockPreference.size());
+        assertTrue(mockPreference.keys().isEmpty());
+        assertTrue(mockPreference.put("a", "value"));
+        assertTrue(mockPreference.put("b", 1));
+        assertEquals(2, mockPreference.size());
+        assertEquals(2, mockPreference.keys().size());
+        assertTrue(mockPreference.keys().contains("b"));
+    }
+
     public void testClearFails() throws Exception {
         final TrayStorage storage = new MockTrayStorage("test") {
             @Override
@@ -92,6 +104,66 @@ public class PreferenceTest extends TestCase {
         assertEquals(mockPreference.getAll().size(), 2);
     }
 
+    public void testEdit() throws Exception {
+        final MockSimplePreferences pref = new MockSimplePreferences(1);
+        assertTrue(pref.put("c", "c"));
+
+        final PreferenceEditor editor = pref.edit()
+                .put("a", "a")
+                .put("a", 1)
+                .put("b", 5l)
+                .put("d", 10f)
+                .put("e", true)
+                .remove("c");
+        // the same key only once
+        assertEquals(5, editor.getSize());
+        // nothing written before the commit
+        assertEquals(1, pref.getAll().size());
+
+        assertTrue(editor.commit());
+        assertEquals(0, editor.getSize());
+        assertEquals(1, pref.getInt("a"));
+        assertEquals(5l, pref.getLong("b"));
+        assertFalse(pref.contains("c"));
+        assertEquals(10f, pref.getFloat("d"));
+        assertTrue(pref.getBoolean("e"));
+
+        // empty commit
+        assertTrue(editor.commit());
+    }
+
+    public void testEditApply() throws Exception {
+        final MockSimplePreferences pref = new MockSimplePreferences(1);
+        assertTrue(pref.put("b", "b"));
+
+        final PreferenceEditor editor = pref.edit()
+                .put("a", "a")
+                .remove("b");
+        editor.apply();
+        assertEquals(0, editor.getSize());
+        assertEquals("a", pref.getString("a"));
+        assertFalse(pref.contains("b"));
+
+        // apply never fails loudly
+        pref.breakStorage();
+        pref.edit().put("c", "c").apply();
+        assertFalse(pref.contains("c"));
+    }
+
+    public void testEditFailed() throws Exception {
+        final MockSimplePreferences pref = new MockSimplePreferences(1);
+        pref.breakStorage();
+        assertFalse(pref.edit().put("a", "a").commit());
+        assertFalse(pref.contains("a"));
+
+        try {
+            pref.edit().put("", "a");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("empty"));
+        }
+    }
+
     public void testGetAll() throws Exception {
         final MockSimplePreferences mockPreference = new MockSimplePreferences(1);
         final Collection<TrayItem> all = mockPreference.getAll();
@@ -106,6 +178,20 @@ public class PreferenceTest extends TestCase {
         assertEquals(2, all2.size());
     }
 
+    public void testGetMany() throws Exception {
+        final MockSimplePreferences pref = new MockSimplePreferences(1);
+        assertTrue(pref.put("a", "a"));
+        assertTrue(pref.put("b", 1));
+
+        final Map<String, TrayItem> items = pref.getMany("a", "b", "c");
+        assertEquals(2, items.size());
+        assertEquals("a", items.get("a").value());
+        assertEquals("1", items.get("b").value());
+        assertFalse(items.containsKey("c"));
+
+        assertTrue(pref.getMany().isEmpty());
+    }
+
     public void testGetPref() throws Exception {
         final MockSimplePreferences mockPreference = new MockSimplePreferences(1);
         assertTrue(mockPreference.put("key", "value"));
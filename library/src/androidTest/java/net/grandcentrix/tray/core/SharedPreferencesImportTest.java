@@ -23,6 +23,9 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -58,6 +61,40 @@ public class SharedPreferencesImportTest extends TrayProviderTestCase {
         assertEquals("data", sharedPreferencesImport.getData());
     }
 
+    public void testImportFile() throws Exception {
+        mSharedPrefs.edit().putString("a", "1").putBoolean("b", true).putLong("c", 3L)
+                .putStringSet("set", Collections.singleton("unsupported")).commit();
+
+        final MockTrayModulePreferences trayPreference = new MockTrayModulePreferences(
+                getProviderMockContext(), "myModule");
+        final TrayMigration[] migrations = SharedPreferencesImport.importFile(getContext(),
+                SHARED_PREF_NAME);
+        assertEquals(4, migrations.length);
+        trayPreference.migrate(migrations);
+
+        assertEquals(3, trayPreference.getAll().size());
+        assertEquals("1", trayPreference.getString("a", null));
+        assertTrue(trayPreference.getBoolean("b", false));
+        assertEquals(3L, trayPreference.getLong("c", 0));
+        // unsupported data stays in the SharedPreferences
+        assertEquals(1, mSharedPrefs.getAll().size());
+        assertTrue(mSharedPrefs.contains("set"));
+    }
+
+    public void testImportFileKeys() throws Exception {
+        mSharedPrefs.edit().putString("a", "1").putString("b", "2").commit();
+
+        final MockTrayModulePreferences trayPreference = new MockTrayModulePreferences(
+                getProviderMockContext(), "myModule");
+        trayPreference.migrate(SharedPreferencesImport.importFile(getContext(),
+                SHARED_PREF_NAME, Arrays.asList("b", "missing")));
+
+        assertEquals(1, trayPreference.getAll().size());
+        assertEquals("2", trayPreference.getString("b", null));
+        assertEquals("1", mSharedPrefs.getString("a", null));
+        assertFalse(mSharedPrefs.contains("b"));
+    }
+
     public void testMigration() throws Exception {
         mSharedPrefs.edit().putString("key", "value").commit();
         assertEquals("value", mSharedPrefs.getString("key", null));
@@ -78,6 +115,24 @@ public class SharedPreferencesImportTest extends TrayProviderTestCase {
         assertEquals("key", pref.migratedKey());
     }
 
+    public void testMigrationOfManyKeys() throws Exception {
+        mSharedPrefs.edit().putString("a", "1").putInt("b", 2).putString("other", "3").commit();
+
+        final MockTrayModulePreferences trayPreference = new MockTrayModulePreferences(
+                getProviderMockContext(), "myModule");
+        trayPreference.migrate(
+                new SharedPreferencesImport(getContext(), SHARED_PREF_NAME, "a", "trayA"),
+                new SharedPreferencesImport(getContext(), SHARED_PREF_NAME, "b", "trayB"),
+                new SharedPreferencesImport(getContext(), SHARED_PREF_NAME, "c", "trayC"));
+
+        assertEquals(2, trayPreference.getAll().size());
+        assertEquals("1", trayPreference.getString("trayA", null));
+        assertEquals(2, trayPreference.getInt("trayB", 0));
+        // only the imported keys are removed
+        assertEquals(1, mSharedPrefs.getAll().size());
+        assertEquals("3", mSharedPrefs.getString("other", null));
+    }
+
     public void testMigrationInOnCreate() throws Exception {
         mSharedPrefs.edit().putString("key", "value").commit();
 
@@ -37,6 +37,27 @@ public class TrayLogTest extends TestCase {
         TrayLog.v(null);
     }
 
+    public void testLogVFormatted() throws Exception {
+        final Object arg = new Object() {
+            @Override
+            public String toString() {
+                fail("formatted without DEBUG");
+                return null;
+            }
+        };
+        TrayLog.DEBUG = false;
+        TrayLog.v("%s", arg);
+        TrayLog.v("%s %s", arg, arg);
+        TrayLog.v("%s %s %s", arg, arg, arg);
+        TrayLog.v("%s %s %s %s", arg, arg, arg, arg);
+
+        TrayLog.DEBUG = true;
+        TrayLog.v("%s", "text");
+        TrayLog.v("%s %s", "text", 1);
+        TrayLog.v("%s %s %s", "text", 1, null);
+        TrayLog.v("%1$s %2$s %3$s %4$s %1$s", "text", 1, null, 2f);
+    }
+
     public void testLogW() throws Exception {
         TrayLog.w("text");
         TrayLog.w(null);
@@ -1,15 +1,23 @@
 package net.grandcentrix.tray.provider;
 
 import net.grandcentrix.tray.core.OnTrayPreferenceChangeListener;
+import net.grandcentrix.tray.core.TrayException;
 import net.grandcentrix.tray.core.TrayItem;
 import net.grandcentrix.tray.core.TrayStorage;
 
+import org.mockito.internal.util.reflection.Whitebox;
+
 import android.net.Uri;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -47,6 +55,92 @@ public class ChangedListenerTest extends TrayProviderTestCase {
         assertEquals(2, changed.size());
     }
 
+    public void testKeyScopedListeners() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testScoped", TrayStorage.Type.USER);
+        final List<Collection<TrayItem>> keyChanges = new ArrayList<>();
+        final List<Collection<TrayItem>> prefixChanges = new ArrayList<>();
+        final OnTrayPreferenceChangeListener keyListener = new OnTrayPreferenceChangeListener() {
+            @Override
+            public void onTrayPreferenceChanged(final Collection<TrayItem> items) {
+                keyChanges.add(items);
+            }
+        };
+        final OnTrayPreferenceChangeListener prefixListener
+                = new OnTrayPreferenceChangeListener() {
+            @Override
+            public void onTrayPreferenceChanged(final Collection<TrayItem> items) {
+                prefixChanges.add(items);
+            }
+        };
+        // register without looper, the listeners get called directly by the observer
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                storage.registerOnTrayPreferenceChangeListener(keyListener, "flag");
+                storage.registerOnTrayPreferenceChangeListenerForPrefix(prefixListener, "ui.");
+            }
+        });
+        thread.start();
+        thread.join();
+        assertEquals(2, storage.mListeners.size());
+
+        final TrayUri trayUri = new TrayUri(getProviderMockContext());
+        final Uri moduleUri = trayUri.builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule("testScoped")
+                .build();
+        // the values are read from the provider
+        assertTrue(storage.put("other", "1"));
+        final TrayNotification other = new TrayNotification();
+        other.put("other", TrayItem.TYPE_STRING);
+        storage.mObserver.onChange(false, other.toUri(moduleUri));
+        assertEquals(0, keyChanges.size());
+        assertEquals(0, prefixChanges.size());
+
+        assertTrue(storage.put("flag", "1"));
+        assertTrue(storage.put("ui.color", "red"));
+        assertTrue(storage.put("unchanged", "1"));
+        // only the published keys are read, not the whole module
+        final List<String> readKeys = new ArrayList<>();
+        Whitebox.setInternalState(storage, "mProviderHelper",
+                new TrayProviderHelper(getProviderMockContext()) {
+                    @NonNull
+                    @Override
+                    public List<TrayItem> queryProvider(@NonNull final Uri uri,
+                            @Nullable final String selection,
+                            @Nullable final String[] selectionArgs) throws TrayException {
+                        assertNotNull(selectionArgs);
+                        readKeys.addAll(Arrays.asList(selectionArgs));
+                        return super.queryProvider(uri, selection, selectionArgs);
+                    }
+                });
+        final TrayNotification changes = new TrayNotification();
+        changes.put("flag", TrayItem.TYPE_STRING);
+        changes.put("ui.color", TrayItem.TYPE_STRING);
+        changes.remove("ui.size");
+        storage.mObserver.onChange(false, changes.toUri(moduleUri));
+        assertEquals(Arrays.asList("flag", "ui.color"), readKeys);
+        assertEquals(1, keyChanges.size());
+        assertEquals("flag", keyChanges.get(0).iterator().next().key());
+        assertEquals(1, prefixChanges.size());
+        assertEquals(1, prefixChanges.get(0).size());
+        assertEquals("ui.color", prefixChanges.get(0).iterator().next().key());
+
+        // single changes without details are filtered before the item gets queried
+        storage.mObserver.onChange(false, trayUri.builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule("testScoped")
+                .setKey("other")
+                .build());
+        assertEquals(1, keyChanges.size());
+        assertEquals(1, prefixChanges.size());
+
+        storage.unregisterOnTrayPreferenceChangeListener(keyListener);
+        storage.unregisterOnTrayPreferenceChangeListener(prefixListener);
+        assertNull(storage.mObserver);
+    }
+
     public void testListenerRegisteredFromLooperThread() throws Exception {
         checkChangeListener(true, null);
     }
@@ -62,6 +156,30 @@ public class ChangedListenerTest extends TrayProviderTestCase {
         assertEquals(0, storage.mListeners.size());
     }
 
+    public void testSharedObserverThread() throws Exception {
+        final OnTrayPreferenceChangeListener listener = new OnTrayPreferenceChangeListener() {
+            @Override
+            public void onTrayPreferenceChanged(final Collection<TrayItem> items) {
+            }
+        };
+        final ContentProviderStorage storage1 = new ContentProviderStorage(
+                getProviderMockContext(), "module1", TrayStorage.Type.USER);
+        final ContentProviderStorage storage2 = new ContentProviderStorage(
+                getProviderMockContext(), "module2", TrayStorage.Type.DEVICE);
+        storage1.registerOnTrayPreferenceChangeListener(listener);
+        storage2.registerOnTrayPreferenceChangeListener(listener);
+        assertNotNull(storage1.mObserver);
+        assertNotNull(storage2.mObserver);
+
+        // all observers run on the same thread which outlives the listeners
+        final Handler handler = ContentProviderStorage.getObserverHandler();
+        storage1.unregisterOnTrayPreferenceChangeListener(listener);
+        storage2.unregisterOnTrayPreferenceChangeListener(listener);
+        assertNull(storage1.mObserver);
+        assertSame(handler, ContentProviderStorage.getObserverHandler());
+        assertTrue(handler.getLooper().getThread().isAlive());
+    }
+
     public void testUnregister() throws Exception {
         final OnTrayPreferenceChangeListener listener = new OnTrayPreferenceChangeListener() {
             @Override
@@ -79,7 +197,6 @@ public class ChangedListenerTest extends TrayProviderTestCase {
         userStorage.unregisterOnTrayPreferenceChangeListener(listener);
         assertEquals(0, userStorage.mListeners.size());
         assertNull(userStorage.mObserver);
-        assertNull(userStorage.mObserverThread);
 
     }
 
@@ -134,7 +251,6 @@ public class ChangedListenerTest extends TrayProviderTestCase {
 
         registerLatch.await(1000, TimeUnit.MILLISECONDS);
         assertNotNull(userStorage.mObserver);
-        assertNotNull(userStorage.mObserverThread);
         assertFalse(listenerCalled[0]);
 
         final TrayUri trayUri = new TrayUri(getProviderMockContext());
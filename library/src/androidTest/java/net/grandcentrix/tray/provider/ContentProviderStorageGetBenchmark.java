@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayStorage;
+
+import android.net.Uri;
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Compares the cpu time of {@link ContentProviderStorage#get(String)} with a {@link
+ * TrayUri.Builder} per call, as before, to the precomputed uris.
+ * <p>
+ * Results are logged with the tag {@link #TAG}
+ */
+public class ContentProviderStorageGetBenchmark extends TrayProviderTestCase {
+
+    private static final int KEYS = 32;
+
+    private static final String MODULE = "getBenchmark";
+
+    private static final int ROUNDS = 100;
+
+    private static final String TAG = "TrayBenchmark";
+
+    public void testGet() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        final TrayProviderHelper helper = new TrayProviderHelper(getProviderMockContext());
+        final TrayUri trayUri = new TrayUri(getProviderMockContext());
+
+        // warm up both paths
+        assertNotNull(storage.get("key0"));
+        assertNotNull(helper.callGet(buildUri(trayUri, "key0")));
+
+        long start = Debug.threadCpuTimeNanos();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < KEYS; i++) {
+                buildUri(trayUri, "key" + i);
+            }
+        }
+        final long builder = Debug.threadCpuTimeNanos() - start;
+
+        start = Debug.threadCpuTimeNanos();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < KEYS; i++) {
+                storage.getKeyUri("key" + i);
+            }
+        }
+        final long cached = Debug.threadCpuTimeNanos() - start;
+
+        start = Debug.threadCpuTimeNanos();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < KEYS; i++) {
+                assertNotNull(helper.callGet(buildUri(trayUri, "key" + i)));
+            }
+        }
+        final long before = Debug.threadCpuTimeNanos() - start;
+
+        start = Debug.threadCpuTimeNanos();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < KEYS; i++) {
+                assertNotNull(storage.get("key" + i));
+            }
+        }
+        final long after = Debug.threadCpuTimeNanos() - start;
+
+        final int calls = KEYS * ROUNDS;
+        Log.i(TAG, "cpu time per get of " + KEYS + " keys: "
+                + "uri builder " + builder / calls + "ns, "
+                + "cached uri " + cached / calls + "ns, "
+                + "get before " + before / calls / 1000 + "us, "
+                + "get after " + after / calls / 1000 + "us");
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final TrayProviderHelper helper = new TrayProviderHelper(getProviderMockContext());
+        final TrayUri trayUri = new TrayUri(getProviderMockContext());
+        final HashMap<String, String> values = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            values.put("key" + i, "value" + i);
+        }
+        assertTrue(helper.bulkPersist(trayUri.builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule(MODULE)
+                .build(), values));
+    }
+
+    /**
+     * the previous implementation, a new builder for every access
+     */
+    private static Uri buildUri(final TrayUri trayUri, final String key) {
+        return trayUri.builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule(MODULE)
+                .setKey(key)
+                .build();
+    }
+}
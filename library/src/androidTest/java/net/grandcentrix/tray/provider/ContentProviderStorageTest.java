@@ -18,6 +18,8 @@ package net.grandcentrix.tray.provider;
 
 import junit.framework.Assert;
 
+import net.grandcentrix.tray.core.EditOperation;
+import net.grandcentrix.tray.core.TrayChanges;
 import net.grandcentrix.tray.core.TrayItem;
 import net.grandcentrix.tray.core.TrayRuntimeException;
 import net.grandcentrix.tray.core.TrayStorage;
@@ -26,7 +28,11 @@ import org.mockito.internal.util.reflection.Whitebox;
 
 import android.net.Uri;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
@@ -46,6 +52,214 @@ public class ContentProviderStorageTest extends TrayProviderTestCase {
 
     final String TEST_STRING2 = "fooBar2";
 
+    public void testAnnex() throws Exception {
+        final ContentProviderStorage old = new ContentProviderStorage(
+                getProviderMockContext(), "old", TrayStorage.Type.USER);
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "new", TrayStorage.Type.DEVICE);
+        assertTrue(old.put(TEST_KEY, 1));
+        assertTrue(old.setVersion(2));
+        // queued writes get moved as well
+        old.apply(Collections.singletonList(EditOperation.put(TEST_KEY2, null, TEST_STRING)));
+        storage.setCacheEnabled(true);
+        assertEquals(0, storage.getAll().size());
+
+        storage.annex(old);
+
+        assertEquals(2, storage.getAll().size());
+        assertEquals(TrayItem.TYPE_INT, storage.get(TEST_KEY).type());
+        assertEquals(TEST_STRING, storage.get(TEST_KEY2).value());
+        assertEquals(0, old.getAll().size());
+        assertEquals(0, old.getVersion());
+        storage.setCacheEnabled(false);
+    }
+
+    public void testCache() throws Exception {
+        final ContentProviderStorage cached = new ContentProviderStorage(
+                getProviderMockContext(), "testCache", TrayStorage.Type.USER);
+        final ContentProviderStorage other = new ContentProviderStorage(
+                getProviderMockContext(), "testCache", TrayStorage.Type.USER);
+        cached.setCacheEnabled(true);
+        assertTrue(cached.isCacheEnabled());
+        assertNotNull(cached.mObserver);
+
+        // filled with getAll
+        assertTrue(cached.put(TEST_KEY, TEST_STRING));
+        assertNull(cached.mCache);
+        assertEquals(1, cached.getAll().size());
+        assertNotNull(cached.mCache);
+
+        // local changes update the cache
+        assertTrue(cached.put(TEST_KEY2, TEST_STRING2));
+        assertEquals(TEST_STRING2, cached.get(TEST_KEY2).value());
+        assertTrue(cached.remove(TEST_KEY2));
+        assertNull(cached.get(TEST_KEY2));
+        assertEquals(1, cached.getAll().size());
+
+        // changes of other instances are only visible after a change notification
+        assertTrue(other.put(TEST_KEY, "changed"));
+        assertEquals(TEST_STRING, cached.get(TEST_KEY).value());
+
+        // the ContentObserver does not work in a ProviderTestCase2, call it manually
+        final TrayUri trayUri = new TrayUri(getProviderMockContext());
+        cached.mObserver.onChange(false, trayUri.builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule("testCache")
+                .setKey(TEST_KEY)
+                .build());
+        assertNotNull(cached.mCache);
+        assertEquals("changed", cached.get(TEST_KEY).value());
+
+        // changes of a whole module invalidate the cache
+        cached.mObserver.onChange(false, trayUri.builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule("testCache")
+                .build());
+        assertNull(cached.mCache);
+        assertEquals("changed", cached.get(TEST_KEY).value());
+
+        cached.setCacheEnabled(false);
+        assertFalse(cached.isCacheEnabled());
+        assertNull(cached.mObserver);
+    }
+
+    public void testCacheNotificationWithChanges() throws Exception {
+        final ContentProviderStorage cached = new ContentProviderStorage(
+                getProviderMockContext(), "testCacheChanges", TrayStorage.Type.USER);
+        cached.setCacheEnabled(true);
+        assertTrue(cached.put(TEST_KEY, TEST_STRING));
+        assertTrue(cached.put(TEST_KEY2, TEST_STRING2));
+        cached.getAll();
+
+        final Uri moduleUri = new TrayUri(getProviderMockContext()).builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule("testCacheChanges")
+                .build();
+        final ContentProviderStorage other = new ContentProviderStorage(
+                getProviderMockContext(), "testCacheChanges", TrayStorage.Type.USER);
+        assertTrue(other.put(TEST_KEY, "changed"));
+
+        // a single published key is read again, the cache is kept
+        final TrayNotification single = new TrayNotification();
+        single.put(TEST_KEY, TrayItem.TYPE_STRING);
+        cached.mObserver.onChange(false, single.toUri(moduleUri.buildUpon()
+                .appendPath(TEST_KEY).build()));
+        assertNotNull(cached.mCache);
+        assertEquals("changed", cached.get(TEST_KEY).value());
+
+        // the notification contains no values, more changes invalidate the cache
+        assertTrue(other.put(TEST_KEY2, "changed"));
+        final TrayNotification notification = new TrayNotification();
+        notification.put(TEST_KEY, TrayItem.TYPE_STRING);
+        notification.put(TEST_KEY2, TrayItem.TYPE_STRING);
+        cached.mObserver.onChange(false, notification.toUri(moduleUri));
+        assertNull(cached.mCache);
+        assertEquals("changed", cached.get(TEST_KEY2).value());
+    }
+
+    public void testCacheIgnoresOtherType() throws Exception {
+        final ContentProviderStorage cached = new ContentProviderStorage(
+                getProviderMockContext(), "testCacheIgnoresOtherType", TrayStorage.Type.USER);
+        cached.setCacheEnabled(true);
+        assertTrue(cached.put(TEST_KEY, TEST_STRING));
+        cached.getAll();
+
+        final ContentProviderStorage device = new ContentProviderStorage(
+                getProviderMockContext(), "testCacheIgnoresOtherType", TrayStorage.Type.DEVICE);
+        assertTrue(device.put(TEST_KEY, "device"));
+        cached.mObserver.onChange(false, new TrayUri(getProviderMockContext()).builder()
+                .setType(TrayStorage.Type.DEVICE)
+                .setModule("testCacheIgnoresOtherType")
+                .setKey(TEST_KEY)
+                .build());
+
+        assertNotNull(cached.mCache);
+        assertEquals(TEST_STRING, cached.get(TEST_KEY).value());
+        cached.setCacheEnabled(false);
+    }
+
+    public void testChangesSince() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testChanges", TrayStorage.Type.USER);
+        final ContentProviderStorage other = new ContentProviderStorage(
+                getProviderMockContext(), "other", TrayStorage.Type.USER);
+        final TrayChanges empty = storage.getChangesSince(0);
+        assertTrue(empty.isEmpty());
+        assertEquals(0, empty.getSequence());
+
+        assertTrue(storage.put(TEST_KEY, TEST_STRING));
+        assertTrue(storage.put(TEST_KEY2, 2));
+        assertTrue(other.put(TEST_KEY, TEST_STRING2));
+        final TrayChanges all = storage.getChangesSince(0);
+        assertEquals(2, all.getChangedItems().size());
+        assertEquals(TEST_KEY, all.getChangedItems().get(0).key());
+        assertEquals(TEST_KEY2, all.getChangedItems().get(1).key());
+        assertEquals(TrayItem.TYPE_INT, all.getChangedItems().get(1).type());
+        assertTrue(all.getSequence() > 0);
+
+        // only newer changes, queued writes are saved before
+        assertTrue(storage.remove(TEST_KEY));
+        storage.apply(Collections.singletonList(EditOperation.put(TEST_KEY2, null, 3)));
+        final TrayChanges delta = storage.getChangesSince(all.getSequence());
+        assertEquals(1, delta.getChangedItems().size());
+        assertEquals(3, delta.getChangedItems().get(0).data());
+        assertEquals(1, delta.getRemovedItems().size());
+        assertEquals(TEST_KEY, delta.getRemovedItems().get(0).key());
+        assertEquals("testChanges", delta.getRemovedItems().get(0).module());
+        assertTrue(delta.getSequence() > all.getSequence());
+
+        assertTrue(storage.getChangesSince(delta.getSequence()).isEmpty());
+        assertEquals(delta.getSequence(),
+                storage.getChangesSince(delta.getSequence()).getSequence());
+    }
+
+    public void testChangesSinceUndefined() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testChanges", TrayStorage.Type.UNDEFINED);
+        try {
+            storage.getChangesSince(0);
+            fail();
+        } catch (TrayRuntimeException e) {
+            assertTrue(e.getMessage().contains("UNDEFINED"));
+        }
+    }
+
+    public void testCommit() throws Exception {
+        final ContentProviderStorage user = new ContentProviderStorage(getProviderMockContext(),
+                "testCommit", TrayStorage.Type.USER);
+        final ContentProviderStorage device = new ContentProviderStorage(
+                getProviderMockContext(), "testCommit", TrayStorage.Type.DEVICE);
+        assertTrue(user.put(TEST_KEY2, TEST_STRING2));
+        assertTrue(device.put(TEST_KEY2, TEST_STRING2));
+
+        final List<EditOperation> operations = new ArrayList<>();
+        operations.add(EditOperation.put(TEST_KEY, null, TEST_STRING));
+        operations.add(EditOperation.put("number", "migrated", 42));
+        operations.add(EditOperation.remove(TEST_KEY2));
+        assertTrue(user.commit(operations));
+
+        assertUserDatabaseSize(2);
+        assertEquals(TEST_STRING, user.get(TEST_KEY).value());
+        assertEquals("42", user.get("number").value());
+        assertEquals("migrated", user.get("number").migratedKey());
+        assertNull(user.get(TEST_KEY2));
+        // other type untouched
+        assertDeviceDatabaseSize(1);
+    }
+
+    public void testCommitUndefined() throws Exception {
+        final ContentProviderStorage undefined = new ContentProviderStorage(
+                getProviderMockContext(), "testCommitUndefined", TrayStorage.Type.UNDEFINED);
+        try {
+            undefined.commit(Collections.singletonList(EditOperation.put(TEST_KEY, null, "a")));
+            fail();
+        } catch (TrayRuntimeException e) {
+            assertTrue(e.getMessage().contains("UNDEFINED"));
+        }
+        // removing is allowed
+        assertTrue(undefined.commit(Collections.singletonList(EditOperation.remove(TEST_KEY))));
+    }
+
     public void testClear() throws Exception {
         final ContentProviderStorage storage1 = new ContentProviderStorage(getProviderMockContext(),
                 "testClear1", TrayStorage.Type.USER);
@@ -115,6 +329,49 @@ public class ContentProviderStorageTest extends TrayProviderTestCase {
 
     }
 
+    public void testContainsKeysSize() throws Exception {
+        final ContentProviderStorage user = new ContentProviderStorage(
+                getProviderMockContext(), "introspection", TrayStorage.Type.USER);
+        final ContentProviderStorage device = new ContentProviderStorage(
+                getProviderMockContext(), "introspection", TrayStorage.Type.DEVICE);
+        final ContentProviderStorage undefined = new ContentProviderStorage(
+                getProviderMockContext(), "introspection", TrayStorage.Type.UNDEFINED);
+        assertFalse(user.contains(TEST_KEY));
+        assertEquals(0, user.size());
+        assertTrue(user.keys().isEmpty());
+
+        assertTrue(user.put(TEST_KEY, TEST_STRING));
+        assertTrue(user.put(TEST_KEY2, null));
+        assertTrue(device.put(TEST_KEY, TEST_STRING2));
+
+        assertTrue(user.contains(TEST_KEY));
+        // null values exist
+        assertTrue(user.contains(TEST_KEY2));
+        assertFalse(device.contains(TEST_KEY2));
+        assertTrue(undefined.contains(TEST_KEY2));
+
+        assertEquals(2, user.size());
+        assertEquals(1, device.size());
+        // same as getAll(), the key of both databases counts twice
+        assertEquals(3, undefined.size());
+        assertEquals(undefined.getAll().size(), undefined.size());
+
+        final List<String> keys = user.keys();
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains(TEST_KEY));
+        assertTrue(keys.contains(TEST_KEY2));
+        assertEquals(2, undefined.keys().size());
+
+        // from the cache
+        user.setCacheEnabled(true);
+        user.getAll();
+        assertNotNull(user.mCache);
+        assertTrue(user.contains(TEST_KEY));
+        assertEquals(2, user.size());
+        assertEquals(2, user.keys().size());
+        user.setCacheEnabled(false);
+    }
+
     public void testDeviceAndUserWithSameName() throws Exception {
         final ContentProviderStorage userStorage = new ContentProviderStorage(
                 getProviderMockContext(), "sameName", TrayStorage.Type.USER);
@@ -266,6 +523,36 @@ public class ContentProviderStorageTest extends TrayProviderTestCase {
         assertEquals("2", allU.iterator().next().value());
     }
 
+    public void testGetMany() throws Exception {
+        final ContentProviderStorage user = new ContentProviderStorage(getProviderMockContext(),
+                "testGetMany", TrayStorage.Type.USER);
+        final ContentProviderStorage device = new ContentProviderStorage(
+                getProviderMockContext(), "testGetMany", TrayStorage.Type.DEVICE);
+        final ContentProviderStorage undefined = new ContentProviderStorage(
+                getProviderMockContext(), "testGetMany", TrayStorage.Type.UNDEFINED);
+        assertTrue(user.put(TEST_KEY, TEST_STRING));
+        assertTrue(user.put(TEST_KEY2, TEST_STRING2));
+        assertTrue(device.put("device", TEST_STRING));
+
+        final Map<String, TrayItem> items = user.getMany(TEST_KEY, TEST_KEY2, "device", "missing",
+                TEST_KEY);
+        assertEquals(2, items.size());
+        assertEquals(TEST_STRING, items.get(TEST_KEY).value());
+        assertEquals(TEST_STRING2, items.get(TEST_KEY2).value());
+
+        // undefined reads both databases
+        assertEquals(3, undefined.getMany(TEST_KEY, TEST_KEY2, "device").size());
+
+        assertTrue(user.getMany().isEmpty());
+
+        // served from the cache
+        user.setCacheEnabled(true);
+        user.getAll();
+        assertNotNull(user.mCache);
+        assertEquals(2, user.getMany(TEST_KEY, TEST_KEY2, "device").size());
+        user.setCacheEnabled(false);
+    }
+
     public void testGetDevice() throws Exception {
         final ContentProviderStorage storage = new ContentProviderStorage(getProviderMockContext(),
                 "testGet_Device", TrayStorage.Type.DEVICE);
@@ -290,6 +577,19 @@ public class ContentProviderStorageTest extends TrayProviderTestCase {
         assertEquals("foo", item.value());
     }
 
+    public void testKeyUri() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "keyUri", TrayStorage.Type.DEVICE);
+        final Uri expected = new TrayUri(getProviderMockContext()).builder()
+                .setType(TrayStorage.Type.DEVICE)
+                .setModule("keyUri")
+                .setKey(TEST_KEY)
+                .build();
+        assertEquals(expected, storage.getKeyUri(TEST_KEY));
+        // reused
+        assertSame(storage.getKeyUri(TEST_KEY), storage.getKeyUri(TEST_KEY));
+    }
+
     public void testPutDevice() throws Exception {
         final ContentProviderStorage storage = new ContentProviderStorage(getProviderMockContext(),
                 "testPut_Device", TrayStorage.Type.DEVICE);
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.EditOperation;
+import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayStorage;
+
+import org.mockito.internal.util.reflection.Whitebox;
+
+import android.content.ContentProviderOperation;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TrayAsyncWriterTest extends TrayProviderTestCase {
+
+    private static final String MODULE = "async";
+
+    public void testApply() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        assertTrue(storage.put("removed", "value"));
+
+        storage.apply(Arrays.asList(
+                EditOperation.put("a", null, "1"),
+                EditOperation.put("b", "migrated", 2),
+                EditOperation.remove("removed")));
+
+        // read your writes, before or after the changes were written
+        assertEquals("1", storage.get("a").value());
+        assertEquals("migrated", storage.get("b").migratedKey());
+        assertNull(storage.get("removed"));
+        assertEquals(2, storage.getAll().size());
+        assertEquals(2, storage.getMany("a", "b", "removed").size());
+
+        TrayAsyncWriter.peekInstance().flush();
+        assertUserDatabaseSize(2);
+        assertEquals("2", storage.get("b").value());
+    }
+
+    public void testCoalesce() throws Exception {
+        final TrayAsyncWriter writer = new TrayAsyncWriter(getProviderMockContext());
+
+        // block the background thread while enqueuing
+        synchronized (Whitebox.getInternalState(writer, "mFlushLock")) {
+            for (int i = 0; i <= 100; i++) {
+                writer.enqueue(TrayStorage.Type.USER, MODULE,
+                        Collections.singletonList(EditOperation.put("counter", null, i)));
+            }
+            writer.enqueue(TrayStorage.Type.DEVICE, MODULE,
+                    Collections.singletonList(EditOperation.put("counter", null, -1)));
+
+            final List<TrayAsyncWriter.PendingWrite> pending =
+                    writer.getPending(TrayStorage.Type.USER, MODULE);
+            assertEquals(1, pending.size());
+            final TrayItem item = writer.getPending(TrayStorage.Type.USER, MODULE, "counter")
+                    .toTrayItem();
+            assertEquals("100", item.value());
+
+            assertEquals(2, writer.getPending(TrayStorage.Type.UNDEFINED, MODULE).size());
+        }
+
+        writer.flush();
+        assertUserDatabaseSize(1);
+        assertDeviceDatabaseSize(1);
+        assertNull(writer.getPending(TrayStorage.Type.USER, MODULE, "counter"));
+    }
+
+    public void testRetryFailedBatch() throws Exception {
+        final TrayAsyncWriter writer = new TrayAsyncWriter(getProviderMockContext());
+        final AtomicInteger failures = new AtomicInteger(1);
+        final CountDownLatch[] attempts = {new CountDownLatch(2)};
+        Whitebox.setInternalState(writer, "mProviderHelper",
+                new TrayProviderHelper(getProviderMockContext()) {
+                    @Override
+                    public boolean applyBatch(
+                            @NonNull final ArrayList<ContentProviderOperation> operations) {
+                        try {
+                            return failures.getAndDecrement() <= 0
+                                    && super.applyBatch(operations);
+                        } finally {
+                            attempts[0].countDown();
+                        }
+                    }
+                });
+
+        // the first attempt fails, the retry writes the change
+        writer.enqueue(TrayStorage.Type.USER, MODULE,
+                Collections.singletonList(EditOperation.put("a", null, "1")));
+        assertTrue(attempts[0].await(1000, TimeUnit.MILLISECONDS));
+        writer.flush();
+        assertUserDatabaseSize(1);
+
+        // dropped after all attempts failed
+        failures.set(TrayAsyncWriter.MAX_ATTEMPTS);
+        attempts[0] = new CountDownLatch(TrayAsyncWriter.MAX_ATTEMPTS);
+        writer.enqueue(TrayStorage.Type.USER, MODULE,
+                Collections.singletonList(EditOperation.put("b", null, "2")));
+        assertTrue(attempts[0].await(1000, TimeUnit.MILLISECONDS));
+        writer.flush();
+        assertNull(writer.getPending(TrayStorage.Type.USER, MODULE, "b"));
+        assertUserDatabaseSize(1);
+    }
+
+    public void testSynchronousWriteDiscardsPending() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        final TrayAsyncWriter writer = TrayAsyncWriter.getInstance(getProviderMockContext());
+
+        synchronized (Whitebox.getInternalState(writer, "mFlushLock")) {
+            storage.apply(Arrays.asList(
+                    EditOperation.put("a", null, "async"),
+                    EditOperation.put("b", null, "async")));
+            assertEquals("async", storage.get("a").value());
+        }
+        // waits for the running flush and removes the queued change
+        assertTrue(storage.put("a", "sync"));
+        writer.flush();
+        assertEquals("sync", storage.get("a").value());
+
+        storage.apply(Collections.singletonList(EditOperation.put("a", null, "async")));
+        assertTrue(storage.clear());
+        writer.flush();
+        assertUserDatabaseSize(0);
+    }
+
+    public void testUndefinedRemove() throws Exception {
+        final ContentProviderStorage user = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        final ContentProviderStorage device = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.DEVICE);
+        final ContentProviderStorage undefined = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.UNDEFINED);
+        assertTrue(user.put("a", "user"));
+        assertTrue(device.put("a", "device"));
+        final TrayAsyncWriter writer = TrayAsyncWriter.getInstance(getProviderMockContext());
+
+        synchronized (Whitebox.getInternalState(writer, "mFlushLock")) {
+            undefined.apply(Collections.singletonList(EditOperation.remove("a")));
+            // queued for both databases
+            assertNull(user.get("a"));
+            assertNull(device.get("a"));
+            assertNull(undefined.get("a"));
+        }
+        writer.flush();
+        assertUserDatabaseSize(0);
+        assertDeviceDatabaseSize(0);
+
+        // a synchronous write discards the queued remove
+        synchronized (Whitebox.getInternalState(writer, "mFlushLock")) {
+            undefined.apply(Collections.singletonList(EditOperation.remove("a")));
+            assertTrue(user.put("a", "sync"));
+        }
+        writer.flush();
+        assertEquals("sync", user.get("a").value());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TrayAsyncWriter.sInstance = null;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final TrayAsyncWriter writer = TrayAsyncWriter.peekInstance();
+        if (writer != null) {
+            writer.flush();
+        }
+        TrayAsyncWriter.sInstance = null;
+        super.tearDown();
+    }
+}
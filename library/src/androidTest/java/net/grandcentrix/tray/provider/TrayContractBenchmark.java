@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.grandcentrix.tray.provider;
+
+import android.util.Log;
+
+/**
+ * Compares the first uri generation of a process which looks up the {@link TrayContentProvider}
+ * with {@link android.content.pm.PackageManager#getProviderInfo} to the authority set by the
+ * attached provider. Uses the real package manager of the test app.
+ * <p>
+ * Results are logged with the tag {@link #TAG}
+ */
+public class TrayContractBenchmark extends TrayProviderTestCase {
+
+    private static final int RUNS = 20;
+
+    private static final String TAG = "TrayBenchmark";
+
+    public void testAuthorityResolution() throws Exception {
+        long lookup = 0;
+        long attached = 0;
+        for (int i = 0; i < RUNS; i++) {
+            TrayContract.sAuthority = null;
+            long start = System.nanoTime();
+            TrayContract.generateContentUri(getContext());
+            lookup += System.nanoTime() - start;
+
+            TrayContract.sAuthority = null;
+            start = System.nanoTime();
+            TrayContract.setAuthority(MockProvider.AUTHORITY);
+            TrayContract.generateContentUri(getContext());
+            attached += System.nanoTime() - start;
+        }
+
+        Log.i(TAG, "first uri of a process: "
+                + "getProviderInfo lookup " + lookup / RUNS / 1000 + "us, "
+                + "attached provider " + attached / RUNS / 1000 + "us");
+    }
+}
@@ -109,6 +109,19 @@ public class TrayContractTest extends TrayProviderTestCase {
         }
     }
 
+    public void testGenerateContentUri_WithAttachedProvider_ShouldNotQueryProviders()
+            throws Exception {
+        // no provider infos, the lookup would crash
+        getProviderMockContext().setProviderInfos(new ArrayList<ProviderInfo>());
+
+        final ProviderInfo info = new ProviderInfo();
+        info.authority = "attached.authority";
+        new TrayContentProvider().attachInfo(getProviderMockContext(), info);
+
+        final Uri uri = TrayContract.generateContentUri(getProviderMockContext());
+        assertEquals("content://attached.authority/preferences", uri.toString());
+    }
+
     public void testLogcatOutput_ShouldPrintIfTrayAuthorityIsNotDefault() throws Exception {
 
         final List<ProviderInfo> mockProviders = new ArrayList<>();
@@ -16,13 +16,23 @@
 
 package net.grandcentrix.tray.provider;
 
+import net.grandcentrix.tray.core.TrayItem;
+
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.test.AndroidTestCase;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class TrayDBHelperTest extends AndroidTestCase {
 
@@ -38,16 +48,310 @@ public class TrayDBHelperTest extends AndroidTestCase {
         assertV2Integrity(trayDBHelper);
     }
 
+    public void testCreateVersion3() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(3, false);
+        assertV3Integrity(trayDBHelper);
+    }
+
+    public void testCreateVersion4() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(4, false);
+        assertV4Integrity(trayDBHelper);
+    }
+
+    public void testCreateVersion5() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(5, false);
+        assertV5Integrity(trayDBHelper);
+    }
+
+    public void testDeleteExpired() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(TrayDBHelper.DATABASE_VERSION, false);
+        assertEquals(0, trayDBHelper.queryNextExpiry());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "expired" + i,
+                    "a", null, 1000, TrayItem.TYPE_STRING, 0, 0, 2000 + i) >= 0);
+        }
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "valid", "b", null,
+                1000, TrayItem.TYPE_STRING, 0, 0, 5000) >= 0);
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "forever", "c", null,
+                1000) >= 0);
+        assertEquals(2000, trayDBHelper.queryNextExpiry());
+        // a regular delete leaves a tombstone
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "removed", "d", null,
+                1000) >= 0);
+        assertEquals(1, trayDBHelper.getWritableDatabase().delete(TrayDBHelper.TABLE_NAME,
+                TrayDBHelper.KEY + " = ?", new String[]{"removed"}));
+        final long sequence = trayDBHelper.querySequence();
+
+        // batches up to the limit
+        final Map<String, Set<String>> deletedKeys = new HashMap<>();
+        assertEquals(3, trayDBHelper.deleteExpired(3000, 3, deletedKeys));
+        assertEquals(new HashSet<>(Arrays.asList("expired0", "expired1", "expired2")),
+                deletedKeys.get("module"));
+        assertEquals(2, trayDBHelper.deleteExpired(3000, 3));
+        assertEquals(0, trayDBHelper.deleteExpired(3000, 3));
+        assertEquals(5000, trayDBHelper.queryNextExpiry());
+
+        final Cursor cursor = trayDBHelper.getReadableDatabase().query(TrayDBHelper.TABLE_NAME,
+                null, null, null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+
+        // the compaction neither leaves tombstones nor assigns sequences
+        final Cursor tombstones = trayDBHelper.getReadableDatabase().query(
+                TrayDBHelper.DELETED_TABLE_NAME, null, null, null, null, null, null);
+        assertEquals(1, tombstones.getCount());
+        tombstones.close();
+        assertEquals(sequence, trayDBHelper.querySequence());
+        trayDBHelper.close();
+    }
+
     public void testInstantiation() throws Exception {
         new TrayDBHelper(getContext());
     }
 
+    public void testUpsert() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(TrayDBHelper.DATABASE_VERSION, false);
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "key", "a", null, 1000)
+                >= 0);
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "key", "b", "old", 2000)
+                >= 0);
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module2", "key", null, null, 3000)
+                >= 0);
+
+        final Cursor cursor = trayDBHelper.getReadableDatabase().query(TrayDBHelper.TABLE_NAME,
+                null, TrayDBHelper.MODULE + " = ?", new String[]{"module"}, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("b", cursor.getString(cursor.getColumnIndex(TrayDBHelper.VALUE)));
+        assertEquals("old", cursor.getString(cursor.getColumnIndex(TrayDBHelper.MIGRATED_KEY)));
+        // created is kept
+        assertEquals(1000, cursor.getLong(cursor.getColumnIndex(TrayDBHelper.CREATED)));
+        assertEquals(2000, cursor.getLong(cursor.getColumnIndex(TrayDBHelper.UPDATED)));
+        cursor.close();
+
+        // writes reopen the closed database
+        trayDBHelper.close();
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.INTERNAL_TABLE_NAME, "module", "key", "c",
+                null, 4000) >= 0);
+        trayDBHelper.close();
+    }
+
+    public void testUpsertTyped() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(TrayDBHelper.DATABASE_VERSION, false);
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "long", "5", null,
+                1000, TrayItem.TYPE_LONG, 5, 0) >= 0);
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "float", "1.5", null,
+                1000, TrayItem.TYPE_FLOAT, 0, 1.5) >= 0);
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "string", "5", null,
+                1000) >= 0);
+
+        final SQLiteDatabase db = trayDBHelper.getReadableDatabase();
+        assertTyped(db, TrayDBHelper.TABLE_NAME, "long", TrayItem.TYPE_LONG, 5L);
+        assertTyped(db, TrayDBHelper.TABLE_NAME, "string", TrayItem.TYPE_STRING, null);
+
+        final Cursor cursor = db.query(TrayDBHelper.TABLE_NAME, null,
+                TrayDBHelper.KEY + " = ?", new String[]{"float"}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TrayItem.TYPE_FLOAT,
+                cursor.getInt(cursor.getColumnIndex(TrayDBHelper.TYPE)));
+        assertEquals(1.5, cursor.getDouble(cursor.getColumnIndex(TrayDBHelper.REAL_VALUE)));
+        assertTrue(cursor.isNull(cursor.getColumnIndex(TrayDBHelper.INT_VALUE)));
+        cursor.close();
+        trayDBHelper.close();
+    }
+
+    public void testUpsertDuringTransaction() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(TrayDBHelper.DATABASE_VERSION, false);
+        final CountDownLatch batchStarted = new CountDownLatch(1);
+        final CountDownLatch batchDone = new CountDownLatch(1);
+        final CountDownLatch singleDone = new CountDownLatch(1);
+        // a batch holds the connection of the database for the whole transaction
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final SQLiteDatabase db = trayDBHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "batch", "key1", "a", null,
+                            1000);
+                    trayDBHelper.querySequence();
+                    batchStarted.countDown();
+                    // the single write waits for the connection in the meantime
+                    SystemClock.sleep(200);
+                    trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "batch", "key2", "b", null,
+                            1000);
+                    trayDBHelper.querySequence();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                batchDone.countDown();
+            }
+        }).start();
+        assertTrue(batchStarted.await(1000, TimeUnit.MILLISECONDS));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "single", "key", "c", null, 1000);
+                trayDBHelper.querySequence();
+                singleDone.countDown();
+            }
+        }).start();
+
+        assertTrue(batchDone.await(5000, TimeUnit.MILLISECONDS));
+        assertTrue(singleDone.await(5000, TimeUnit.MILLISECONDS));
+        final Cursor cursor = trayDBHelper.getReadableDatabase().query(TrayDBHelper.TABLE_NAME,
+                null, null, null, null, null, null);
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+        trayDBHelper.close();
+    }
+
+    public void testWriteAheadLogging() throws Exception {
+        final TrayDBHelper trayDBHelper = new TrayDBHelper(getContext(), false, true,
+                TrayDBHelper.SYNCHRONOUS_NORMAL);
+        try {
+            final SQLiteDatabase db = trayDBHelper.getWritableDatabase();
+            assertEquals("wal", queryPragma(db, "journal_mode").toLowerCase());
+            // NORMAL == 1
+            assertEquals("1", queryPragma(db, "synchronous"));
+
+            assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "key", "a", null,
+                    1000) >= 0);
+            assertTrue(trayDBHelper.checkpoint(TrayDBHelper.CHECKPOINT_PASSIVE));
+            try {
+                trayDBHelper.checkpoint("NOW");
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("NOW"));
+            }
+        } finally {
+            trayDBHelper.close();
+            getContext().deleteDatabase(TrayDBHelper.DATABASE_NAME_NO_BACKUP);
+        }
+
+        try {
+            new TrayDBHelper(getContext(), false, false, "SOMETIMES");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("SOMETIMES"));
+        }
+    }
+
     public void testUpgradeFrom1to2() throws Exception {
         initDb(1);
         final TrayDBHelper trayDBHelper = initDb(2, false);
         assertV2Integrity(trayDBHelper);
     }
 
+    public void testUpgradeFrom1to3() throws Exception {
+        initDb(1);
+        final TrayDBHelper trayDBHelper = initDb(3, false);
+        assertV3Integrity(trayDBHelper);
+    }
+
+    public void testUpgradeFrom2to3() throws Exception {
+        final TrayDBHelper v2 = initDb(2, false);
+        final SQLiteDatabase v2Db = v2.getWritableDatabase();
+        insertV2(v2Db, TrayDBHelper.TABLE_NAME, "int", "42");
+        insertV2(v2Db, TrayDBHelper.TABLE_NAME, "negative", "-7");
+        insertV2(v2Db, TrayDBHelper.TABLE_NAME, "long", "8589934592");
+        insertV2(v2Db, TrayDBHelper.TABLE_NAME, "true", "true");
+        insertV2(v2Db, TrayDBHelper.TABLE_NAME, "false", "false");
+        insertV2(v2Db, TrayDBHelper.TABLE_NAME, "float", "1.5");
+        insertV2(v2Db, TrayDBHelper.TABLE_NAME, "exponent", "1.0E10");
+        insertV2(v2Db, TrayDBHelper.TABLE_NAME, "leadingZero", "007");
+        insertV2(v2Db, TrayDBHelper.TABLE_NAME, "string", "tray");
+        insertV2(v2Db, TrayDBHelper.TABLE_NAME, "null", null);
+        insertV2(v2Db, TrayDBHelper.INTERNAL_TABLE_NAME, "version", "3");
+        v2.close();
+
+        final TrayDBHelper trayDBHelper = initDb(3, false);
+        final SQLiteDatabase db = trayDBHelper.getReadableDatabase();
+        assertTyped(db, TrayDBHelper.TABLE_NAME, "int", TrayItem.TYPE_INT, 42L);
+        assertTyped(db, TrayDBHelper.TABLE_NAME, "negative", TrayItem.TYPE_INT, -7L);
+        assertTyped(db, TrayDBHelper.TABLE_NAME, "long", TrayItem.TYPE_LONG, 8589934592L);
+        assertTyped(db, TrayDBHelper.TABLE_NAME, "true", TrayItem.TYPE_BOOLEAN, 1L);
+        assertTyped(db, TrayDBHelper.TABLE_NAME, "false", TrayItem.TYPE_BOOLEAN, 0L);
+        final Cursor cursor = db.query(TrayDBHelper.TABLE_NAME, null,
+                TrayDBHelper.KEY + " = ?", new String[]{"float"}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TrayItem.TYPE_FLOAT,
+                cursor.getInt(cursor.getColumnIndex(TrayDBHelper.TYPE)));
+        assertEquals(1.5, cursor.getDouble(cursor.getColumnIndex(TrayDBHelper.REAL_VALUE)));
+        assertTrue(cursor.isNull(cursor.getColumnIndex(TrayDBHelper.INT_VALUE)));
+        cursor.close();
+        // sqlite formats the real differently, stays a string
+        assertTyped(db, TrayDBHelper.TABLE_NAME, "exponent", TrayItem.TYPE_STRING, null);
+        assertTyped(db, TrayDBHelper.TABLE_NAME, "leadingZero", TrayItem.TYPE_STRING, null);
+        assertTyped(db, TrayDBHelper.TABLE_NAME, "string", TrayItem.TYPE_STRING, null);
+        assertTyped(db, TrayDBHelper.TABLE_NAME, "null", TrayItem.TYPE_STRING, null);
+        assertTyped(db, TrayDBHelper.INTERNAL_TABLE_NAME, "version", TrayItem.TYPE_INT, 3L);
+        trayDBHelper.close();
+    }
+
+    public void testUpgradeFrom3to4() throws Exception {
+        final TrayDBHelper v3 = initDb(3, false);
+        final SQLiteDatabase v3Db = v3.getWritableDatabase();
+        insertV2(v3Db, TrayDBHelper.TABLE_NAME, "a", "1");
+        insertV2(v3Db, TrayDBHelper.TABLE_NAME, "b", "2");
+        v3.close();
+
+        final TrayDBHelper trayDBHelper = initDb(4, false);
+        final SQLiteDatabase db = trayDBHelper.getWritableDatabase();
+        // existing items changed in the order they were saved
+        final long a = querySequence(db, TrayDBHelper.TABLE_NAME, "a");
+        final long b = querySequence(db, TrayDBHelper.TABLE_NAME, "b");
+        assertTrue(a > 0);
+        assertTrue(b > a);
+
+        // new changes continue after the existing items
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "c", "3", null, 1000)
+                >= 0);
+        assertTrue(querySequence(db, TrayDBHelper.TABLE_NAME, "c") > b);
+        trayDBHelper.close();
+    }
+
+    public void testSequence() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(TrayDBHelper.DATABASE_VERSION, false);
+        final SQLiteDatabase db = trayDBHelper.getWritableDatabase();
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "key", "a", null, 1000)
+                >= 0);
+        final long inserted = querySequence(db, TrayDBHelper.TABLE_NAME, "key");
+        assertTrue(inserted > 0);
+
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "key", "b", null, 2000)
+                >= 0);
+        final long updated = querySequence(db, TrayDBHelper.TABLE_NAME, "key");
+        assertTrue(updated > inserted);
+
+        // deletes leave a tombstone with the next sequence
+        assertEquals(1, db.delete(TrayDBHelper.TABLE_NAME, TrayDBHelper.KEY + " = ?",
+                new String[]{"key"}));
+        final long deleted = querySequence(db, TrayDBHelper.DELETED_TABLE_NAME, "key");
+        assertTrue(deleted > updated);
+
+        // saving the key again removes the tombstone
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.TABLE_NAME, "module", "key", "c", null, 3000)
+                >= 0);
+        assertTrue(querySequence(db, TrayDBHelper.TABLE_NAME, "key") > deleted);
+        final Cursor cursor = db.query(TrayDBHelper.DELETED_TABLE_NAME, null, null, null, null,
+                null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // the internal table has no sequence
+        assertTrue(trayDBHelper.upsert(TrayDBHelper.INTERNAL_TABLE_NAME, "module", "version",
+                "1", null, 4000) >= 0);
+        trayDBHelper.close();
+    }
+
+    public void testUpgradeFrom4to5() throws Exception {
+        initDb(4);
+        final TrayDBHelper trayDBHelper = initDb(5, false);
+        assertV5Integrity(trayDBHelper);
+    }
+
     public void testUpgradeNotImplemented() throws Exception {
         final TrayDBHelper trayDBHelper = initDb(1, false);
         try {
@@ -131,6 +435,73 @@ public class TrayDBHelperTest extends AndroidTestCase {
         db.close();
     }
 
+    private void assertV3Integrity(final TrayDBHelper trayDBHelper) {
+        final SQLiteDatabase db = trayDBHelper.getReadableDatabase();
+        for (final String table : new String[]{
+                TrayDBHelper.TABLE_NAME, TrayDBHelper.INTERNAL_TABLE_NAME}) {
+            final Cursor cursor = db.query(table, null, null, null, null, null, null);
+            assertNotNull(cursor);
+            final List<String> columnNames = Arrays.asList(cursor.getColumnNames());
+            cursor.close();
+            assertEquals(10, columnNames.size());
+            assertTrue(columnNames.contains(TrayDBHelper.MIGRATED_KEY));
+            assertTrue(columnNames.contains(TrayDBHelper.TYPE));
+            assertTrue(columnNames.contains(TrayDBHelper.INT_VALUE));
+            assertTrue(columnNames.contains(TrayDBHelper.REAL_VALUE));
+        }
+        db.close();
+    }
+
+    private void assertV4Integrity(final TrayDBHelper trayDBHelper) {
+        final SQLiteDatabase db = trayDBHelper.getReadableDatabase();
+        {// check added SEQUENCE column
+            final Cursor cursor = db
+                    .query(TrayDBHelper.TABLE_NAME, null, null, null, null, null, null);
+            final List<String> columnNames = Arrays.asList(cursor.getColumnNames());
+            cursor.close();
+            assertEquals(11, columnNames.size());
+            assertTrue(columnNames.contains(TrayDBHelper.SEQUENCE));
+        }
+        {// internal table is unchanged
+            final Cursor cursor = db.query(TrayDBHelper.INTERNAL_TABLE_NAME, null, null, null,
+                    null, null, null);
+            assertEquals(10, cursor.getColumnCount());
+            cursor.close();
+        }
+        {// check added tables
+            final Cursor cursor = db.query(TrayDBHelper.DELETED_TABLE_NAME, null, null, null,
+                    null, null, null);
+            final List<String> columnNames = Arrays.asList(cursor.getColumnNames());
+            cursor.close();
+            assertEquals(3, columnNames.size());
+            assertTrue(columnNames.contains(TrayDBHelper.SEQUENCE));
+            final Cursor changes = db.query(TrayDBHelper.CHANGES_VIEW_NAME, null, null, null,
+                    null, null, null);
+            assertTrue(Arrays.asList(changes.getColumnNames()).contains(TrayDBHelper.DELETED));
+            changes.close();
+        }
+        db.close();
+    }
+
+    private void assertV5Integrity(final TrayDBHelper trayDBHelper) {
+        final SQLiteDatabase db = trayDBHelper.getReadableDatabase();
+        for (final String table : new String[]{
+                TrayDBHelper.TABLE_NAME, TrayDBHelper.INTERNAL_TABLE_NAME}) {
+            final Cursor cursor = db.query(table, null, null, null, null, null, null);
+            final List<String> columnNames = Arrays.asList(cursor.getColumnNames());
+            cursor.close();
+            assertTrue(columnNames.contains(TrayDBHelper.EXPIRES));
+        }
+        {// the change feed can hide expired items
+            final Cursor cursor = db.query(TrayDBHelper.CHANGES_VIEW_NAME, null, null, null,
+                    null, null, null);
+            final List<String> columnNames = Arrays.asList(cursor.getColumnNames());
+            cursor.close();
+            assertTrue(columnNames.contains(TrayDBHelper.EXPIRES));
+        }
+        db.close();
+    }
+
     private void initDb(final int version) {
         initDb(version, true);
     }
@@ -144,4 +515,53 @@ public class TrayDBHelperTest extends AndroidTestCase {
         }
         return dbHelper;
     }
-}
\ No newline at end of file
+
+    private static void assertTyped(final SQLiteDatabase db, final String table,
+            final String key, final int type, final Long intValue) {
+        final Cursor cursor = db.query(table, null, TrayDBHelper.KEY + " = ?",
+                new String[]{key}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(key, type, cursor.getInt(cursor.getColumnIndex(TrayDBHelper.TYPE)));
+            final int intIndex = cursor.getColumnIndex(TrayDBHelper.INT_VALUE);
+            if (intValue == null) {
+                assertTrue(key, cursor.isNull(intIndex));
+            } else {
+                assertEquals(key, intValue.longValue(), cursor.getLong(intIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long querySequence(final SQLiteDatabase db, final String table,
+            final String key) {
+        final Cursor cursor = db.query(table, new String[]{TrayDBHelper.SEQUENCE},
+                TrayDBHelper.KEY + " = ?", new String[]{key}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void insertV2(final SQLiteDatabase db, final String table, final String key,
+            final String value) {
+        final ContentValues values = new ContentValues();
+        values.put(TrayDBHelper.MODULE, "module");
+        values.put(TrayDBHelper.KEY, key);
+        values.put(TrayDBHelper.VALUE, value);
+        assertTrue(db.insert(table, null, values) != -1);
+    }
+
+    private static String queryPragma(final SQLiteDatabase db, final String pragma) {
+        final Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
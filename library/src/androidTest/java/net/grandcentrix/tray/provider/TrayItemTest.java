@@ -26,6 +26,86 @@ import java.util.Locale;
 
 public class TrayItemTest extends TestCase {
 
+    public void testCreateTyped() throws Exception {
+        final Date date = new Date();
+        final TrayItem intItem = TrayItem.create("module", "key", null, 42, date, date);
+        assertEquals(TrayItem.TYPE_INT, intItem.type());
+        assertEquals(42, intItem.longValue());
+        assertEquals("42", intItem.value());
+        assertEquals(42, intItem.data());
+
+        final TrayItem longItem = TrayItem.create("module", "key", null, 1L << 40, date, date);
+        assertEquals(TrayItem.TYPE_LONG, longItem.type());
+        assertEquals(1L << 40, longItem.data());
+
+        final TrayItem floatItem = TrayItem.create("module", "key", null, 1.5f, date, date);
+        assertEquals(TrayItem.TYPE_FLOAT, floatItem.type());
+        assertEquals(1.5, floatItem.doubleValue());
+        assertEquals(1.5f, floatItem.data());
+
+        final TrayItem booleanItem = TrayItem.create("module", "key", null, true, date, date);
+        assertEquals(TrayItem.TYPE_BOOLEAN, booleanItem.type());
+        assertEquals(1, booleanItem.longValue());
+        assertEquals("true", booleanItem.value());
+        assertEquals(true, booleanItem.data());
+
+        final TrayItem stringItem = TrayItem.create("module", "key", null, "42", date, date);
+        assertEquals(TrayItem.TYPE_STRING, stringItem.type());
+        assertEquals("42", stringItem.data());
+
+        final TrayItem nullItem = TrayItem.create("module", "key", null, null, date, date);
+        assertEquals(TrayItem.TYPE_STRING, nullItem.type());
+        assertNull(nullItem.data());
+    }
+
+    public void testDecode() throws Exception {
+        final Date date = new Date();
+        final TrayItem item = new TrayItem("module", "key", null, "42", date, date);
+        assertEquals(42, item.decodeInt());
+        assertEquals(42, item.decodeInt());
+        assertEquals(42L, item.decodeLong());
+        assertEquals(42f, item.decodeFloat());
+
+        final TrayItem typed = TrayItem.create("module", "key", null, 1L << 40, date, date);
+        assertEquals(1L << 40, typed.decodeLong());
+        assertEquals((float) (1L << 40), typed.decodeFloat());
+
+        final TrayItem string = new TrayItem("module", "key", null, "tray", date, date);
+        NumberFormatException first = null;
+        try {
+            string.decodeInt();
+            fail();
+        } catch (NumberFormatException e) {
+            first = e;
+        }
+        try {
+            string.decodeInt();
+            fail();
+        } catch (NumberFormatException e) {
+            // memoized, not parsed again
+            assertSame(first, e);
+        }
+
+        final TrayItem nullItem = new TrayItem("module", "key", null, null, date, date);
+        try {
+            nullItem.decodeFloat();
+            fail();
+        } catch (NumberFormatException e) {
+            assertNotNull(e);
+        }
+    }
+
+    public void testDecodeOutOfIntRange() throws Exception {
+        final Date date = new Date();
+        final TrayItem item = TrayItem.create("module", "key", null, 1L << 40, date, date);
+        try {
+            item.decodeInt();
+            fail();
+        } catch (NumberFormatException e) {
+            assertTrue(e.getMessage().contains(String.valueOf(1L << 40)));
+        }
+    }
+
     public void testNullValues() throws Exception {
         final TrayItem item = new TrayItem(null, null, null, null, null, null);
         assertEquals(null, item.key());
@@ -36,6 +116,16 @@ public class TrayItemTest extends TestCase {
         assertEquals(null, item.created());
     }
 
+    public void testExpires() throws Exception {
+        final TrayItem item = new TrayItem("module", "key", null, "value", new Date(), new Date(),
+                TrayItem.TYPE_STRING, 0, 0, new Date(1000));
+        assertEquals(1000, item.expires().getTime());
+        assertFalse(item.isExpired(999));
+        assertTrue(item.isExpired(1000));
+        assertFalse(new TrayItem("module", "key", null, "value", null, null)
+                .isExpired(Long.MAX_VALUE));
+    }
+
     public void testToString() throws Exception {
         SimpleDateFormat sf = new SimpleDateFormat("HH:mm:ss dd.MM.yyyy", Locale.US);
         final Date created = new Date();
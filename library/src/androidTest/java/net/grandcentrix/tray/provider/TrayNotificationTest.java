@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import junit.framework.TestCase;
+
+import net.grandcentrix.tray.core.TrayItem;
+
+import android.net.Uri;
+
+import java.util.Arrays;
+
+public class TrayNotificationTest extends TestCase {
+
+    private static final Uri MODULE_URI
+            = Uri.parse("content://authority/preferences/module?backup=true");
+
+    public void testChanges() throws Exception {
+        final TrayNotification notification = new TrayNotification();
+        notification.put("a", TrayItem.TYPE_STRING);
+        assertEquals("a", notification.getSingleKey());
+
+        notification.put("b", TrayItem.TYPE_INT);
+        notification.remove("a");
+        notification.put("c", TrayItem.TYPE_STRING);
+        assertNull(notification.getSingleKey());
+        assertEquals(Arrays.asList("a"), Arrays.asList(
+                notification.getRemovedKeys().toArray(new String[0])));
+        assertEquals(Arrays.asList("b", "c"), Arrays.asList(
+                notification.getChangedKeys().toArray(new String[0])));
+        assertEquals(TrayItem.TYPE_INT, notification.getType("b"));
+
+        // clear drops the earlier changes
+        notification.clear();
+        notification.put("d", TrayItem.TYPE_STRING);
+        assertTrue(notification.isCleared());
+        assertTrue(notification.getRemovedKeys().isEmpty());
+        assertEquals(1, notification.getChangedKeys().size());
+        assertNull(notification.getSingleKey());
+
+        // the sequence only increases
+        final TrayNotification later = new TrayNotification();
+        later.setSequence(5);
+        notification.setSequence(7);
+        notification.merge(later);
+        assertEquals(7, notification.getSequence());
+    }
+
+    public void testParse() throws Exception {
+        final TrayNotification notification = new TrayNotification();
+        notification.remove("removed");
+        notification.put("key", TrayItem.TYPE_LONG);
+        notification.setSequence(42);
+        final Uri uri = notification.toUri(MODULE_URI);
+        assertEquals("true", uri.getQueryParameter("backup"));
+        assertEquals(MODULE_URI, TrayNotification.removeChanges(uri));
+
+        final TrayNotification parsed = TrayNotification.parse(uri);
+        assertNotNull(parsed);
+        assertFalse(parsed.isCleared());
+        assertTrue(parsed.getRemovedKeys().contains("removed"));
+        assertEquals("key", parsed.getChangedKeys().iterator().next());
+        assertEquals(TrayItem.TYPE_LONG, parsed.getType("key"));
+        assertEquals(42, parsed.getSequence());
+
+        assertNull(TrayNotification.parse(MODULE_URI));
+        assertNull(TrayNotification.parse(MODULE_URI.buildUpon()
+                .appendQueryParameter(TrayNotification.PARAM_CHANGED, "[{broken").build()));
+    }
+
+    public void testPayloadTooBig() throws Exception {
+        final TrayNotification notification = new TrayNotification();
+        final char[] key = new char[TrayNotification.MAX_PAYLOAD_LENGTH];
+        Arrays.fill(key, 'x');
+        notification.put(new String(key), TrayItem.TYPE_STRING);
+        assertEquals(MODULE_URI, notification.toUri(MODULE_URI));
+
+        notification.markUnknown();
+        notification.remove("big");
+        assertEquals(MODULE_URI, notification.toUri(MODULE_URI));
+    }
+}
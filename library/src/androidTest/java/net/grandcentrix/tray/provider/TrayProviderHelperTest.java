@@ -23,6 +23,7 @@ import net.grandcentrix.tray.core.TrayItem;
 import net.grandcentrix.tray.core.TrayStorage;
 import net.grandcentrix.tray.mock.TestTrayModulePreferences;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -32,7 +33,9 @@ import android.net.Uri;
 import android.test.IsolatedContext;
 import android.test.mock.MockContentProvider;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 
 import static org.mockito.Mockito.mock;
@@ -61,6 +64,91 @@ public class TrayProviderHelperTest extends TrayProviderTestCase {
 
     private TrayUri mTrayUri;
 
+    public void testApplyBatch() throws Exception {
+        assertTrue(mProviderHelper.persist(MODULE_A, KEY_B, STRING_B));
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(TrayProviderHelper.newPersistOperation(
+                getUri(MODULE_A, KEY_A), STRING_A, null));
+        operations.add(TrayProviderHelper.newPersistOperation(
+                getUri(MODULE_B, KEY_A), STRING_A, "migrated"));
+        operations.add(TrayProviderHelper.newRemoveOperation(getUri(MODULE_A, KEY_B)));
+        assertTrue(mProviderHelper.applyBatch(operations));
+        assertUserDatabaseSize(2);
+
+        final List<TrayItem> items = mProviderHelper.queryProviderSafe(getUri(MODULE_B, KEY_A));
+        assertEquals(1, items.size());
+        assertEquals(STRING_A, items.get(0).value());
+        assertEquals("migrated", items.get(0).migratedKey());
+
+        // nothing to do
+        assertTrue(mProviderHelper.applyBatch(new ArrayList<ContentProviderOperation>()));
+    }
+
+    public void testApplyBatchRollback() throws Exception {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(TrayProviderHelper.newPersistOperation(
+                getUri(MODULE_A, KEY_A), STRING_A, null));
+        // insert is not supported for a module uri
+        operations.add(TrayProviderHelper.newPersistOperation(getUri(MODULE_B), STRING_A, null));
+        assertFalse(mProviderHelper.applyBatch(operations));
+
+        // the first insert was rolled back
+        assertUserDatabaseSize(0);
+    }
+
+    public void testBulkPersist() throws Exception {
+        final HashMap<String, String> values = new HashMap<>();
+        values.put(KEY_A, STRING_A);
+        values.put(KEY_B, STRING_B);
+        assertTrue(mProviderHelper.bulkPersist(getUri(MODULE_A), values));
+        assertUserDatabaseSize(2);
+
+        final List<TrayItem> items = mProviderHelper.queryProviderSafe(getUri(MODULE_A, KEY_B));
+        assertEquals(1, items.size());
+        assertEquals(STRING_B, items.get(0).value());
+
+        // bulk insert is only supported for module uris
+        assertFalse(mProviderHelper.bulkPersist(getUri(MODULE_A, KEY_A), values));
+    }
+
+    public void testCall() throws Exception {
+        final Uri uri = getUri(MODULE_A, KEY_A);
+        assertNull(mProviderHelper.callGet(uri));
+        assertFalse(mProviderHelper.callContains(uri));
+
+        assertTrue(mProviderHelper.callPersist(uri, STRING_A, "migrated"));
+        assertUserDatabaseSize(1);
+        assertTrue(mProviderHelper.callContains(uri));
+        final TrayItem item = mProviderHelper.callGet(uri);
+        assertNotNull(item);
+        assertEquals(MODULE_A, item.module());
+        assertEquals(KEY_A, item.key());
+        assertEquals(STRING_A, item.value());
+        assertEquals("migrated", item.migratedKey());
+        assertEquals(mProviderHelper.queryProvider(uri).get(0).created(), item.created());
+
+        assertTrue(mProviderHelper.callPersist(uri, null, null));
+        assertNull(mProviderHelper.callGet(uri).value());
+
+        assertEquals(1, mProviderHelper.callRemove(uri));
+        assertEquals(0, mProviderHelper.callRemove(uri));
+        assertUserDatabaseSize(0);
+    }
+
+    public void testCallFails() throws Exception {
+        // call is only supported for single items
+        try {
+            mProviderHelper.callGet(getUri(MODULE_A));
+            fail();
+        } catch (TrayException e) {
+            assertTrue(e.getCause().getMessage().contains("not supported"));
+        }
+        assertFalse(mProviderHelper.callPersist(getUri(MODULE_A), STRING_A, null));
+        assertEquals(0, mProviderHelper.callRemove(mTrayUri.get()));
+        assertUserDatabaseSize(0);
+    }
+
     public void testClear() throws Exception {
         assertTrue(mProviderHelper.persist(MODULE_A, KEY_A, STRING_A));
         assertTrue(mProviderHelper.persist(MODULE_A, KEY_B, STRING_B));
@@ -204,6 +292,43 @@ public class TrayProviderHelperTest extends TrayProviderTestCase {
         assertEquals(created, item.created());
     }
 
+    public void testItemMapper() throws Exception {
+        final MatrixCursor matrixCursor = new MatrixCursor(
+                TrayContract.Preferences.PROJECTION_VALUE);
+        matrixCursor.addRow(new Object[]{"a", "1", TrayItem.TYPE_INT, 1L, null});
+        matrixCursor.addRow(new Object[]{"b", "value", TrayItem.TYPE_STRING, null, null});
+
+        final TrayProviderHelper.ItemMapper mapper
+                = new TrayProviderHelper.ItemMapper(matrixCursor);
+        assertTrue(matrixCursor.moveToFirst());
+        final TrayItem first = mapper.map(matrixCursor);
+        assertEquals("a", first.key());
+        assertEquals(TrayItem.TYPE_INT, first.type());
+        assertEquals(1, first.longValue());
+        // not part of the projection
+        assertNull(first.module());
+        assertNull(first.created());
+        assertNull(first.updateTime());
+
+        assertTrue(matrixCursor.moveToNext());
+        final TrayItem second = mapper.map(matrixCursor);
+        assertEquals("b", second.key());
+        assertEquals("value", second.value());
+        assertEquals(TrayItem.TYPE_STRING, second.type());
+        matrixCursor.close();
+    }
+
+    public void testQueryValues() throws Exception {
+        assertTrue(mProviderHelper.callPersist(getUri(MODULE_A, KEY_A), (Object) 42, null));
+        final List<TrayItem> items = mProviderHelper.queryValues(getUri(MODULE_A));
+        assertEquals(1, items.size());
+        assertEquals(KEY_A, items.get(0).key());
+        assertEquals("42", items.get(0).value());
+        assertEquals(TrayItem.TYPE_INT, items.get(0).type());
+        assertEquals(42, items.get(0).longValue());
+        assertNull(items.get(0).created());
+    }
+
     public void testGetAll() throws Exception {
         assertTrue(mProviderHelper.persist(MODULE_A, KEY_A, STRING_A));
         final List<TrayItem> all = mProviderHelper.getAll();
@@ -325,6 +450,28 @@ public class TrayProviderHelperTest extends TrayProviderTestCase {
         assertEquals(0, trayItems.size());
     }
 
+    public void testQueryKeys() throws Exception {
+        // more keys than a single query supports
+        final HashMap<String, String> values = new HashMap<>();
+        for (int i = 0; i < 1200; i++) {
+            values.put("key" + i, "value" + i);
+        }
+        assertTrue(mProviderHelper.bulkPersist(getUri(MODULE_A), values));
+        assertTrue(mProviderHelper.persist(MODULE_B, "key1", STRING_A));
+
+        final List<String> keys = new ArrayList<>(values.keySet());
+        keys.add("missing");
+        final List<TrayItem> items = mProviderHelper.queryKeys(getUri(MODULE_A), keys);
+        assertEquals(1200, items.size());
+        for (final TrayItem item : items) {
+            assertEquals(MODULE_A, item.module());
+            assertEquals(values.get(item.key()), item.value());
+        }
+
+        assertEquals(0, mProviderHelper.queryKeys(getUri(MODULE_A),
+                new ArrayList<String>()).size());
+    }
+
     public void testQueryModule() throws Exception {
         buildQueryDatabase();
         final List<TrayItem> list = mProviderHelper
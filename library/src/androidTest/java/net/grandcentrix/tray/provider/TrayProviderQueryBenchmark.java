@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayStorage;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compares the cpu time of single key lookups with escaped literals in the sql (one distinct
+ * statement per key) to lookups with bound arguments (one reused statement) as used by {@link
+ * TrayContentProvider#query(Uri, String[], String, String[], String)}.
+ * <p>
+ * Results are logged with the tag {@link #TAG}
+ */
+public class TrayProviderQueryBenchmark extends TrayProviderTestCase {
+
+    private static final String MODULE = "benchmark";
+
+    private static final int KEYS = 500;
+
+    private static final String TAG = "TrayBenchmark";
+
+    private final List<String> mKeys = new ArrayList<>();
+
+    public void testDistinctKeyLookups() throws Exception {
+        final SQLiteDatabase db = getProvider().mUserDbHelper.getReadableDatabase();
+
+        // warm up both paths
+        queryEscaped(db, "warmup");
+        queryBound(db, "warmup");
+
+        long start = Debug.threadCpuTimeNanos();
+        for (final String key : mKeys) {
+            assertEquals(1, queryEscaped(db, key));
+        }
+        final long escaped = Debug.threadCpuTimeNanos() - start;
+
+        start = Debug.threadCpuTimeNanos();
+        for (final String key : mKeys) {
+            assertEquals(1, queryBound(db, key));
+        }
+        final long bound = Debug.threadCpuTimeNanos() - start;
+
+        start = Debug.threadCpuTimeNanos();
+        final TrayUri trayUri = new TrayUri(getProviderMockContext());
+        for (final String key : mKeys) {
+            final Uri uri = trayUri.builder()
+                    .setType(TrayStorage.Type.USER)
+                    .setModule(MODULE)
+                    .setKey(key)
+                    .build();
+            final Cursor cursor = getProvider().query(uri, null, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+        }
+        final long provider = Debug.threadCpuTimeNanos() - start;
+
+        Log.i(TAG, "cpu time per lookup of " + KEYS + " distinct keys: "
+                + "escaped literals " + escaped / KEYS / 1000 + "us, "
+                + "bound arguments " + bound / KEYS / 1000 + "us, "
+                + "provider query " + provider / KEYS / 1000 + "us");
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final TrayProviderHelper helper = new TrayProviderHelper(getProviderMockContext());
+        final TrayUri trayUri = new TrayUri(getProviderMockContext());
+        final HashMap<String, String> values = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            final String key = "key" + i;
+            mKeys.add(key);
+            values.put(key, "value" + i);
+        }
+        values.put("warmup", "value");
+        assertTrue(helper.bulkPersist(trayUri.builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule(MODULE)
+                .build(), values));
+    }
+
+    /**
+     * bound arguments, the sql is the same for every key
+     */
+    private static int queryBound(final SQLiteDatabase db, final String key) {
+        final Cursor cursor = db.query(TrayDBHelper.TABLE_NAME, null,
+                "(" + TrayContract.Preferences.Columns.KEY + " = ?) AND ("
+                        + TrayContract.Preferences.Columns.MODULE + " = ?)",
+                new String[]{key, MODULE}, null, null, null);
+        final int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /**
+     * the previous implementation, the key is part of the sql
+     */
+    private static int queryEscaped(final SQLiteDatabase db, final String key) {
+        final SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.appendWhere(TrayContract.Preferences.Columns.KEY + " = "
+                + DatabaseUtils.sqlEscapeString(key));
+        builder.appendWhere(" AND ");
+        builder.appendWhere(TrayContract.Preferences.Columns.MODULE + " = "
+                + DatabaseUtils.sqlEscapeString(MODULE));
+        builder.setTables(TrayDBHelper.TABLE_NAME);
+        final Cursor cursor = builder.query(db, null, null, null, null, null, null);
+        final int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
@@ -17,16 +17,26 @@
 package net.grandcentrix.tray.provider;
 
 import android.content.ContentValues;
+import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 
+import net.grandcentrix.tray.core.TrayItem;
 import net.grandcentrix.tray.core.TrayStorage;
 
+import org.mockito.ArgumentCaptor;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class TrayProviderTest extends TrayProviderTestCase {
@@ -43,6 +53,72 @@ public class TrayProviderTest extends TrayProviderTestCase {
         return provider;
     }
 
+    public void testAnnex() throws Exception {
+        final TrayContentProvider provider = spy(startupProvider());
+        doNothing().when(provider).publish(any(Uri.class), any(TrayNotification.class));
+
+        final Uri source = mTrayUri.builder()
+                .setModule("old").setType(TrayStorage.Type.USER).build();
+        final Uri sourceVersion = mTrayUri.builder().setInternal(true)
+                .setModule("old").setType(TrayStorage.Type.USER).setKey("version").build();
+        final Uri target = mTrayUri.builder()
+                .setModule("new").setType(TrayStorage.Type.DEVICE).build();
+        final ContentValues typed = new ContentValues();
+        typed.put(TrayContract.Preferences.Columns.VALUE, "1");
+        typed.put(TrayContract.Preferences.Columns.TYPE, TrayItem.TYPE_INT);
+        typed.put(TrayContract.Preferences.Columns.INT_VALUE, 1);
+        assertNotNull(provider.insert(source.buildUpon().appendPath("a").build(), typed));
+        final ContentValues text = new ContentValues();
+        text.put(TrayContract.Preferences.Columns.VALUE, "text");
+        assertNotNull(provider.insert(source.buildUpon().appendPath("b").build(), text));
+        assertNotNull(provider.insert(sourceVersion, text));
+        final ContentValues existing = new ContentValues();
+        existing.put(TrayContract.Preferences.Columns.VALUE, "existing");
+        assertNotNull(provider.insert(target.buildUpon().appendPath("b").build(), existing));
+        verify(provider, times(4)).publish(any(Uri.class), any(TrayNotification.class));
+
+        assertEquals(2, provider.annex(target, source));
+
+        // one notification per changed module: source, version of the source and target
+        verify(provider, times(7)).publish(any(Uri.class), any(TrayNotification.class));
+        assertEquals(0, provider.query(source, null, null, null, null).getCount());
+        assertEquals(0, provider.query(sourceVersion, null, null, null, null).getCount());
+        final Cursor cursor = provider.query(target, null, null, null,
+                TrayContract.Preferences.Columns.KEY);
+        assertEquals(2, cursor.getCount());
+        final TrayProviderHelper.ItemMapper mapper = new TrayProviderHelper.ItemMapper(cursor);
+        assertTrue(cursor.moveToNext());
+        final TrayItem a = mapper.map(cursor);
+        assertEquals(TrayItem.TYPE_INT, a.type());
+        assertEquals(1, a.longValue());
+        assertTrue(cursor.moveToNext());
+        assertEquals("text", mapper.map(cursor).value());
+        cursor.close();
+
+        // same module, nothing to move
+        assertEquals(0, provider.annex(target, target));
+
+        // a source without type contains the target, the version of the target is kept
+        final Uri targetVersion = mTrayUri.builder().setInternal(true)
+                .setModule("new").setType(TrayStorage.Type.DEVICE).setKey("version").build();
+        assertNotNull(provider.insert(targetVersion, text));
+        assertEquals(2, provider.annex(target, mTrayUri.builder().setModule("new").build()));
+        final Cursor version = provider.query(targetVersion, null, null, null, null);
+        assertEquals(1, version.getCount());
+        version.close();
+        final Cursor items = provider.query(target, null, null, null, null);
+        assertEquals(2, items.getCount());
+        items.close();
+
+        // the target requires a type
+        try {
+            provider.annex(mTrayUri.builder().setModule("new").build(), source);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("not supported"));
+        }
+    }
+
     public void testDelete() throws Exception {
 
         final Uri[] workingUris = {
@@ -67,6 +143,51 @@ public class TrayProviderTest extends TrayProviderTestCase {
         }
     }
 
+    public void testExpired() throws Exception {
+        final TrayContentProvider provider = startupProvider();
+        final Uri module = mTrayUri.builder()
+                .setModule("ttl").setType(TrayStorage.Type.USER).build();
+        final ContentValues forever = new ContentValues();
+        forever.put(TrayContract.Preferences.Columns.VALUE, "forever");
+        assertNotNull(provider.insert(module.buildUpon().appendPath("forever").build(), forever));
+        final ContentValues valid = new ContentValues();
+        valid.put(TrayContract.Preferences.Columns.VALUE, "valid");
+        valid.put(TrayContract.Preferences.Columns.EXPIRES,
+                System.currentTimeMillis() + 60000);
+        assertNotNull(provider.insert(module.buildUpon().appendPath("valid").build(), valid));
+        final ContentValues expired = new ContentValues();
+        expired.put(TrayContract.Preferences.Columns.VALUE, "expired");
+        expired.put(TrayContract.Preferences.Columns.EXPIRES, System.currentTimeMillis() - 1);
+        assertNotNull(provider.insert(module.buildUpon().appendPath("expired").build(), expired));
+
+        // hidden before the compaction deleted it
+        final Cursor cursor = provider.query(module, null, null, null,
+                TrayContract.Preferences.Columns.KEY);
+        assertEquals(2, cursor.getCount());
+        final TrayProviderHelper.ItemMapper mapper = new TrayProviderHelper.ItemMapper(cursor);
+        assertTrue(cursor.moveToNext());
+        assertNull(mapper.map(cursor).expires());
+        assertTrue(cursor.moveToNext());
+        assertNotNull(mapper.map(cursor).expires());
+        cursor.close();
+        assertEquals(0, provider.query(module.buildUpon().appendPath("expired").build(), null,
+                null, null, null).getCount());
+        final Cursor changes = provider.query(mTrayUri.getChanges().buildUpon()
+                .appendPath("ttl").appendQueryParameter("backup", "true").build(), null, null,
+                null, null);
+        // neither listed as item nor as tombstone when the scheduled compaction deleted it
+        assertEquals(2, changes.getCount());
+        changes.close();
+
+        // the compaction was scheduled by the insert, an explicit one deletes the rest
+        provider.compactExpired();
+        final Cursor rows = provider.mUserDbHelper.getReadableDatabase().query(
+                TrayDBHelper.TABLE_NAME, null, null, null, null, null, null);
+        assertEquals(2, rows.getCount());
+        rows.close();
+        provider.shutdown();
+    }
+
     public void testGetTable() throws Exception {
         final TrayContentProvider trayContentProvider = new TrayContentProvider();
         assertEquals(TrayDBHelper.TABLE_NAME,
@@ -155,6 +276,48 @@ public class TrayProviderTest extends TrayProviderTestCase {
 
     }
 
+    public void testMetaDataOfAttachedInfo() throws Exception {
+        final ProviderInfo info = new ProviderInfo();
+        info.authority = MockProvider.AUTHORITY;
+        info.metaData = new Bundle();
+        info.metaData.putInt(TrayContentProvider.META_DATA_NOTIFICATION_DELAY, 20);
+        final TrayContentProvider provider = new TrayContentProvider();
+        provider.attachInfo(getProviderMockContext(), info);
+        assertEquals(20, provider.mNotificationDelay);
+        provider.shutdown();
+    }
+
+    public void testNotificationDelay() throws Exception {
+        final TrayContentProvider provider = spy(new TrayContentProvider());
+        provider.mUserDbHelper = new TrayDBHelper(getProviderMockContext(), true);
+        provider.mDeviceDbHelper = new TrayDBHelper(getProviderMockContext(), false);
+        doNothing().when(provider).publish(any(Uri.class), any(TrayNotification.class));
+        provider.setNotificationDelay(50);
+
+        final Uri a = mTrayUri.builder().setModule("module").setKey("a").build();
+        final Uri b = mTrayUri.builder().setModule("module").setKey("b").build();
+        final Uri other = mTrayUri.builder().setModule("other").setKey("a").build();
+        assertNotNull(provider.insert(a, new ContentValues()));
+        assertNotNull(provider.insert(b, new ContentValues()));
+        assertNotNull(provider.insert(other, new ContentValues()));
+        assertEquals(1, provider.delete(a, null, null));
+        verify(provider, never()).publish(any(Uri.class), any(TrayNotification.class));
+
+        // one notification per module after the delay
+        final ArgumentCaptor<TrayNotification> captor
+                = ArgumentCaptor.forClass(TrayNotification.class);
+        verify(provider, timeout(1000).times(2)).publish(any(Uri.class), captor.capture());
+        final TrayNotification module = captor.getAllValues().get(0);
+        assertEquals(1, module.getChangedKeys().size());
+        assertEquals("b", module.getChangedKeys().iterator().next());
+        assertTrue(module.getRemovedKeys().contains("a"));
+
+        // disabling the delay notifies immediately
+        provider.setNotificationDelay(0);
+        assertNotNull(provider.insert(a, new ContentValues()));
+        verify(provider, times(3)).publish(any(Uri.class), any(TrayNotification.class));
+    }
+
     public void testQueryUnregisteredProvider() throws Exception {
 
         final TrayContentProvider provider = spy(new TrayContentProvider());
@@ -244,11 +407,8 @@ public class TrayProviderTest extends TrayProviderTestCase {
         final TrayContentProvider spy = spy(trayContentProvider);
 
         final Uri mockInsertUri = mTrayUri.builder().setModule("module").setKey("key").build();
-        doReturn(null).when(spy).getWritableDatabase(mockInsertUri);
-
         doReturn(errorCode).when(spy)
-                .insertOrUpdate(any(SQLiteDatabase.class), anyString(), anyString(),
-                        any(String[].class), any(ContentValues.class), any(String[].class));
+                .upsert(any(TrayDBHelper.class), anyString(), any(ContentValues.class));
         final Uri insert = spy.insert(mockInsertUri, new ContentValues());
         assertNull(insert);
     }
@@ -18,9 +18,11 @@ package net.grandcentrix.tray.provider;
 
 import net.grandcentrix.tray.BuildConfig;
 import net.grandcentrix.tray.core.TrayStorage;
+import net.grandcentrix.tray.core.VersionCheckRegistry;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -116,6 +118,19 @@ public abstract class TrayProviderTestCase extends ProviderTestCase2<TrayContent
         @Override
         public PackageManager getPackageManager() {
             return new MockPackageManager() {
+                @Override
+                public ProviderInfo getProviderInfo(final ComponentName component,
+                        final int flags) throws NameNotFoundException {
+                    if (mProviderInfos != null) {
+                        for (final ProviderInfo info : mProviderInfos) {
+                            if (component.getClassName().equals(info.name)) {
+                                return info;
+                            }
+                        }
+                    }
+                    throw new NameNotFoundException(component.toString());
+                }
+
                 @Override
                 public List<ProviderInfo> queryContentProviders(final String processName,
                         final int uid, final int flags) {
@@ -223,6 +238,7 @@ public abstract class TrayProviderTestCase extends ProviderTestCase2<TrayContent
     private void cleanupProvider() {
         TrayContract.sAuthority = MockProvider.AUTHORITY;
         TrayContentProvider.setAuthority(MockProvider.AUTHORITY);
+        VersionCheckRegistry.clear();
         try {
             getMockContentResolver().delete(MockProvider.getUserContentUri(), null, null);
             getMockContentResolver().delete(MockProvider.getDeviceContentUri(), null, null);
@@ -18,7 +18,10 @@ package net.grandcentrix.tray;
 
 import net.grandcentrix.tray.core.AbstractTrayPreference;
 import net.grandcentrix.tray.core.Preferences;
+import net.grandcentrix.tray.core.TrayChanges;
 import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayStorage;
+import net.grandcentrix.tray.provider.TrayDBHelper;
 import net.grandcentrix.tray.provider.TrayProviderHelper;
 
 import android.content.Context;
@@ -65,6 +68,18 @@ public class Tray {
         mProviderHelper = new TrayProviderHelper(context);
     }
 
+    /**
+     * writes the content of the write-ahead log back into the databases and truncates the log.
+     * Only useful when the write-ahead log was enabled with the meta-data {@link
+     * net.grandcentrix.tray.provider.TrayContentProvider#META_DATA_WRITE_AHEAD_LOGGING}, i.e.
+     * before a backup
+     *
+     * @return true when the checkpoint completed
+     */
+    public boolean checkpoint() {
+        return mProviderHelper.checkpoint(TrayDBHelper.CHECKPOINT_TRUNCATE);
+    }
+
     /**
      * clears <b>all</b> saved preferences. Module independent. <b>Erases everything</b>.
      *
@@ -93,6 +108,28 @@ public class Tray {
         return mProviderHelper.getAll();
     }
 
+    /**
+     * Reads what changed in all modules of a database since the last call. The sequence numbers
+     * of both databases are independent, track them separately.
+     *
+     * @param type     {@link TrayStorage.Type#USER} or {@link TrayStorage.Type#DEVICE}
+     * @param sequence the {@link TrayChanges#getSequence()} of the last call, 0 for all items
+     * @return the changed and removed items
+     */
+    public TrayChanges getChangesSince(final TrayStorage.Type type, final long sequence) {
+        return mProviderHelper.getChangesSince(type, sequence);
+    }
+
+    /**
+     * Counts the preferences saved in all modules without reading them. Use {@link
+     * Preferences#size()} and {@link Preferences#keys()} to inspect a single module.
+     *
+     * @return the number of all preferences
+     */
+    public int size() {
+        return mProviderHelper.count();
+    }
+
     /**
      * clears <b>all</b> saved preferences. Module independent. <b>Erases everything</b>.
      *
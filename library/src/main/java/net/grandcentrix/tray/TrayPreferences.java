@@ -18,6 +18,7 @@ package net.grandcentrix.tray;
 
 import net.grandcentrix.tray.core.AbstractTrayPreference;
 import net.grandcentrix.tray.core.Preferences;
+import net.grandcentrix.tray.core.TrayChanges;
 import net.grandcentrix.tray.core.TrayStorage;
 import net.grandcentrix.tray.provider.ContentProviderStorage;
 
@@ -40,7 +41,27 @@ public class TrayPreferences extends AbstractTrayPreference<ContentProviderStora
 
     public TrayPreferences(@NonNull final Context context, @NonNull final String module,
             final int version, final TrayStorage.Type type) {
-        super(new ContentProviderStorage(context, module, type), version);
+        this(context, module, version, type, false);
+    }
+
+    /**
+     * @param deferVersionCheck true doesn't check the version in the constructor, it doesn't
+     *                          block on the provider when called on the main thread. Call
+     *                          {@link #startVersionCheck()} afterwards to check it on a background
+     *                          thread. See {@link Preferences#Preferences(net.grandcentrix.tray.core.PreferenceStorage,
+     *                          int, boolean)}
+     */
+    public TrayPreferences(@NonNull final Context context, @NonNull final String module,
+            final int version, final TrayStorage.Type type, final boolean deferVersionCheck) {
+        this(new ContentProviderStorage(context, module, type), version, deferVersionCheck);
+    }
+
+    /**
+     * all instances of the same module and type share the version in the provider
+     */
+    private TrayPreferences(@NonNull final ContentProviderStorage storage, final int version,
+            final boolean deferVersionCheck) {
+        super(storage, version, deferVersionCheck, storage.getVersionUri().toString());
     }
 
     public TrayPreferences(@NonNull final Context context, @NonNull final String module,
@@ -56,6 +77,31 @@ public class TrayPreferences extends AbstractTrayPreference<ContentProviderStora
         annexModule(oldStorageName, TrayStorage.Type.UNDEFINED);
     }
 
+    /**
+     * Reads what changed in this module since the last call. Use it to update a mirror of the
+     * module, i.e. on a server, without reading all items with {@link #getAll()}.
+     *
+     * @param sequence the {@link TrayChanges#getSequence()} of the last call, 0 for all items
+     * @return the changed and removed items
+     * @see ContentProviderStorage#getChangesSince(long)
+     */
+    @NonNull
+    public TrayChanges getChangesSince(final long sequence) {
+        return getStorage().getChangesSince(sequence);
+    }
+
+    /**
+     * Enables an in memory cache for this module which makes reads of the same data as cheap as
+     * reading from a {@link java.util.HashMap}. Keep the instance with the enabled cache as long
+     * as possible, every instance has its own cache.
+     *
+     * @param enabled true to enable the cache, false to disable it
+     * @see ContentProviderStorage#setCacheEnabled(boolean)
+     */
+    public void setCacheEnabled(final boolean enabled) {
+        getStorage().setCacheEnabled(enabled);
+    }
+
     protected Context getContext() {
         return getStorage().getContext();
     }
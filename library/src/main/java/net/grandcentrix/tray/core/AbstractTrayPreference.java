@@ -18,6 +18,7 @@ package net.grandcentrix.tray.core;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 
 /**
  * Modular implementation of a {@link Preferences} which allows access to a {@link TrayStorage}.
@@ -31,6 +32,16 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
         super(storage, version);
     }
 
+    protected AbstractTrayPreference(@NonNull final T storage, final int version,
+            final boolean deferVersionCheck) {
+        super(storage, version, deferVersionCheck);
+    }
+
+    protected AbstractTrayPreference(@NonNull final T storage, final int version,
+            final boolean deferVersionCheck, @Nullable final String versionCheckId) {
+        super(storage, version, deferVersionCheck, versionCheckId);
+    }
+
     @Override
     public boolean getBoolean(@NonNull final String key, final boolean defaultValue) {
         try {
@@ -42,8 +53,11 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
 
     @Override
     public boolean getBoolean(@NonNull final String key) throws ItemNotFoundException {
-        final String value = getString(key);
-        return Boolean.parseBoolean(value);
+        final TrayItem item = getItem(key);
+        if (item.type() == TrayItem.TYPE_BOOLEAN) {
+            return item.longValue() != 0;
+        }
+        return Boolean.parseBoolean(item.value());
     }
 
     @Override
@@ -57,10 +71,10 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
 
     @Override
     public float getFloat(@NonNull final String key) throws ItemNotFoundException {
-        final String value = getString(key);
-        throwForNullValue(value, Float.class, key);
+        final TrayItem item = getItem(key);
+        throwForNullValue(item.value(), Float.class, key);
         try {
-            return Float.parseFloat(value);
+            return item.decodeFloat();
         } catch (NumberFormatException e) {
             throw new WrongTypeException(e);
         }
@@ -77,10 +91,10 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
 
     @Override
     public int getInt(@NonNull final String key) throws ItemNotFoundException {
-        final String value = getString(key);
-        throwForNullValue(value, Integer.class, key);
+        final TrayItem item = getItem(key);
+        throwForNullValue(item.value(), Integer.class, key);
         try {
-            return Integer.parseInt(value);
+            return item.decodeInt();
         } catch (NumberFormatException e) {
             throw new WrongTypeException(e);
         }
@@ -97,10 +111,10 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
 
     @Override
     public long getLong(@NonNull final String key) throws ItemNotFoundException {
-        final String value = getString(key);
-        throwForNullValue(value, Long.class, key);
+        final TrayItem item = getItem(key);
+        throwForNullValue(item.value(), Long.class, key);
         try {
-            return Long.parseLong(value);
+            return item.decodeLong();
         } catch (NumberFormatException e) {
             throw new WrongTypeException(e);
         }
@@ -115,11 +129,7 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
 
     @Override
     public String getString(@NonNull final String key) throws ItemNotFoundException {
-        final TrayItem pref = getPref(key);
-        if (pref == null) {
-            throw new ItemNotFoundException("Value for Key <%s> not found", key);
-        }
-        return pref.value();
+        return getItem(key).value();
     }
 
     @Override
@@ -132,6 +142,49 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
         }
     }
 
+    /**
+     * saves a value which gets removed after the ttl, i.e. for tokens or cached data. Reads
+     * don't find the item after it expired, the storage deletes it in the background. Saving the
+     * key again without a ttl keeps it forever. Storages without support for a ttl save the
+     * value forever, see {@link TrayStorage#putWithTtl(String, Object, long)}.
+     *
+     * @param key   where to save
+     * @param value what to save
+     * @param ttl   time to live in ms, greater than 0
+     * @return whether the put was successful
+     */
+    public boolean put(@NonNull final String key, @Nullable final String value, final long ttl) {
+        return putWithTtl(key, value, ttl);
+    }
+
+    /**
+     * same as {@link #put(String, String, long)} for an int
+     */
+    public boolean put(@NonNull final String key, final int value, final long ttl) {
+        return putWithTtl(key, value, ttl);
+    }
+
+    /**
+     * same as {@link #put(String, String, long)} for a float
+     */
+    public boolean put(@NonNull final String key, final float value, final long ttl) {
+        return putWithTtl(key, value, ttl);
+    }
+
+    /**
+     * same as {@link #put(String, String, long)} for a long
+     */
+    public boolean put(@NonNull final String key, final long value, final long ttl) {
+        return putWithTtl(key, value, ttl);
+    }
+
+    /**
+     * same as {@link #put(String, String, long)} for a boolean
+     */
+    public boolean put(@NonNull final String key, final boolean value, final long ttl) {
+        return putWithTtl(key, value, ttl);
+    }
+
     /**
      * registers a listener which gets called when a tray preference is changed, added, or removed.
      * This may be called even if a preference is set to its existing value.
@@ -155,6 +208,48 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
         getStorage().registerOnTrayPreferenceChangeListener(listener);
     }
 
+    /**
+     * same as {@link #registerOnTrayPreferenceChangeListener(OnTrayPreferenceChangeListener)} but
+     * the listener only gets called when the item with the given key changes. Changes of other
+     * items don't wake the listener.
+     *
+     * @param listener the listener that will run.
+     * @param key      the key of the observed item
+     * @see #unregisterOnTrayPreferenceChangeListener(OnTrayPreferenceChangeListener)
+     */
+    public void registerOnTrayPreferenceChangeListener(
+            @NonNull final OnTrayPreferenceChangeListener listener, @NonNull final String key) {
+        getStorage().registerOnTrayPreferenceChangeListener(listener, key);
+    }
+
+    /**
+     * same as {@link #registerOnTrayPreferenceChangeListener(OnTrayPreferenceChangeListener)} but
+     * the listener only gets called when items with keys starting with the prefix change
+     *
+     * @param listener  the listener that will run.
+     * @param keyPrefix the prefix of the keys of the observed items
+     * @see #unregisterOnTrayPreferenceChangeListener(OnTrayPreferenceChangeListener)
+     */
+    public void registerOnTrayPreferenceChangeListenerForPrefix(
+            @NonNull final OnTrayPreferenceChangeListener listener,
+            @NonNull final String keyPrefix) {
+        getStorage().registerOnTrayPreferenceChangeListenerForPrefix(listener, keyPrefix);
+    }
+
+    private boolean putWithTtl(@NonNull final String key, @Nullable final Object value,
+            final long ttl) {
+        if (!isVersionChangeChecked()) {
+            return false;
+        }
+        if (TextUtils.isEmpty(key)) {
+            throw new IllegalArgumentException("Preference key value cannot be empty.");
+        }
+        if (TrayLog.DEBUG) {
+            TrayLog.v("put '%s=%s' with a ttl of %sms into %s", key, value, ttl, this);
+        }
+        return getStorage().putWithTtl(key, value, ttl);
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "(@" + Integer.toHexString(hashCode()) + "){"
@@ -183,7 +278,20 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
      */
     protected void annex(final T oldStorage) {
         getStorage().annex(oldStorage);
-        TrayLog.v("annexed " + oldStorage + " to " + this);
+        TrayLog.v("annexed %s to %s", oldStorage, this);
+    }
+
+    /**
+     * @return the item, never null
+     * @throws ItemNotFoundException when no item with the key exists
+     */
+    @NonNull
+    private TrayItem getItem(@NonNull final String key) throws ItemNotFoundException {
+        final TrayItem pref = getPref(key);
+        if (pref == null) {
+            throw new ItemNotFoundException("Value for Key <%s> not found", key);
+        }
+        return pref;
     }
 
     /**
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A single change of a {@link PreferenceEditor} which gets applied together with all other
+ * changes of the editor by {@link PreferenceStorage#commit(java.util.Collection)}
+ */
+public final class EditOperation {
+
+    public enum Action {
+        /**
+         * saves {@link #getData()} for {@link #getKey()}
+         */
+        PUT,
+        /**
+         * removes the item for {@link #getKey()}
+         */
+        REMOVE
+    }
+
+    @NonNull
+    private final Action mAction;
+
+    @Nullable
+    private final Object mData;
+
+    @NonNull
+    private final String mKey;
+
+    @Nullable
+    private final String mMigrationKey;
+
+    private EditOperation(@NonNull final Action action, @NonNull final String key,
+            @Nullable final String migrationKey, @Nullable final Object data) {
+        mAction = action;
+        mKey = key;
+        mMigrationKey = migrationKey;
+        mData = data;
+    }
+
+    /**
+     * @param key          where to save
+     * @param migrationKey where the data came from, may be {@code null}
+     * @param data         what to save
+     * @return an operation saving the data
+     */
+    public static EditOperation put(@NonNull final String key,
+            @Nullable final String migrationKey, @Nullable final Object data) {
+        return new EditOperation(Action.PUT, key, migrationKey, data);
+    }
+
+    /**
+     * @param key the key of the item to remove
+     * @return an operation removing the item
+     */
+    public static EditOperation remove(@NonNull final String key) {
+        return new EditOperation(Action.REMOVE, key, null, null);
+    }
+
+    @NonNull
+    public Action getAction() {
+        return mAction;
+    }
+
+    @Nullable
+    public Object getData() {
+        return mData;
+    }
+
+    @NonNull
+    public String getKey() {
+        return mKey;
+    }
+
+    @Nullable
+    public String getMigrationKey() {
+        return mMigrationKey;
+    }
+
+    @Override
+    public String toString() {
+        return "EditOperation{" +
+                "action=" + mAction +
+                ", key='" + mKey + '\'' +
+                ", migrationKey='" + mMigrationKey + '\'' +
+                ", data='" + mData + '\'' +
+                '}';
+    }
+}
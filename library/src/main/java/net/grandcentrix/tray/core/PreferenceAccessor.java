@@ -20,9 +20,12 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Access interface to interact with preferences.
+ * Access interface to interact with preferences. Extend {@link Preferences} instead of
+ * implementing this interface directly, it implements the methods added in later versions.
  * <p>
  * Created by pascalwelsch on 11/20/14.
  */
@@ -37,7 +40,7 @@ public interface PreferenceAccessor<T> {
     boolean clear();
 
     /**
-     * checks if the preference has a value stored for the given key
+     * checks if the preference has a value stored for the given key. Doesn't read the value
      *
      * @param key the key to map the value
      * @return true when a value is stored for the key
@@ -62,15 +65,6 @@ public interface PreferenceAccessor<T> {
      */
     boolean getBoolean(@NonNull final String key) throws ItemNotFoundException;
 
-    // TODO for version 1.1
-    // boolean contains(String key);
-
-    // TODO for version 1.1
-    // List<String> keys();
-
-    // TODO for version 1.1
-    // int getSize();
-
     /**
      * returns true if <code>true</code> or String "true" is saved. All other values will be parsed
      * as <code>false</code>. If no entry for the key is found the param defaultValue is used.
@@ -145,6 +139,16 @@ public interface PreferenceAccessor<T> {
     @Nullable
     T getPref(@NonNull final String key);
 
+    /**
+     * Gets multiple preferences at once. Faster than multiple calls to {@link #getPref(String)}
+     *
+     * @param keys desired keys
+     * @return the found preferences mapped by key. Keys without a preference are not part of the
+     * map
+     */
+    @NonNull
+    Map<String, T> getMany(@NonNull final String... keys);
+
     /**
      * Gets the String value of any data saved
      *
@@ -165,6 +169,12 @@ public interface PreferenceAccessor<T> {
     @Nullable
     String getString(@NonNull final String key, @Nullable final String defaultValue);
 
+    /**
+     * @return the keys of all data stored in the preference without reading the values
+     */
+    @NonNull
+    List<String> keys();
+
     /**
      * saves a {@link String} mapped to param key. String is the only data type which allows
      * {@code null} as param value
@@ -224,6 +234,11 @@ public interface PreferenceAccessor<T> {
      */
     boolean remove(@NonNull final String key);
 
+    /**
+     * @return the number of items stored in the preference, counted without reading them
+     */
+    int size();
+
     /**
      * clear the data inside the preference and all evidence this preference has ever existed
      * <p>
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Collects multiple changes of a {@link Preferences} and writes them all at once with {@link
+ * #commit()} or asynchronously with {@link #apply()}. Get an instance with {@link
+ * Preferences#edit()}.
+ * <pre><code>
+ * preferences.edit()
+ *         .put("a", 1)
+ *         .put("b", "text")
+ *         .remove("c")
+ *         .commit();
+ * </code></pre>
+ * Changing the same key multiple times results in a single change, the last one wins.
+ * <p>
+ * The {@link net.grandcentrix.tray.provider.ContentProviderStorage} writes all changes in a
+ * single transaction. Either all changes are saved or none.
+ */
+public class PreferenceEditor {
+
+    private final LinkedHashMap<String, EditOperation> mOperations = new LinkedHashMap<>();
+
+    private final Preferences<?, ?> mPreferences;
+
+    /*package*/ PreferenceEditor(@NonNull final Preferences<?, ?> preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * writes all collected changes asynchronously and resets this editor. Reads in the same
+     * process return the changed values immediately.
+     * <p>
+     * Use this for fire and forget writes. Multiple changes of the same item which are applied
+     * shortly after each other are written only once. Changes which are not written yet are lost
+     * when the process dies. Use {@link #commit()} when the result matters.
+     */
+    public void apply() {
+        final List<EditOperation> operations = drain();
+        if (!operations.isEmpty()) {
+            mPreferences.apply(operations);
+        }
+    }
+
+    /**
+     * writes all collected changes to the storage and resets this editor
+     *
+     * @return whether all changes were saved
+     */
+    public boolean commit() {
+        final List<EditOperation> operations = drain();
+        if (operations.isEmpty()) {
+            return true;
+        }
+        return mPreferences.commit(operations);
+    }
+
+    /**
+     * @return the number of collected changes which will be written with {@link #commit()}
+     */
+    public int getSize() {
+        synchronized (mOperations) {
+            return mOperations.size();
+        }
+    }
+
+    /**
+     * @see PreferenceAccessor#put(String, String)
+     */
+    public PreferenceEditor put(@NonNull final String key, @Nullable final String value) {
+        return putData(key, value);
+    }
+
+    /**
+     * @see PreferenceAccessor#put(String, int)
+     */
+    public PreferenceEditor put(@NonNull final String key, final int value) {
+        return putData(key, value);
+    }
+
+    /**
+     * @see PreferenceAccessor#put(String, float)
+     */
+    public PreferenceEditor put(@NonNull final String key, final float value) {
+        return putData(key, value);
+    }
+
+    /**
+     * @see PreferenceAccessor#put(String, long)
+     */
+    public PreferenceEditor put(@NonNull final String key, final long value) {
+        return putData(key, value);
+    }
+
+    /**
+     * @see PreferenceAccessor#put(String, boolean)
+     */
+    public PreferenceEditor put(@NonNull final String key, final boolean value) {
+        return putData(key, value);
+    }
+
+    /**
+     * @see PreferenceAccessor#remove(String)
+     */
+    public PreferenceEditor remove(@NonNull final String key) {
+        return add(EditOperation.remove(key));
+    }
+
+    @Override
+    public String toString() {
+        return "PreferenceEditor{" + getSize() + " changes for " + mPreferences + "}";
+    }
+
+    private PreferenceEditor add(@NonNull final EditOperation operation) {
+        synchronized (mOperations) {
+            // remove first to keep the order of the last change
+            mOperations.remove(operation.getKey());
+            mOperations.put(operation.getKey(), operation);
+        }
+        return this;
+    }
+
+    @NonNull
+    private List<EditOperation> drain() {
+        synchronized (mOperations) {
+            final List<EditOperation> operations = new ArrayList<>(mOperations.values());
+            mOperations.clear();
+            return operations;
+        }
+    }
+
+    private PreferenceEditor putData(final String key, final Object value) {
+        if (TextUtils.isEmpty(key)) {
+            throw new IllegalArgumentException("Preference key value cannot be empty.");
+        }
+        return add(EditOperation.put(key, null, value));
+    }
+}
@@ -20,9 +20,12 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
- * basic functionality for every storage implementation
+ * basic functionality for every storage implementation. Extend {@link TrayStorage} instead of
+ * implementing this interface directly, it implements the methods added in later versions.
  * <p>
  * Created by pascalwelsch on 11/20/14.
  */
@@ -38,6 +41,31 @@ public interface PreferenceStorage<T> {
      */
     boolean clear();
 
+    /**
+     * applies multiple changes asynchronously. Reads of the same process return the changed data
+     * immediately, even before the changes are written.
+     *
+     * @param operations the changes to apply, at most one per key
+     * @see PreferenceEditor#apply()
+     */
+    void apply(@NonNull final Collection<EditOperation> operations);
+
+    /**
+     * applies multiple changes at once. Implementations should apply them atomically when
+     * possible.
+     *
+     * @param operations the changes to apply, at most one per key
+     * @return whether all changes were applied
+     * @see PreferenceEditor
+     */
+    boolean commit(@NonNull final Collection<EditOperation> operations);
+
+    /**
+     * @param key mapping key for the stored object
+     * @return true when an item is stored for the key
+     */
+    boolean contains(@NonNull final String key);
+
     /**
      * @param key mapping key for the stored object
      * @return the corresponding Item object {@link T} for the given key
@@ -51,6 +79,15 @@ public interface PreferenceStorage<T> {
     @NonNull
     Collection<T> getAll();
 
+    /**
+     * reads multiple items at once
+     *
+     * @param keys mapping keys of the stored objects
+     * @return the found items mapped by key. Keys without an item are not part of the map
+     */
+    @NonNull
+    Map<String, T> getMany(@NonNull final String... keys);
+
     /**
      * @return the current version of this storage
      * @see #setVersion(int)
@@ -58,6 +95,12 @@ public interface PreferenceStorage<T> {
      */
     int getVersion() throws TrayException;
 
+    /**
+     * @return the keys of all items saved in this storage
+     */
+    @NonNull
+    List<String> keys();
+
     /**
      * stores a data item.
      *
@@ -95,6 +138,11 @@ public interface PreferenceStorage<T> {
      */
     boolean remove(@NonNull final String key);
 
+    /**
+     * @return the number of items saved in this storage
+     */
+    int size();
+
     /**
      * sets the version of this storage
      *
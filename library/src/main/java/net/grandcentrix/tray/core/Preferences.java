@@ -20,7 +20,10 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 import static net.grandcentrix.tray.core.TrayLog.v;
 import static net.grandcentrix.tray.core.TrayLog.w;
@@ -36,13 +39,20 @@ import static net.grandcentrix.tray.core.TrayLog.w;
 public abstract class Preferences<T, S extends PreferenceStorage<T>>
         implements PreferenceAccessor<T> {
 
-    private boolean mChangeVersionSucceeded;
+    private volatile boolean mChangeVersionSucceeded;
 
     @NonNull
     private S mStorage;
 
     private int mVersion;
 
+    /**
+     * identifies the version of this preference in the {@link VersionCheckRegistry}, {@code
+     * null} checks the version for every instance
+     */
+    @Nullable
+    private final String mVersionCheckId;
+
     /**
      * {@link Preferences} allows access to a storage with unfriendly util functions like
      * versioning and migrations of data
@@ -51,23 +61,67 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
      * @param version user defined version. based on this {@link #onUpgrade(int, int)} gets called.
      */
     public Preferences(@NonNull final S storage, final int version) {
+        this(storage, version, false);
+    }
+
+    /**
+     * @param storage           the underlying data store for the saved data
+     * @param version           user defined version. based on this {@link #onUpgrade(int, int)}
+     *                          gets called.
+     * @param deferVersionCheck true doesn't check the version in the constructor. The first
+     *                          write checks it or {@link #startVersionCheck()} runs it on a
+     *                          background thread. Reads before the check completed may miss the
+     *                          data written in {@link #onCreate(int)} or {@link #onUpgrade(int,
+     *                          int)}.
+     */
+    protected Preferences(@NonNull final S storage, final int version,
+            final boolean deferVersionCheck) {
+        this(storage, version, deferVersionCheck, null);
+    }
+
+    /**
+     * @param versionCheckId    identifies the version in the {@link VersionCheckRegistry}. All
+     *                          instances with the same id share the stored version, only the
+     *                          first one has to check it. {@code null} checks the version for
+     *                          every instance
+     * @see #Preferences(PreferenceStorage, int, boolean)
+     */
+    protected Preferences(@NonNull final S storage, final int version,
+            final boolean deferVersionCheck, @Nullable final String versionCheckId) {
         mStorage = storage;
         mVersion = version;
+        mVersionCheckId = versionCheckId;
         mChangeVersionSucceeded = false;
 
-        isVersionChangeChecked();
+        if (versionCheckId != null && VersionCheckRegistry.isChecked(versionCheckId, version)) {
+            // another instance in this process checked the version already
+            mChangeVersionSucceeded = true;
+        } else if (!deferVersionCheck) {
+            isVersionChangeChecked();
+        }
     }
 
     @Override
     public boolean clear() {
         final boolean cleared = mStorage.clear();
-        v("cleared " + (cleared ? "successful" : "failed") + " " + this);
+        v("cleared %s %s", cleared ? "successful" : "failed", this);
         return cleared;
     }
 
     @Override
     public boolean contains(final String key) {
-        return getPref(key) != null;
+        return mStorage.contains(key);
+    }
+
+    /**
+     * Starts a batch of changes which are written all at once with {@link
+     * PreferenceEditor#commit()}. Use this when changing many items to save the overhead of
+     * single writes.
+     *
+     * @return a new editor for this preference
+     */
+    public PreferenceEditor edit() {
+        return new PreferenceEditor(this);
     }
 
     @Override
@@ -75,6 +129,12 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
         return mStorage.getAll();
     }
 
+    @NonNull
+    @Override
+    public Map<String, T> getMany(@NonNull final String... keys) {
+        return mStorage.getMany(keys);
+    }
+
     @Nullable
     @Override
     public T getPref(@NonNull final String key) {
@@ -89,40 +149,31 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
         return mStorage.getVersion();
     }
 
+    @NonNull
+    @Override
+    public List<String> keys() {
+        return mStorage.keys();
+    }
+
     /**
-     * Migrates data into this preference.
+     * Migrates data into this preference. All migrated items are saved with a single {@link
+     * PreferenceStorage#commit(Collection)} and read back with a single {@link
+     * PreferenceStorage#getMany(String...)} before {@link Migration#onPostMigrate(Object)} gets
+     * called. When the commit fails {@link Migration#onPostMigrate(Object)} isn't called, the
+     * data stays in the source.
      *
      * @param migrations migrations will be migrated into this preference
      */
     @SafeVarargs
     public final void migrate(Migration<T>... migrations) {
-        for (Migration<T> migration : migrations) {
-
-            if (!migration.shouldMigrate()) {
-                v("not migrating " + migration + " into " + this);
-                continue;
-            }
-
-            final Object data = migration.getData();
-
-            final boolean supportedDataType = isDataTypeSupported(data);
-            if (!supportedDataType) {
-                w("could not migrate '" + migration.getPreviousKey() + "' into " + this
-                        + " because the data type " + data.getClass().getSimpleName()
-                        + " is invalid");
-                migration.onPostMigrate(null);
-                continue;
+        // the SharedPreferencesImports share a snapshot per file and remove the keys at once
+        final boolean batch = SharedPreferencesImport.beginBatch();
+        try {
+            migrateAll(migrations);
+        } finally {
+            if (batch) {
+                SharedPreferencesImport.endBatch();
             }
-            final String key = migration.getTrayKey();
-            final String migrationKey = migration.getPreviousKey();
-            // save into tray
-            getStorage().put(key, migrationKey, data);
-            v("migrated '" + migrationKey + "'='" + data + "' into " + this +
-                    " (now: '" + key + "'='" + data + "')");
-
-            // return the saved data.
-            final T item = getStorage().get(key);
-            migration.onPostMigrate(item);
         }
     }
 
@@ -131,7 +182,7 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
         if (!isVersionChangeChecked()) {
             return false;
         }
-        v("put '" + key + "=\"" + value + "\"' into " + this);
+        v("put '%s=\"%s\"' into %s", key, value, this);
         return putData(key, value);
     }
 
@@ -140,7 +191,10 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
         if (!isVersionChangeChecked()) {
             return false;
         }
-        v("put '" + key + "=" + value + "' into " + this);
+        if (TrayLog.DEBUG) {
+            // avoids boxing the value when logging is disabled
+            v("put '%s=%s' into %s", key, value, this);
+        }
         return putData(key, value);
     }
 
@@ -149,7 +203,9 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
         if (!isVersionChangeChecked()) {
             return false;
         }
-        v("put '" + key + "=" + value + "' into " + this);
+        if (TrayLog.DEBUG) {
+            v("put '%s=%s' into %s", key, value, this);
+        }
         return putData(key, value);
     }
 
@@ -158,7 +214,9 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
         if (!isVersionChangeChecked()) {
             return false;
         }
-        v("put '" + key + "=" + value + "' into " + this);
+        if (TrayLog.DEBUG) {
+            v("put '%s=%s' into %s", key, value, this);
+        }
         return putData(key, value);
     }
 
@@ -167,7 +225,9 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
         if (!isVersionChangeChecked()) {
             return false;
         }
-        v("put '" + key + "=" + value + "' into " + this);
+        if (TrayLog.DEBUG) {
+            v("put '%s=%s' into %s", key, value, this);
+        }
         return putData(key, value);
     }
 
@@ -175,14 +235,39 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
         if (!isVersionChangeChecked()) {
             return false;
         }
-        v("removed key '" + key + "' from " + this);
+        v("removed key '%s' from %s", key, this);
         return getStorage().remove(key);
     }
 
+    /**
+     * runs the version check on a background thread, call it after the construction of a
+     * preference with a deferred version check. Does nothing when the version was checked
+     * already
+     */
+    public void startVersionCheck() {
+        if (mChangeVersionSucceeded) {
+            return;
+        }
+        VersionCheckRegistry.execute(new Runnable() {
+            @Override
+            public void run() {
+                isVersionChangeChecked();
+            }
+        });
+    }
+
+    @Override
+    public int size() {
+        return mStorage.size();
+    }
+
     @Override
     public boolean wipe() {
         final boolean wiped = mStorage.wipe();
-        v("wipe " + (wiped ? "successful" : "failed") + " " + this);
+        if (wiped && mVersionCheckId != null) {
+            VersionCheckRegistry.forget(mVersionCheckId);
+        }
+        v("wipe %s %s", wiped ? "successful" : "failed", this);
         return wiped;
     }
 
@@ -258,14 +343,14 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
             final int version = getStorage().getVersion();
             if (version != newVersion) {
                 if (version == 0) {
-                    v("create " + this + " with initial version 0");
+                    v("create %s with initial version 0", this);
                     onCreate(newVersion);
                 } else {
                     if (version > newVersion) {
-                        v("downgrading " + this + "from " + version + " to " + newVersion);
+                        v("downgrading %s from %s to %s", this, version, newVersion);
                         onDowngrade(version, newVersion);
                     } else {
-                        v("upgrading " + this + " from " + version + " to " + newVersion);
+                        v("upgrading %s from %s to %s", this, version, newVersion);
                         onUpgrade(version, newVersion);
                     }
                 }
@@ -273,6 +358,9 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
             }
             // mark this module as successfully version checked
             mChangeVersionSucceeded = true;
+            if (mVersionCheckId != null) {
+                VersionCheckRegistry.setChecked(mVersionCheckId, newVersion);
+            }
         } catch (TrayException e) {
             e.printStackTrace();
             v("could not change the version, retrying with the next interaction");
@@ -294,6 +382,34 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
         return mChangeVersionSucceeded;
     }
 
+    /**
+     * writes the changes of a {@link PreferenceEditor} asynchronously to the storage
+     *
+     * @param operations the changes, at most one per key
+     */
+    /*package*/ void apply(@NonNull final Collection<EditOperation> operations) {
+        if (!isVersionChangeChecked()) {
+            w("could not apply " + operations.size() + " changes into " + this);
+            return;
+        }
+        v("apply %s changes into %s", operations.size(), this);
+        getStorage().apply(operations);
+    }
+
+    /**
+     * writes the changes of a {@link PreferenceEditor} to the storage
+     *
+     * @param operations the changes, at most one per key
+     * @return whether all changes were saved
+     */
+    /*package*/ boolean commit(@NonNull final Collection<EditOperation> operations) {
+        if (!isVersionChangeChecked()) {
+            return false;
+        }
+        v("commit %s changes into %s", operations.size(), this);
+        return getStorage().commit(operations);
+    }
+
     static boolean isDataTypeSupported(final Object data) {
         return data instanceof Integer
                 || data instanceof String
@@ -303,6 +419,54 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
                 || data == null;
     }
 
+    private void migrateAll(@NonNull final Migration<T>[] migrations) {
+        final List<Migration<T>> migrated = new ArrayList<>(migrations.length);
+        final List<EditOperation> operations = new ArrayList<>(migrations.length);
+        for (Migration<T> migration : migrations) {
+
+            if (!migration.shouldMigrate()) {
+                v("not migrating %s into %s", migration, this);
+                continue;
+            }
+
+            final Object data = migration.getData();
+
+            final boolean supportedDataType = isDataTypeSupported(data);
+            if (!supportedDataType) {
+                w("could not migrate '" + migration.getPreviousKey() + "' into " + this
+                        + " because the data type " + data.getClass().getSimpleName()
+                        + " is invalid");
+                migration.onPostMigrate(null);
+                continue;
+            }
+            final String key = migration.getTrayKey();
+            final String migrationKey = migration.getPreviousKey();
+            operations.add(EditOperation.put(key, migrationKey, data));
+            migrated.add(migration);
+            v("migrating '%1$s'='%2$s' into %3$s (now: '%4$s'='%2$s')", migrationKey, data, this,
+                    key);
+        }
+        if (migrated.isEmpty()) {
+            return;
+        }
+
+        // save into tray, the migrations keep their data when it wasn't saved
+        if (!getStorage().commit(operations)) {
+            w("could not migrate " + migrated.size() + " items into " + this);
+            return;
+        }
+
+        // return the saved data.
+        final String[] keys = new String[migrated.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = migrated.get(i).getTrayKey();
+        }
+        final Map<String, T> items = getStorage().getMany(keys);
+        for (final Migration<T> migration : migrated) {
+            migration.onPostMigrate(items.get(migration.getTrayKey()));
+        }
+    }
+
     private boolean putData(String key, Object value) {
         if (TextUtils.isEmpty(key)) {
             throw new IllegalArgumentException("Preference key value cannot be empty.");
@@ -21,22 +21,54 @@ import net.grandcentrix.tray.TrayPreferences;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * Migrates a key value pair from the {@link SharedPreferences} into a {@link
- * TrayPreferences}. There is no Migration which imports all data from {@link SharedPreferences}
- * into tray because devs using tray should be aware of what gets imported. It's your chance to get
- * rid off all the long forgotten junk stored in your {@link SharedPreferences} ;)
+ * TrayPreferences}. {@link #importFile(Context, String, Collection)} creates the migrations for
+ * all or a selection of keys of a file. Devs using tray should be aware of what gets imported.
+ * It's your chance to get rid off all the long forgotten junk stored in your {@link
+ * SharedPreferences} ;)
  * <p>
  * <b>Caution!</b> the key value pair imported into tray will be deleted in the {@link
- * SharedPreferences} after the import.
+ * SharedPreferences} after the import. All imports of a {@link Preferences#migrate(Migration[])}
+ * call read the file once and delete their keys with a single commit.
  * <p>
  * Created by pascalwelsch on 2/25/15.
  */
 public class SharedPreferencesImport implements TrayMigration {
 
+    /**
+     * state of a {@link SharedPreferences} file shared by all imports of a {@link
+     * Preferences#migrate(Migration[])} call
+     */
+    private static final class Batch {
+
+        /**
+         * removals of the imported keys, committed at the end of the batch
+         */
+        SharedPreferences.Editor mRemovals;
+
+        /**
+         * copy of all data, taken by the first import reading the file
+         */
+        Map<String, ?> mSnapshot;
+    }
+
+    /**
+     * the running batch of the current thread by file, {@code null} outside of a batch
+     */
+    private static final ThreadLocal<Map<SharedPreferences, Batch>> sBatches
+            = new ThreadLocal<>();
+
     private final SharedPreferences mPreferences;
 
     private final String mSharedPrefsKey;
@@ -53,9 +85,84 @@ public class SharedPreferencesImport implements TrayMigration {
         mPreferences = context.getSharedPreferences(sharedPrefsName, Context.MODE_MULTI_PROCESS);
     }
 
+    /**
+     * creates the migrations of all keys of a {@link SharedPreferences} file. The keys in tray
+     * are the same as in the file. Pass all migrations to a single {@link
+     * Preferences#migrate(Migration[])} call which saves them at once.
+     *
+     * @param sharedPrefsName name of the {@link SharedPreferences} file
+     * @return the migrations, one per key
+     */
+    @NonNull
+    public static TrayMigration[] importFile(@NonNull final Context context,
+            @NonNull final String sharedPrefsName) {
+        return importFile(context, sharedPrefsName, null);
+    }
+
+    /**
+     * same as {@link #importFile(Context, String)} but only for the given keys
+     *
+     * @param keys the keys to import, keys which are not in the file are skipped. {@code null}
+     *             imports all keys
+     * @return the migrations, one per found key
+     */
+    @NonNull
+    public static TrayMigration[] importFile(@NonNull final Context context,
+            @NonNull final String sharedPrefsName, @Nullable final Collection<String> keys) {
+        final Set<String> found = context
+                .getSharedPreferences(sharedPrefsName, Context.MODE_MULTI_PROCESS)
+                .getAll().keySet();
+        final List<TrayMigration> migrations = new ArrayList<>(found.size());
+        for (final String key : found) {
+            if (keys == null || keys.contains(key)) {
+                migrations.add(new SharedPreferencesImport(context, sharedPrefsName, key, key));
+            }
+        }
+        return migrations.toArray(new TrayMigration[migrations.size()]);
+    }
+
+    /**
+     * starts a batch on the current thread. Imports of the same file read a single snapshot of
+     * the file and their keys get removed with a single edit in {@link #endBatch()}
+     *
+     * @return false when a batch is already running
+     */
+    /*package*/
+    static boolean beginBatch() {
+        if (sBatches.get() != null) {
+            return false;
+        }
+        sBatches.set(new HashMap<SharedPreferences, Batch>());
+        return true;
+    }
+
+    /**
+     * removes the imported keys with a single commit
+     */
+    /*package*/
+    static void endBatch() {
+        final Map<SharedPreferences, Batch> batches = sBatches.get();
+        sBatches.remove();
+        if (batches == null) {
+            return;
+        }
+        for (final Batch batch : batches.values()) {
+            if (batch.mRemovals != null && !batch.mRemovals.commit()) {
+                TrayLog.w("could not remove the imported keys from the SharedPreferences");
+            }
+        }
+    }
+
     @Override
     public Object getData() {
-        return mPreferences.getAll().get(mSharedPrefsKey);
+        final Batch batch = getBatch();
+        if (batch == null) {
+            return mPreferences.getAll().get(mSharedPrefsKey);
+        }
+        if (batch.mSnapshot == null) {
+            batch.mSnapshot = mPreferences.getAll();
+        }
+        return batch.mSnapshot.get(mSharedPrefsKey);
     }
 
     @NonNull
@@ -77,9 +184,17 @@ public class SharedPreferencesImport implements TrayMigration {
             return;
         }
         if (equals(trayItem.value(), getData().toString())) {
-            TrayLog.v("removing key '" + mSharedPrefsKey + "' from SharedPreferences '"
-                    + mSharedPrefsName + "'");
-            mPreferences.edit().remove(mSharedPrefsKey).apply();
+            TrayLog.v("removing key '%s' from SharedPreferences '%s'", mSharedPrefsKey,
+                    mSharedPrefsName);
+            final Batch batch = getBatch();
+            if (batch == null) {
+                mPreferences.edit().remove(mSharedPrefsKey).apply();
+            } else {
+                if (batch.mRemovals == null) {
+                    batch.mRemovals = mPreferences.edit();
+                }
+                batch.mRemovals.remove(mSharedPrefsKey);
+            }
         }
     }
 
@@ -89,8 +204,8 @@ public class SharedPreferencesImport implements TrayMigration {
             return true;
         }
 
-        TrayLog.v("key '" + mSharedPrefsKey + "' in SharedPreferences '"
-                + mSharedPrefsName + "' not found. skipped import");
+        TrayLog.v("key '%s' in SharedPreferences '%s' not found. skipped import",
+                mSharedPrefsKey, mSharedPrefsName);
         return false;
     }
 
@@ -103,6 +218,22 @@ public class SharedPreferencesImport implements TrayMigration {
                 '}';
     }
 
+    /**
+     * @return the batch of the file, {@code null} when no batch is running
+     */
+    private Batch getBatch() {
+        final Map<SharedPreferences, Batch> batches = sBatches.get();
+        if (batches == null) {
+            return null;
+        }
+        Batch batch = batches.get(mPreferences);
+        if (batch == null) {
+            batch = new Batch();
+            batches.put(mPreferences, batch);
+        }
+        return batch;
+    }
+
     /**
      * Null-safe equivalent of {@code a.equals(b)}. Taken from {@link Objects#equals(Object,
      * Object)} API level 19+
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.core;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable changes of a storage since a sequence number. Every insert, update and delete of an
+ * item assigns the next sequence number of its database. Pass {@link #getSequence()} to the next
+ * {@code getChangesSince} call to receive only newer changes.
+ * <p>
+ * Only the last change of an item is contained. Items which were removed are contained in {@link
+ * #getRemovedItems()} until they get saved again.
+ */
+public class TrayChanges {
+
+    private final List<TrayItem> mChangedItems;
+
+    private final List<TrayItem> mRemovedItems;
+
+    private final long mSequence;
+
+    public TrayChanges(final long sequence, @NonNull final List<TrayItem> changedItems,
+            @NonNull final List<TrayItem> removedItems) {
+        mSequence = sequence;
+        mChangedItems = Collections.unmodifiableList(changedItems);
+        mRemovedItems = Collections.unmodifiableList(removedItems);
+    }
+
+    /**
+     * @return the saved items which changed, in the order of their changes
+     */
+    @NonNull
+    public List<TrayItem> getChangedItems() {
+        return mChangedItems;
+    }
+
+    /**
+     * @return the removed items in the order of their removal, only module and key are set
+     */
+    @NonNull
+    public List<TrayItem> getRemovedItems() {
+        return mRemovedItems;
+    }
+
+    /**
+     * @return the sequence number of the last contained change, the requested sequence number
+     * when nothing changed
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public boolean isEmpty() {
+        return mChangedItems.isEmpty() && mRemovedItems.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "TrayChanges{sequence: " + mSequence + ", changed: " + mChangedItems
+                + ", removed: " + mRemovedItems + "}";
+    }
+}
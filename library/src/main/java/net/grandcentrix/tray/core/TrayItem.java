@@ -29,36 +29,308 @@ import java.util.Locale;
  */
 public class TrayItem {
 
+    /**
+     * the value is a String or the type is unknown, i.e. for items saved before types were
+     * supported. Typed getters parse the {@link #value()}
+     */
+    public static final int TYPE_STRING = 0;
+
+    /**
+     * saved as int, {@link #longValue()} holds the value
+     */
+    public static final int TYPE_INT = 1;
+
+    /**
+     * saved as long, {@link #longValue()} holds the value
+     */
+    public static final int TYPE_LONG = 2;
+
+    /**
+     * saved as float, {@link #doubleValue()} holds the value
+     */
+    public static final int TYPE_FLOAT = 3;
+
+    /**
+     * saved as boolean, {@link #longValue()} is 1 for true and 0 for false
+     */
+    public static final int TYPE_BOOLEAN = 4;
+
+    private static final int DECODED_INT = 1;
+
+    private static final int DECODED_LONG = 1 << 1;
+
+    private static final int DECODED_FLOAT = 1 << 2;
+
     private final Date mCreated;
 
+    /**
+     * bits of the memoized decodings, written after the decoded value or error. Concurrent first
+     * calls may decode twice which yields the same result
+     */
+    private volatile int mDecoded;
+
+    private float mDecodedFloat;
+
+    private NumberFormatException mDecodedFloatError;
+
+    private int mDecodedInt;
+
+    private NumberFormatException mDecodedIntError;
+
+    private long mDecodedLong;
+
+    private NumberFormatException mDecodedLongError;
+
+    private final double mDoubleValue;
+
+    private final Date mExpires;
+
     private final String mKey;
 
+    private final long mLongValue;
+
     private final String mMigratedKey;
 
     private final String mModule;
 
+    private final int mType;
+
     private final Date mUpdated;
 
     private final String mValue;
 
     public TrayItem(final String module, final String key, final String migratedKey,
             final String value, final Date created, final Date updated) {
+        this(module, key, migratedKey, value, created, updated, TYPE_STRING, 0, 0);
+    }
+
+    /**
+     * @param type        one of the TYPE constants
+     * @param longValue   the value of {@link #TYPE_INT}, {@link #TYPE_LONG} and {@link
+     *                    #TYPE_BOOLEAN} items
+     * @param doubleValue the value of {@link #TYPE_FLOAT} items
+     */
+    public TrayItem(final String module, final String key, final String migratedKey,
+            final String value, final Date created, final Date updated, final int type,
+            final long longValue, final double doubleValue) {
+        this(module, key, migratedKey, value, created, updated, type, longValue, doubleValue,
+                null);
+    }
+
+    /**
+     * @param expires the time the item gets removed, {@code null} for items without a ttl
+     */
+    public TrayItem(final String module, final String key, final String migratedKey,
+            final String value, final Date created, final Date updated, final int type,
+            final long longValue, final double doubleValue, @Nullable final Date expires) {
         mCreated = created;
+        mExpires = expires;
         mKey = key;
         mModule = module;
         mUpdated = updated;
         mValue = value;
         mMigratedKey = migratedKey;
+        mType = type;
+        mLongValue = longValue;
+        mDoubleValue = doubleValue;
+    }
+
+    /**
+     * creates an item for data saved with {@code put}, the type is derived from the data
+     *
+     * @param data the saved data, its {@link String#valueOf(Object)} is the {@link #value()}
+     */
+    public static TrayItem create(final String module, final String key,
+            final String migratedKey, @Nullable final Object data, final Date created,
+            final Date updated) {
+        final int type = typeOf(data);
+        return new TrayItem(module, key, migratedKey, data == null ? null : String.valueOf(data),
+                created, updated, type, longValueOf(type, data), doubleValueOf(type, data));
+    }
+
+    /**
+     * @return the TYPE constant for the data, {@link #TYPE_STRING} for everything without a
+     * native representation
+     */
+    public static int typeOf(@Nullable final Object data) {
+        if (data instanceof Integer) {
+            return TYPE_INT;
+        } else if (data instanceof Long) {
+            return TYPE_LONG;
+        } else if (data instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (data instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        }
+        return TYPE_STRING;
+    }
+
+    /**
+     * @return the native value of {@link #TYPE_INT}, {@link #TYPE_LONG} and {@link
+     * #TYPE_BOOLEAN} data, 0 otherwise
+     */
+    public static long longValueOf(final int type, @Nullable final Object data) {
+        switch (type) {
+            case TYPE_INT:
+            case TYPE_LONG:
+                return ((Number) data).longValue();
+            case TYPE_BOOLEAN:
+                return (Boolean) data ? 1 : 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the native value of {@link #TYPE_FLOAT} data, 0 otherwise
+     */
+    public static double doubleValueOf(final int type, @Nullable final Object data) {
+        return type == TYPE_FLOAT ? ((Float) data).doubleValue() : 0;
+    }
+
+    /**
+     * decodes the item as float. The result is memoized, repeated calls don't parse again
+     *
+     * @throws NumberFormatException when the value isn't a float, the same instance for every
+     *                               call
+     */
+    public float decodeFloat() throws NumberFormatException {
+        if ((mDecoded & DECODED_FLOAT) == 0) {
+            switch (mType) {
+                case TYPE_FLOAT:
+                    mDecodedFloat = (float) mDoubleValue;
+                    break;
+                case TYPE_INT:
+                case TYPE_LONG:
+                    // same rounding as parsing the decimal string
+                    mDecodedFloat = (float) mLongValue;
+                    break;
+                default:
+                    try {
+                        // parseFloat throws a NullPointerException for null, parseInt doesn't
+                        mDecodedFloat = Float.parseFloat(String.valueOf(mValue));
+                    } catch (NumberFormatException e) {
+                        mDecodedFloatError = e;
+                    }
+            }
+            mDecoded |= DECODED_FLOAT;
+        }
+        if (mDecodedFloatError != null) {
+            throw mDecodedFloatError;
+        }
+        return mDecodedFloat;
+    }
+
+    /**
+     * decodes the item as int. The result is memoized, repeated calls don't parse again
+     *
+     * @throws NumberFormatException when the value isn't an int, the same instance for every
+     *                               call
+     */
+    public int decodeInt() throws NumberFormatException {
+        if ((mDecoded & DECODED_INT) == 0) {
+            if ((mType == TYPE_INT || mType == TYPE_LONG) && mLongValue == (int) mLongValue) {
+                mDecodedInt = (int) mLongValue;
+            } else {
+                // parsing fails the same way as before for longs out of range or other types
+                try {
+                    mDecodedInt = Integer.parseInt(mValue);
+                } catch (NumberFormatException e) {
+                    mDecodedIntError = e;
+                }
+            }
+            mDecoded |= DECODED_INT;
+        }
+        if (mDecodedIntError != null) {
+            throw mDecodedIntError;
+        }
+        return mDecodedInt;
+    }
+
+    /**
+     * decodes the item as long. The result is memoized, repeated calls don't parse again
+     *
+     * @throws NumberFormatException when the value isn't a long, the same instance for every
+     *                               call
+     */
+    public long decodeLong() throws NumberFormatException {
+        if ((mDecoded & DECODED_LONG) == 0) {
+            if (mType == TYPE_INT || mType == TYPE_LONG) {
+                mDecodedLong = mLongValue;
+            } else {
+                try {
+                    mDecodedLong = Long.parseLong(mValue);
+                } catch (NumberFormatException e) {
+                    mDecodedLongError = e;
+                }
+            }
+            mDecoded |= DECODED_LONG;
+        }
+        if (mDecodedLongError != null) {
+            throw mDecodedLongError;
+        }
+        return mDecodedLong;
     }
 
     public Date created() {
         return mCreated;
     }
 
+    /**
+     * @return the saved data in its native type, reverse of {@link #create(String, String,
+     * String, Object, Date, Date)}
+     */
+    @Nullable
+    public Object data() {
+        switch (mType) {
+            case TYPE_INT:
+                return (int) mLongValue;
+            case TYPE_LONG:
+                return mLongValue;
+            case TYPE_FLOAT:
+                return (float) mDoubleValue;
+            case TYPE_BOOLEAN:
+                return mLongValue != 0;
+            default:
+                return mValue;
+        }
+    }
+
+    /**
+     * @return the value of {@link #TYPE_FLOAT} items
+     */
+    public double doubleValue() {
+        return mDoubleValue;
+    }
+
+    /**
+     * @return the time the item gets removed, {@code null} when it was saved without a ttl
+     */
+    @Nullable
+    public Date expires() {
+        return mExpires;
+    }
+
+    /**
+     * @param now the current time in ms
+     * @return true when the item was saved with a ttl which is over
+     */
+    public boolean isExpired(final long now) {
+        return mExpires != null && mExpires.getTime() <= now;
+    }
+
     public String key() {
         return mKey;
     }
 
+    /**
+     * @return the value of {@link #TYPE_INT}, {@link #TYPE_LONG} and {@link #TYPE_BOOLEAN}
+     * items
+     */
+    public long longValue() {
+        return mLongValue;
+    }
+
     public String migratedKey() {
         return mMigratedKey;
     }
@@ -81,15 +353,24 @@ public class TrayItem {
                 .append(", module: ")
                 .append(mModule)
                 .append(", created: ")
-                .append(sf.format(mCreated))
+                .append(mCreated == null ? null : sf.format(mCreated))
                 .append(", updated: ")
-                .append(sf.format(mUpdated))
+                .append(mUpdated == null ? null : sf.format(mUpdated))
                 .append(", migratedKey: ")
                 .append(mMigratedKey)
+                .append(", expires: ")
+                .append(mExpires == null ? null : sf.format(mExpires))
                 .append("}")
                 .toString();
     }
 
+    /**
+     * @return the type the value was saved with, one of the TYPE constants
+     */
+    public int type() {
+        return mType;
+    }
+
     public Date updateTime() {
         return mUpdated;
     }
@@ -62,6 +62,43 @@ public class TrayLog {
         }
     }
 
+    /**
+     * logs the {@link String#format(String, Object...)} formatted message. Formatting and the
+     * {@code toString()} of the args happen only when {@link #DEBUG} is enabled
+     */
+    public static void v(String format, Object arg) {
+        if (DEBUG) {
+            v(String.format(format, arg));
+        }
+    }
+
+    /**
+     * @see #v(String, Object)
+     */
+    public static void v(String format, Object arg1, Object arg2) {
+        if (DEBUG) {
+            v(String.format(format, arg1, arg2));
+        }
+    }
+
+    /**
+     * @see #v(String, Object)
+     */
+    public static void v(String format, Object arg1, Object arg2, Object arg3) {
+        if (DEBUG) {
+            v(String.format(format, arg1, arg2, arg3));
+        }
+    }
+
+    /**
+     * @see #v(String, Object)
+     */
+    public static void v(String format, Object arg1, Object arg2, Object arg3, Object arg4) {
+        if (DEBUG) {
+            v(String.format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
     public static void w(String s) {
         if (s == null) {
             s = "";
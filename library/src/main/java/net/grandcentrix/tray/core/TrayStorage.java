@@ -19,6 +19,13 @@ package net.grandcentrix.tray.core;
 import net.grandcentrix.tray.TrayPreferences;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by pascalwelsch on 11/20/14.
@@ -75,6 +82,107 @@ public abstract class TrayStorage implements PreferenceStorage<TrayItem> {
      */
     public abstract void annex(final TrayStorage oldStorage);
 
+    /**
+     * applies the changes synchronously with {@link #commit(Collection)}. Override when the
+     * storage supports asynchronous writes
+     */
+    @Override
+    public void apply(@NonNull final Collection<EditOperation> operations) {
+        commit(operations);
+    }
+
+    /**
+     * applies the changes one after another. Not atomic, override when the storage supports
+     * transactions
+     */
+    @Override
+    public boolean commit(@NonNull final Collection<EditOperation> operations) {
+        boolean success = true;
+        for (final EditOperation operation : operations) {
+            switch (operation.getAction()) {
+                case PUT:
+                    success &= put(operation.getKey(), operation.getMigrationKey(),
+                            operation.getData());
+                    break;
+                case REMOVE:
+                    // removing an item which doesn't exist is no error
+                    remove(operation.getKey());
+                    break;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * reads the item with {@link #get(String)}. Override when the storage is able to check the
+     * existence without reading the item
+     */
+    @Override
+    public boolean contains(@NonNull final String key) {
+        return get(key) != null;
+    }
+
+    /**
+     * reads the items one after another with {@link #get(String)}. Override when the storage is
+     * able to read multiple items at once
+     */
+    @NonNull
+    @Override
+    public Map<String, TrayItem> getMany(@NonNull final String... keys) {
+        final Map<String, TrayItem> items = new HashMap<>();
+        for (final String key : keys) {
+            final TrayItem item = get(key);
+            if (item != null) {
+                items.put(key, item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * reads all items with {@link #getAll()}. Override when the storage is able to read the keys
+     * only
+     */
+    @NonNull
+    @Override
+    public List<String> keys() {
+        final Collection<TrayItem> items = getAll();
+        final List<String> keys = new ArrayList<>(items.size());
+        for (final TrayItem item : items) {
+            keys.add(item.key());
+        }
+        return keys;
+    }
+
+    /**
+     * reads all items with {@link #getAll()}. Override when the storage is able to count the
+     * items without reading them
+     */
+    @Override
+    public int size() {
+        return getAll().size();
+    }
+
+    /**
+     * same as {@link #put(String, Object)} for data which gets removed after the ttl. Saves the
+     * data without a ttl and logs a warning by default, override when the storage is able to
+     * expire items
+     *
+     * @param key  where to save
+     * @param data what to save
+     * @param ttl  time to live in ms, greater than 0
+     * @return whether the put was successful
+     */
+    public boolean putWithTtl(@NonNull final String key, @Nullable final Object data,
+            final long ttl) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be greater than 0, was " + ttl);
+        }
+        TrayLog.w(getClass().getSimpleName() + " doesn't support items with a ttl, '" + key
+                + "' is saved without it");
+        return put(key, data);
+    }
+
     public String getModuleName() {
         return mModuleName;
     }
@@ -106,6 +214,35 @@ public abstract class TrayStorage implements PreferenceStorage<TrayItem> {
     public abstract void registerOnTrayPreferenceChangeListener(
             @NonNull OnTrayPreferenceChangeListener listener);
 
+    /**
+     * registers a listener which only gets called when the item with the given key is changed,
+     * added, or removed. The listener can be registered for a single key or prefix at a time,
+     * registering it again replaces the previous registration.
+     * <p>
+     * Storages which can't filter the changes call the listener for all changes.
+     *
+     * @param listener the listener that will run.
+     * @param key      the key of the observed item
+     * @see #registerOnTrayPreferenceChangeListener(OnTrayPreferenceChangeListener)
+     */
+    public void registerOnTrayPreferenceChangeListener(
+            @NonNull final OnTrayPreferenceChangeListener listener, @NonNull final String key) {
+        registerOnTrayPreferenceChangeListener(listener);
+    }
+
+    /**
+     * same as {@link #registerOnTrayPreferenceChangeListener(OnTrayPreferenceChangeListener,
+     * String)} for all items whose key starts with the prefix
+     *
+     * @param listener  the listener that will run.
+     * @param keyPrefix the prefix of the keys of the observed items
+     */
+    public void registerOnTrayPreferenceChangeListenerForPrefix(
+            @NonNull final OnTrayPreferenceChangeListener listener,
+            @NonNull final String keyPrefix) {
+        registerOnTrayPreferenceChangeListener(listener);
+    }
+
     /**
      * unregisters the previously registered callback
      *
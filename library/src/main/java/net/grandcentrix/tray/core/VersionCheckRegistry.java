@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.core;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Remembers which version of a module was verified by {@link Preferences#changeVersion(int)} in
+ * this process. Later {@link Preferences} of the same module and version skip the version check
+ * and don't have to read the version from the storage.
+ * <p>
+ * The registry doesn't notice when other processes wipe a module. Call {@link #clear()} after
+ * deleting data without the library.
+ */
+public final class VersionCheckRegistry {
+
+    /**
+     * the verified version mapped by the version check id of the {@link Preferences}
+     */
+    private static final Map<String, Integer> sCheckedVersions = new HashMap<>();
+
+    private static Executor sExecutor;
+
+    /**
+     * forgets all verified versions, the next {@link Preferences} of every module check their
+     * version again
+     */
+    public static synchronized void clear() {
+        sCheckedVersions.clear();
+    }
+
+    /**
+     * runs deferred version checks on a single background thread
+     */
+    /*package*/
+    static synchronized void execute(@NonNull final Runnable runnable) {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "TrayVersionCheck");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        sExecutor.execute(runnable);
+    }
+
+    /**
+     * forgets the verified version of a single module, the next {@link Preferences} of it check
+     * the version again
+     */
+    public static synchronized void forget(@NonNull final String id) {
+        sCheckedVersions.remove(id);
+    }
+
+    /*package*/
+    static synchronized boolean isChecked(@NonNull final String id, final int version) {
+        final Integer checked = sCheckedVersions.get(id);
+        return checked != null && checked == version;
+    }
+
+    /*package*/
+    static synchronized void setChecked(@NonNull final String id, final int version) {
+        sCheckedVersions.put(id, version);
+    }
+
+    private VersionCheckRegistry() {
+        throw new IllegalStateException("no instances");
+    }
+}
@@ -17,14 +17,18 @@
 package net.grandcentrix.tray.provider;
 
 import net.grandcentrix.tray.TrayPreferences;
+import net.grandcentrix.tray.core.EditOperation;
 import net.grandcentrix.tray.core.OnTrayPreferenceChangeListener;
+import net.grandcentrix.tray.core.TrayChanges;
 import net.grandcentrix.tray.core.TrayException;
 import net.grandcentrix.tray.core.TrayItem;
 import net.grandcentrix.tray.core.TrayLog;
 import net.grandcentrix.tray.core.TrayRuntimeException;
 import net.grandcentrix.tray.core.TrayStorage;
+import net.grandcentrix.tray.core.VersionCheckRegistry;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.net.Uri;
@@ -35,9 +39,18 @@ import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.util.LruCache;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -54,9 +67,76 @@ import java.util.WeakHashMap;
  * This class represents a simple key value storage solution based on a {@link
  * android.content.ContentProvider}. Replacing this class with a {@link java.util.HashMap}
  * implementation for testing works seamless.
+ * <p>
+ * Single items are read and written with the {@link TrayContentProvider#call(String, String,
+ * android.os.Bundle)} fast path, ranges are queried with a {@link android.database.Cursor}.
+ * <p>
+ * Reads can optionally be served from an in memory copy of the module, see {@link
+ * #setCacheEnabled(boolean)}.
  */
 public class ContentProviderStorage extends TrayStorage {
 
+    /**
+     * a registered listener with the thread it gets called on and the keys it observes
+     */
+    @VisibleForTesting
+    static final class ListenerRegistration {
+
+        /**
+         * the thread to call the listener on, {@code null} calls it on the observer thread
+         */
+        @Nullable
+        final Handler mHandler;
+
+        /**
+         * the observed key or key prefix, {@code null} for all items
+         */
+        @Nullable
+        final String mKey;
+
+        final boolean mPrefix;
+
+        ListenerRegistration(@Nullable final Handler handler, @Nullable final String key,
+                final boolean prefix) {
+            mHandler = handler;
+            mKey = key;
+            mPrefix = prefix;
+        }
+
+        /**
+         * @return the items with observed keys
+         */
+        @NonNull
+        List<TrayItem> filter(@NonNull final Collection<TrayItem> items) {
+            if (mKey == null) {
+                return new ArrayList<>(items);
+            }
+            final List<TrayItem> filtered = new ArrayList<>();
+            for (final TrayItem item : items) {
+                if (matches(item.key())) {
+                    filtered.add(item);
+                }
+            }
+            return filtered;
+        }
+
+        boolean matches(@NonNull final String key) {
+            if (mKey == null) {
+                return true;
+            }
+            return mPrefix ? key.startsWith(mKey) : key.equals(mKey);
+        }
+
+        boolean matchesAny(@NonNull final Collection<String> keys) {
+            for (final String key : keys) {
+                if (matches(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     /**
      * Forwards changes of this storage to the registered listeners
      */
@@ -85,39 +165,119 @@ public class ContentProviderStorage extends TrayStorage {
                 uri = mTrayUri.builder().setModule(getModuleName()).build();
             }
 
-            // query only the changed items
-            final List<TrayItem> trayItems = mProviderHelper.queryProviderSafe(uri);
-
-            // clone to get around ConcurrentModificationException
-            final Set<Map.Entry<OnTrayPreferenceChangeListener, Handler>> entries
-                    = new HashSet<>(mListeners.entrySet());
-
-            // notify all registered listeners
-            for (final Map.Entry<OnTrayPreferenceChangeListener, Handler> entry : entries) {
-                final OnTrayPreferenceChangeListener listener = entry.getKey();
-                final Handler handler = entry.getValue();
-                if (handler != null) {
-                    // call the listener on the thread where the listener was registered
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            listener.onTrayPreferenceChanged(trayItems);
+            // copy to get around ConcurrentModificationException
+            final Map<OnTrayPreferenceChangeListener, ListenerRegistration> listeners;
+            synchronized (ContentProviderStorage.this) {
+                listeners = new HashMap<>(mListeners);
+            }
+
+            // notifications only publish the keys, the values are read from the provider
+            final TrayNotification notification = TrayNotification.parse(uri);
+            final Set<String> changedKeys;
+            if (notification != null) {
+                uri = TrayNotification.removeChanges(uri);
+                changedKeys = notification.getChangedKeys();
+            } else {
+                changedKeys = null;
+            }
+
+            final boolean singleItemChange = isSingleItemChange(uri);
+            if (singleItemChange) {
+                // drop the listeners not interested in the changed item before querying it
+                final String key = uri.getPathSegments().get(2);
+                final Iterator<ListenerRegistration> iterator = listeners.values().iterator();
+                while (iterator.hasNext()) {
+                    if (!iterator.next().matches(key)) {
+                        iterator.remove();
+                    }
+                }
+            } else {
+                // a whole module or more changed, reload the cache when needed
+                invalidateCache();
+                if (notification != null && !notification.isCleared()) {
+                    // drop the listeners not interested in the published keys
+                    final Set<String> keys = new HashSet<>(changedKeys);
+                    keys.addAll(notification.getRemovedKeys());
+                    final Iterator<ListenerRegistration> iterator
+                            = listeners.values().iterator();
+                    while (iterator.hasNext()) {
+                        if (!iterator.next().matchesAny(keys)) {
+                            iterator.remove();
                         }
-                    });
-                } else {
-                    listener.onTrayPreferenceChanged(trayItems);
+                    }
+                }
+            }
+
+            final int cacheModCount;
+            synchronized (mCacheLock) {
+                cacheModCount = mCacheModCount;
+                if (listeners.isEmpty() && (!singleItemChange || mCache == null)) {
+                    // nobody is interested in the changed items, no need to query them
+                    return;
+                }
+            }
+
+            // query only the changed items
+            List<TrayItem> trayItems;
+            if (singleItemChange || changedKeys == null) {
+                trayItems = mProviderHelper.queryProviderSafe(uri);
+            } else if (changedKeys.isEmpty()) {
+                // only removed items, nothing to read
+                trayItems = new ArrayList<>();
+            } else {
+                // read the published keys instead of the whole module
+                try {
+                    trayItems = mProviderHelper.queryKeys(uri, changedKeys);
+                } catch (TrayException e) {
+                    trayItems = new ArrayList<>();
                 }
             }
+
+            if (singleItemChange) {
+                updateCache(uri, trayItems, cacheModCount);
+            }
+
+            for (final Map.Entry<OnTrayPreferenceChangeListener, ListenerRegistration> entry
+                    : listeners.entrySet()) {
+                dispatch(entry.getKey(), entry.getValue(), trayItems);
+            }
+        }
+
+        /**
+         * calls the listener with the items it is interested in, on the thread where the
+         * listener was registered
+         */
+        private void dispatch(@NonNull final OnTrayPreferenceChangeListener listener,
+                @NonNull final ListenerRegistration registration,
+                @NonNull final Collection<TrayItem> items) {
+            final List<TrayItem> trayItems = registration.filter(items);
+            final Handler handler = registration.mHandler;
+            if (handler != null) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onTrayPreferenceChanged(trayItems);
+                    }
+                });
+            } else {
+                listener.onTrayPreferenceChanged(trayItems);
+            }
         }
     }
 
     public static final String VERSION = "version";
 
+    /**
+     * number of single item uris kept by {@link #getKeyUri(String)}
+     */
+    private static final int KEY_URI_CACHE_SIZE = 64;
+
     /**
      * weak references to the listeners. Only the keys are used.
      */
     @VisibleForTesting
-    WeakHashMap<OnTrayPreferenceChangeListener, Handler> mListeners = new WeakHashMap<>();
+    WeakHashMap<OnTrayPreferenceChangeListener, ListenerRegistration> mListeners
+            = new WeakHashMap<>();
 
     /**
      * observes data changes for this storage
@@ -126,53 +286,280 @@ public class ContentProviderStorage extends TrayStorage {
     TrayContentObserver mObserver;
 
     /**
-     * the looper thread which runs the {@link #mObserver}. Only started when listeners registered
+     * runs the {@link TrayContentObserver}s of all instances. Started with the first observer and
+     * kept alive for the lifetime of the process
+     */
+    private static Handler sObserverHandler;
+
+    /**
+     * in memory copy of all items of this module mapped by key. {@code null} when the cache is
+     * disabled or not filled by {@link #getAll()} yet
      */
     @VisibleForTesting
-    HandlerThread mObserverThread;
+    HashMap<String, TrayItem> mCache;
+
+    /**
+     * when true the items of this module get cached in {@link #mCache}
+     */
+    private boolean mCacheEnabled = false;
+
+    private final Object mCacheLock = new Object();
+
+    /**
+     * incremented for every change of the cached data. Detects changes while the data was read
+     * from the provider without holding {@link #mCacheLock}
+     */
+    private int mCacheModCount = 0;
+
+    /**
+     * the earliest time an item of the {@link #mCache} expires, 0 when no cached item has a ttl
+     */
+    private long mCacheExpires = 0;
 
     private final Context mContext;
 
-    private final TrayProviderHelper mProviderHelper;
+    /**
+     * uri of the internal items of this module
+     */
+    private final Uri mInternalModuleUri;
 
-    private volatile boolean mRegisteredContentObserver = false;
+    /**
+     * uris of single items, built on first access. Bounded so modules with many keys don't keep
+     * all of their uris
+     */
+    private final LruCache<String, Uri> mKeyUris = new LruCache<String, Uri>(KEY_URI_CACHE_SIZE) {
+        @Override
+        protected Uri create(final String key) {
+            return mTrayUri.builder()
+                    .setType(getType())
+                    .setModule(getModuleName())
+                    .setKey(key)
+                    .build();
+        }
+    };
+
+    /**
+     * uri of all items of this module
+     */
+    private final Uri mModuleUri;
+
+    private final TrayProviderHelper mProviderHelper;
 
     private final TrayUri mTrayUri;
 
+    private final Uri mVersionUri;
+
     public ContentProviderStorage(@NonNull final Context context, @NonNull final String module,
             @NonNull final Type type) {
         super(module, type);
         mContext = context.getApplicationContext();
         mTrayUri = new TrayUri(mContext);
         mProviderHelper = new TrayProviderHelper(mContext);
+        // the uris never change, build them once instead of for every access
+        mModuleUri = mTrayUri.builder()
+                .setType(type)
+                .setModule(module)
+                .build();
+        mInternalModuleUri = mTrayUri.builder()
+                .setInternal(true)
+                .setType(type)
+                .setModule(module)
+                .build();
+        mVersionUri = mTrayUri.builder()
+                .setInternal(true)
+                .setType(type)
+                .setModule(module)
+                .setKey(VERSION)
+                .build();
     }
 
+    /**
+     * moves the items of another {@link ContentProviderStorage} inside the {@link
+     * TrayContentProvider} in a single transaction, other storages get copied item by item
+     */
     @Override
     public void annex(final TrayStorage oldStorage) {
-        for (final TrayItem trayItem : oldStorage.getAll()) {
-            put(trayItem);
+        if (getType() == Type.UNDEFINED) {
+            throw new TrayRuntimeException(
+                    "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
+        }
+        if (!(oldStorage instanceof ContentProviderStorage)) {
+            for (final TrayItem trayItem : oldStorage.getAll()) {
+                put(trayItem);
+            }
+            // ignore result
+            oldStorage.wipe();
+            return;
+        }
+
+        final ContentProviderStorage source = (ContentProviderStorage) oldStorage;
+        // queued writes of both modules have to be saved before the items are moved
+        final TrayAsyncWriter writer = TrayAsyncWriter.peekInstance();
+        if (writer != null) {
+            writer.flush();
+        }
+        if (mProviderHelper.annex(mModuleUri, source.mModuleUri) < 0) {
+            TrayLog.w("could not annex " + source.getModuleName() + " into " + getModuleName());
+        }
+        invalidateCache();
+        source.invalidateCache();
+        // the version of the source module got deleted, other modules keep their checks
+        VersionCheckRegistry.forget(getVersionUri().toString());
+        VersionCheckRegistry.forget(source.getVersionUri().toString());
+        if (source.getType() == Type.UNDEFINED) {
+            for (final Type type : new Type[]{Type.USER, Type.DEVICE}) {
+                VersionCheckRegistry.forget(mTrayUri.builder()
+                        .setInternal(true)
+                        .setType(type)
+                        .setModule(source.getModuleName())
+                        .setKey(VERSION)
+                        .build().toString());
+            }
         }
-        // ignore result
-        oldStorage.wipe();
     }
 
     @Override
     public boolean clear() {
-        final Uri uri = mTrayUri.builder()
-                .setModule(getModuleName())
-                .setType(getType())
-                .build();
-        return mProviderHelper.remove(uri);
+        discardPendingWrites(null);
+        final boolean cleared = mProviderHelper.remove(mModuleUri);
+        synchronized (mCacheLock) {
+            mCacheModCount++;
+            if (mCache != null) {
+                if (cleared) {
+                    mCache.clear();
+                } else {
+                    mCache = null;
+                }
+            }
+        }
+        return cleared;
+    }
+
+    /**
+     * queues the operations in a process wide writer which writes them on a background thread.
+     * Reads of all storages in this process see the changes immediately.
+     */
+    @Override
+    public void apply(@NonNull final Collection<EditOperation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        checkWritable(operations);
+        TrayAsyncWriter.getInstance(mContext).enqueue(getType(), getModuleName(), operations);
+        synchronized (mCacheLock) {
+            mCacheModCount++;
+            if (mCache != null) {
+                applyToCache(operations);
+            }
+        }
+    }
+
+    /**
+     * applies all operations in a single transaction of the {@link TrayContentProvider}. Either
+     * all changes are saved or none.
+     */
+    @Override
+    public boolean commit(@NonNull final Collection<EditOperation> operations) {
+        if (operations.isEmpty()) {
+            return true;
+        }
+        checkWritable(operations);
+
+        final ArrayList<ContentProviderOperation> batch = new ArrayList<>(operations.size());
+        final List<String> keys = new ArrayList<>(operations.size());
+        for (final EditOperation operation : operations) {
+            keys.add(operation.getKey());
+            final Uri uri = getKeyUri(operation.getKey());
+            switch (operation.getAction()) {
+                case PUT:
+                    batch.add(TrayProviderHelper.newPersistOperation(uri,
+                            operation.getData(), operation.getMigrationKey()));
+                    break;
+                case REMOVE:
+                    batch.add(TrayProviderHelper.newRemoveOperation(uri));
+                    break;
+            }
+        }
+
+        discardPendingWrites(keys);
+        final boolean committed = mProviderHelper.applyBatch(batch);
+        synchronized (mCacheLock) {
+            mCacheModCount++;
+            if (mCache != null) {
+                if (committed) {
+                    applyToCache(operations);
+                } else {
+                    // unknown state
+                    mCache = null;
+                }
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * checks the existence without transferring the item. Uses the cache when available
+     */
+    @Override
+    public boolean contains(@NonNull final String key) {
+        final TrayAsyncWriter writer = TrayAsyncWriter.peekInstance();
+        if (writer != null) {
+            final TrayAsyncWriter.PendingWrite pending =
+                    writer.getPending(getType(), getModuleName(), key);
+            if (pending != null) {
+                return pending.mOperation.getAction() == EditOperation.Action.PUT;
+            }
+        }
+
+        synchronized (mCacheLock) {
+            expireCache();
+            if (mCache != null) {
+                return mCache.containsKey(key);
+            }
+        }
+
+        final Uri uri = getKeyUri(key);
+        try {
+            if (getType() != Type.UNDEFINED) {
+                // single database, use the fast path without a cursor
+                return mProviderHelper.callContains(uri);
+            }
+            return mProviderHelper.count(uri) > 0;
+        } catch (TrayException e) {
+            return false;
+        }
     }
 
     @Override
     @Nullable
     public TrayItem get(@NonNull final String key) {
-        final Uri uri = mTrayUri.builder()
-                .setType(getType())
-                .setModule(getModuleName())
-                .setKey(key)
-                .build();
+        final TrayAsyncWriter writer = TrayAsyncWriter.peekInstance();
+        if (writer != null) {
+            final TrayAsyncWriter.PendingWrite pending =
+                    writer.getPending(getType(), getModuleName(), key);
+            if (pending != null) {
+                return pending.toTrayItem();
+            }
+        }
+
+        synchronized (mCacheLock) {
+            expireCache();
+            if (mCache != null) {
+                return mCache.get(key);
+            }
+        }
+
+        final Uri uri = getKeyUri(key);
+        if (getType() != Type.UNDEFINED) {
+            // single database, use the fast path without a cursor
+            try {
+                return mProviderHelper.callGet(uri);
+            } catch (TrayException e) {
+                return null;
+            }
+        }
+
+        // lookup in both databases
         final List<TrayItem> prefs = mProviderHelper.queryProviderSafe(uri);
         final int size = prefs.size();
         if (size > 1) {
@@ -181,7 +568,7 @@ public class ContentProviderStorage extends TrayStorage {
                     + "This can be caused by using the same name for a device and user specific preference.");
             for (int i = 0; i < prefs.size(); i++) {
                 final TrayItem pref = prefs.get(i);
-                TrayLog.d("item #" + i + " " + pref);
+                TrayLog.v("item #%s %s", i, pref);
             }
         }
         return size > 0 ? prefs.get(0) : null;
@@ -190,11 +577,99 @@ public class ContentProviderStorage extends TrayStorage {
     @NonNull
     @Override
     public Collection<TrayItem> getAll() {
-        final Uri uri = mTrayUri.builder()
-                .setType(getType())
-                .setModule(getModuleName())
-                .build();
-        return mProviderHelper.queryProviderSafe(uri);
+        final int cacheModCount;
+        synchronized (mCacheLock) {
+            expireCache();
+            if (mCache != null) {
+                return new ArrayList<>(mCache.values());
+            }
+            cacheModCount = mCacheModCount;
+        }
+
+        final List<TrayItem> items;
+        try {
+            items = withPendingWrites(mProviderHelper.queryProvider(mModuleUri));
+        } catch (TrayException e) {
+            // don't fill the cache with an empty result caused by an error
+            return new ArrayList<>();
+        }
+
+        synchronized (mCacheLock) {
+            if (mCacheEnabled && cacheModCount == mCacheModCount) {
+                mCache = new HashMap<>();
+                mCacheExpires = 0;
+                for (final TrayItem item : items) {
+                    putCache(item);
+                }
+            }
+        }
+        return items;
+    }
+
+    /**
+     * reads all items with a single query, or multiple for a huge number of keys
+     */
+    @NonNull
+    @Override
+    public Map<String, TrayItem> getMany(@NonNull final String... keys) {
+        final Map<String, TrayItem> items = new HashMap<>();
+        synchronized (mCacheLock) {
+            expireCache();
+            if (mCache != null) {
+                for (final String key : keys) {
+                    final TrayItem item = mCache.get(key);
+                    if (item != null) {
+                        items.put(key, item);
+                    }
+                }
+                return items;
+            }
+        }
+        if (keys.length == 0) {
+            return items;
+        }
+
+        final Set<String> requested = new LinkedHashSet<>(Arrays.asList(keys));
+        final List<TrayItem> found;
+        try {
+            found = mProviderHelper.queryKeys(mModuleUri, requested);
+        } catch (TrayException e) {
+            return items;
+        }
+        for (final TrayItem item : withPendingWrites(found)) {
+            // for UNDEFINED the first item wins, like in get()
+            if (requested.contains(item.key()) && !items.containsKey(item.key())) {
+                items.put(item.key(), item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * reads the changes of this module since the given sequence number. Queued writes are saved
+     * before, the cache isn't used
+     *
+     * @param sequence the {@link TrayChanges#getSequence()} of the last call, 0 for all items
+     * @return the changes, empty with the given sequence number when an error occured
+     * @throws TrayRuntimeException for the type {@link Type#UNDEFINED}, the sequence numbers of
+     *                              both databases are independent
+     */
+    @NonNull
+    public TrayChanges getChangesSince(final long sequence) {
+        if (getType() == Type.UNDEFINED) {
+            throw new TrayRuntimeException(
+                    "changes of a storage with type UNDEFINED are not supported, the sequence numbers of both databases are independent");
+        }
+        final TrayAsyncWriter writer = TrayAsyncWriter.peekInstance();
+        if (writer != null) {
+            writer.flush();
+        }
+        try {
+            return mProviderHelper.queryChanges(mModuleUri, sequence);
+        } catch (TrayException e) {
+            return new TrayChanges(sequence, new ArrayList<TrayItem>(),
+                    new ArrayList<TrayItem>());
+        }
     }
 
     /**
@@ -207,13 +682,7 @@ public class ContentProviderStorage extends TrayStorage {
 
     @Override
     public int getVersion() throws TrayException {
-        final Uri internalUri = mTrayUri.builder()
-                .setInternal(true)
-                .setType(getType())
-                .setModule(getModuleName())
-                .setKey(VERSION)
-                .build();
-        final List<TrayItem> trayItems = mProviderHelper.queryProvider(internalUri);
+        final List<TrayItem> trayItems = mProviderHelper.queryValues(mVersionUri);
         if (trayItems.size() == 0) {
             // fallback, not found
             return 0;
@@ -221,9 +690,48 @@ public class ContentProviderStorage extends TrayStorage {
         return Integer.valueOf(trayItems.get(0).value());
     }
 
+    /**
+     * reads only the keys of the items. Uses the cache when available
+     *
+     * @return the keys, each key once even when the storage has the type {@link
+     * Type#UNDEFINED} and both databases contain the key
+     */
+    @NonNull
+    @Override
+    public List<String> keys() {
+        synchronized (mCacheLock) {
+            expireCache();
+            if (mCache != null) {
+                return new ArrayList<>(mCache.keySet());
+            }
+        }
+
+        final Set<String> keys;
+        try {
+            keys = new LinkedHashSet<>(mProviderHelper.queryKeyNames(mModuleUri));
+        } catch (TrayException e) {
+            return new ArrayList<>();
+        }
+
+        final TrayAsyncWriter writer = TrayAsyncWriter.peekInstance();
+        if (writer != null) {
+            for (final TrayAsyncWriter.PendingWrite write
+                    : writer.getPending(getType(), getModuleName())) {
+                if (write.mOperation.getAction() == EditOperation.Action.PUT) {
+                    keys.add(write.mOperation.getKey());
+                } else {
+                    keys.remove(write.mOperation.getKey());
+                }
+            }
+        }
+        return new ArrayList<>(keys);
+    }
+
     @Override
     public boolean put(final TrayItem item) {
-        return put(item.key(), item.migratedKey(), item.value());
+        final Date expires = item.expires();
+        return persist(item.key(), item.migratedKey(), item.data(),
+                expires == null ? 0 : expires.getTime());
     }
 
     @Override
@@ -245,19 +753,56 @@ public class ContentProviderStorage extends TrayStorage {
     @Override
     public boolean put(@NonNull final String key, @Nullable final String migrationKey,
             @Nullable final Object data) {
+        return persist(key, migrationKey, data, 0);
+    }
+
+    /**
+     * saves data which gets removed after the ttl. Expired items are hidden immediately and
+     * deleted in the background by the {@link TrayContentProvider}
+     *
+     * @param ttl time to live in ms, greater than 0
+     */
+    @Override
+    public boolean putWithTtl(@NonNull final String key, @Nullable final Object data,
+            final long ttl) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be greater than 0, was " + ttl);
+        }
+        return persist(key, null, data, System.currentTimeMillis() + ttl);
+    }
+
+    /**
+     * @param expires the time in ms when the item gets removed, 0 for items without a ttl
+     */
+    private boolean persist(@NonNull final String key, @Nullable final String migrationKey,
+            @Nullable final Object data, final long expires) {
         if (getType() == Type.UNDEFINED) {
             throw new TrayRuntimeException(
                     "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
         }
 
-        final String value = data == null ? null : String.valueOf(data);
-
-        final Uri uri = mTrayUri.builder()
-                .setType(getType())
-                .setModule(getModuleName())
-                .setKey(key)
-                .build();
-        return mProviderHelper.persist(uri, value, migrationKey);
+        final Uri uri = getKeyUri(key);
+        discardPendingWrites(Collections.singletonList(key));
+        final boolean persisted = mProviderHelper.callPersist(uri, data, migrationKey, expires);
+        synchronized (mCacheLock) {
+            mCacheModCount++;
+            if (mCache != null) {
+                if (persisted) {
+                    final TrayItem cached = mCache.get(key);
+                    final Date now = new Date();
+                    final Date created = cached != null ? cached.created() : now;
+                    final int type = TrayItem.typeOf(data);
+                    putCache(new TrayItem(getModuleName(), key, migrationKey,
+                            data == null ? null : String.valueOf(data), created, now, type,
+                            TrayItem.longValueOf(type, data), TrayItem.doubleValueOf(type, data),
+                            expires > 0 ? new Date(expires) : null));
+                } else {
+                    // unknown state
+                    mCache = null;
+                }
+            }
+        }
+        return persisted;
     }
 
     /**
@@ -269,54 +814,59 @@ public class ContentProviderStorage extends TrayStorage {
      * was introduced in sdk version 16
      */
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
-    public synchronized void registerOnTrayPreferenceChangeListener(
+    public void registerOnTrayPreferenceChangeListener(
             @NonNull final OnTrayPreferenceChangeListener listener) {
-        // noinspection ConstantConditions
-        if (listener == null) {
-            return;
+        register(listener, null, false);
+    }
+
+    /**
+     * registers a listener for changes of a single item. Changes of other items are filtered
+     * before they are read from the {@link TrayContentProvider} or posted to the listener.
+     * <p>
+     * sdk version 15 is only partially supported. the listener gets called for all changes of
+     * this module with an empty list when the item didn't change
+     */
+    @Override
+    public void registerOnTrayPreferenceChangeListener(
+            @NonNull final OnTrayPreferenceChangeListener listener, @NonNull final String key) {
+        register(listener, key, false);
+    }
+
+    /**
+     * same as {@link #registerOnTrayPreferenceChangeListener(OnTrayPreferenceChangeListener,
+     * String)} for all items whose key starts with the prefix
+     */
+    @Override
+    public void registerOnTrayPreferenceChangeListenerForPrefix(
+            @NonNull final OnTrayPreferenceChangeListener listener,
+            @NonNull final String keyPrefix) {
+        register(listener, keyPrefix, true);
+    }
+
+    /**
+     * counts the items in the database without reading them. Uses the cache when available.
+     * Same as {@code getAll().size()}, an item saved in both databases counts twice for the
+     * type {@link Type#UNDEFINED}
+     */
+    @Override
+    public int size() {
+        synchronized (mCacheLock) {
+            expireCache();
+            if (mCache != null) {
+                return mCache.size();
+            }
         }
 
-        // save a handler associated with the calling looper to call the callback on the same thread
-        // noinspection ConstantConditions
-        Handler handler = null;
-        final Looper looper = Looper.myLooper();
-        if (looper != null) {
-            handler = new Handler(looper);
+        final TrayAsyncWriter writer = TrayAsyncWriter.peekInstance();
+        if (writer != null && !writer.getPending(getType(), getModuleName()).isEmpty()) {
+            // the pending changes may add or remove items
+            return keys().size();
         }
-        //noinspection ConstantConditions
-        mListeners.put(listener, handler);
-
-        final Collection<OnTrayPreferenceChangeListener> listeners = mListeners.keySet();
-
-        if (listeners.size() == 1) {
-
-            // registering a TrayContentObserver requires a LooperThread
-            mObserverThread = new HandlerThread("observer") {
-                @Override
-                protected void onLooperPrepared() {
-                    super.onLooperPrepared();
-                    mObserver = new TrayContentObserver(new Handler(getLooper()));
-
-                    // register observer
-                    final Uri observingUri = mTrayUri.builder()
-                            .setType(getType())
-                            .setModule(getModuleName())
-                            .build();
-                    mContext.getContentResolver()
-                            .registerContentObserver(observingUri, true, mObserver);
-                    mRegisteredContentObserver = true;
-                }
-            };
-            mObserverThread.start();
-
-            // wait synchronously until the mObserverThread registered the mObserver
-            // cannot use Thread.join(); because the Looper of the HandlerThread runs forever until killed
-            while (true) {
-                if (mRegisteredContentObserver) {
-                    mRegisteredContentObserver = false;
-                    break;
-                }
-            }
+
+        try {
+            return mProviderHelper.count(mModuleUri);
+        } catch (TrayException e) {
+            return 0;
         }
     }
 
@@ -327,12 +877,67 @@ public class ContentProviderStorage extends TrayStorage {
             throw new IllegalArgumentException(
                     "null is not valid. use clear or wipe to delete all preferences");
         }
-        final Uri uri = mTrayUri.builder()
-                .setType(getType())
-                .setModule(getModuleName())
-                .setKey(key)
-                .build();
-        return mProviderHelper.removeAndCount(uri) > 0;
+        final Uri uri = getKeyUri(key);
+        discardPendingWrites(Collections.singletonList(key));
+        final boolean removed = mProviderHelper.callRemove(uri) > 0;
+        synchronized (mCacheLock) {
+            mCacheModCount++;
+            if (mCache != null && removed) {
+                mCache.remove(key);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Enables an in memory copy of all items of this module. The cache gets filled with the first
+     * call of {@link #getAll()} and serves all following {@link #get(String)} and {@link
+     * #getAll()} calls without accessing the {@link TrayContentProvider}.
+     * <p>
+     * Local changes update the cache directly. Changes by other processes or other instances are
+     * detected with a {@link ContentObserver} which updates or invalidates the cache.
+     * <p>
+     * The cache is disabled by default. It only makes sense for long living instances, it's
+     * bound to this instance and not shared.
+     *
+     * @param enabled true to enable the cache, false to disable and drop the cached data
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public synchronized void setCacheEnabled(final boolean enabled) {
+        synchronized (mCacheLock) {
+            if (mCacheEnabled == enabled) {
+                return;
+            }
+            mCacheEnabled = enabled;
+            mCacheModCount++;
+            mCache = null;
+        }
+
+        if (enabled) {
+            if (mObserver == null) {
+                startObserving();
+            }
+        } else if (mListeners.isEmpty()) {
+            stopObserving();
+        }
+    }
+
+    /**
+     * @return the uri where the version of this module is saved
+     */
+    @NonNull
+    public Uri getVersionUri() {
+        return mVersionUri;
+    }
+
+    /**
+     * @return true when the in memory cache is enabled
+     * @see #setCacheEnabled(boolean)
+     */
+    public boolean isCacheEnabled() {
+        synchronized (mCacheLock) {
+            return mCacheEnabled;
+        }
     }
 
     @Override
@@ -341,16 +946,10 @@ public class ContentProviderStorage extends TrayStorage {
             throw new TrayRuntimeException(
                     "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
         }
-        final Uri uri = mTrayUri.builder()
-                .setInternal(true)
-                .setType(getType())
-                .setModule(getModuleName())
-                .setKey(VERSION)
-                .build();
-        return mProviderHelper.persist(uri, String.valueOf(version));
+        return mProviderHelper.persist(mVersionUri, String.valueOf(version));
     }
 
-    public void unregisterOnTrayPreferenceChangeListener(
+    public synchronized void unregisterOnTrayPreferenceChangeListener(
             @NonNull final OnTrayPreferenceChangeListener listener) {
         // noinspection ConstantConditions
         if (listener == null) {
@@ -358,12 +957,8 @@ public class ContentProviderStorage extends TrayStorage {
         }
         mListeners.remove(listener);
 
-        if (mListeners.size() == 0) {
-            mContext.getContentResolver().unregisterContentObserver(mObserver);
-            // cleanup
-            mObserver = null;
-            mObserverThread.quit();
-            mObserverThread = null;
+        if (mListeners.size() == 0 && !isCacheEnabled()) {
+            stopObserving();
         }
     }
 
@@ -382,11 +977,231 @@ public class ContentProviderStorage extends TrayStorage {
             return false;
         }
 
-        final Uri uri = mTrayUri.builder()
-                .setInternal(true)
-                .setType(getType())
-                .setModule(getModuleName())
-                .build();
-        return mProviderHelper.remove(uri);
+        return mProviderHelper.remove(mInternalModuleUri);
+    }
+
+    /**
+     * applies the changes to the {@link #mCache}, requires {@link #mCacheLock}
+     */
+    private void applyToCache(@NonNull final Collection<EditOperation> operations) {
+        final Date now = new Date();
+        for (final EditOperation operation : operations) {
+            final String key = operation.getKey();
+            if (operation.getAction() == EditOperation.Action.REMOVE) {
+                mCache.remove(key);
+            } else {
+                final Object data = operation.getData();
+                final TrayItem cached = mCache.get(key);
+                final Date created = cached != null ? cached.created() : now;
+                mCache.put(key, TrayItem.create(getModuleName(), key,
+                        operation.getMigrationKey(), data, created, now));
+            }
+        }
+    }
+
+    /**
+     * drops the {@link #mCache} when a cached item expired, the next read fills it without the
+     * expired items. Requires {@link #mCacheLock}
+     */
+    private void expireCache() {
+        if (mCache != null && mCacheExpires != 0
+                && mCacheExpires <= System.currentTimeMillis()) {
+            mCacheModCount++;
+            mCache = null;
+            mCacheExpires = 0;
+        }
+    }
+
+    /**
+     * adds the item to the {@link #mCache} and remembers when it expires. Requires {@link
+     * #mCacheLock}
+     */
+    private void putCache(@NonNull final TrayItem item) {
+        mCache.put(item.key(), item);
+        final Date expires = item.expires();
+        if (expires != null && (mCacheExpires == 0 || expires.getTime() < mCacheExpires)) {
+            mCacheExpires = expires.getTime();
+        }
+    }
+
+    private void checkWritable(@NonNull final Collection<EditOperation> operations) {
+        if (getType() != Type.UNDEFINED) {
+            return;
+        }
+        for (final EditOperation operation : operations) {
+            if (operation.getAction() == EditOperation.Action.PUT) {
+                throw new TrayRuntimeException(
+                        "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
+            }
+        }
+    }
+
+    /**
+     * a synchronous write replaces the asynchronous changes which are not written yet
+     *
+     * @param keys the written keys, {@code null} for the whole module
+     */
+    private void discardPendingWrites(@Nullable final Collection<String> keys) {
+        final TrayAsyncWriter writer = TrayAsyncWriter.peekInstance();
+        if (writer != null) {
+            writer.discard(getType(), getModuleName(), keys);
+        }
+    }
+
+    /**
+     * @return the uri of a single item of this module
+     */
+    @VisibleForTesting
+    @NonNull
+    Uri getKeyUri(@NonNull final String key) {
+        return mKeyUris.get(key);
+    }
+
+    private void invalidateCache() {
+        synchronized (mCacheLock) {
+            mCacheModCount++;
+            mCache = null;
+        }
+    }
+
+    /**
+     * @return true if the uri points to a single item of this module
+     */
+    private boolean isSingleItemChange(@NonNull final Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        return segments.size() == 3
+                && TrayContract.Preferences.BASE_PATH.equals(segments.get(0))
+                && getModuleName().equals(segments.get(1));
+    }
+
+    /**
+     * @param key    the observed key or key prefix, {@code null} for all items
+     * @param prefix true when the key is a prefix
+     */
+    private synchronized void register(final OnTrayPreferenceChangeListener listener,
+            @Nullable final String key, final boolean prefix) {
+        // noinspection ConstantConditions
+        if (listener == null) {
+            return;
+        }
+
+        // save a handler associated with the calling looper to call the callback on the same thread
+        Handler handler = null;
+        final Looper looper = Looper.myLooper();
+        if (looper != null) {
+            handler = new Handler(looper);
+        }
+        mListeners.put(listener, new ListenerRegistration(handler, key, prefix));
+
+        if (mObserver == null) {
+            startObserving();
+        }
+    }
+
+    /**
+     * registers the {@link #mObserver} to get notified about changes of this module
+     */
+    private void startObserving() {
+        mObserver = new TrayContentObserver(getObserverHandler());
+        mContext.getContentResolver().registerContentObserver(mModuleUri, true, mObserver);
+    }
+
+    private void stopObserving() {
+        if (mObserver == null) {
+            return;
+        }
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mObserver = null;
+    }
+
+    /**
+     * @return the handler of the looper thread shared by all {@link TrayContentObserver}s
+     */
+    @VisibleForTesting
+    static synchronized Handler getObserverHandler() {
+        if (sObserverHandler == null) {
+            final HandlerThread thread = new HandlerThread("TrayObserver");
+            thread.setDaemon(true);
+            thread.start();
+            // blocks (without spinning) until the looper of the thread is prepared
+            sObserverHandler = new Handler(thread.getLooper());
+        }
+        return sObserverHandler;
+    }
+
+    /**
+     * applies the changes which are not written by the {@link TrayAsyncWriter} yet
+     *
+     * @param items the items read from the provider
+     * @return the items how they will be saved after all changes were written
+     */
+    @NonNull
+    private List<TrayItem> withPendingWrites(@NonNull final List<TrayItem> items) {
+        final TrayAsyncWriter writer = TrayAsyncWriter.peekInstance();
+        if (writer == null) {
+            return items;
+        }
+        final List<TrayAsyncWriter.PendingWrite> pendingWrites =
+                writer.getPending(getType(), getModuleName());
+        if (pendingWrites.isEmpty()) {
+            return items;
+        }
+
+        final Map<String, TrayItem> pending = new LinkedHashMap<>();
+        for (final TrayAsyncWriter.PendingWrite write : pendingWrites) {
+            pending.put(write.mOperation.getKey(), write.toTrayItem());
+        }
+        final List<TrayItem> result = new ArrayList<>(items.size() + pending.size());
+        for (final TrayItem item : items) {
+            if (!pending.containsKey(item.key())) {
+                result.add(item);
+            }
+        }
+        for (final TrayItem item : pending.values()) {
+            if (item != null) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * applies a change of a single item to the cache
+     *
+     * @param uri           the uri of the changed item
+     * @param items         the current state of the item, empty when removed
+     * @param cacheModCount {@link #mCacheModCount} before the items were read
+     */
+    private void updateCache(@NonNull final Uri uri, @NonNull final List<TrayItem> items,
+            final int cacheModCount) {
+        synchronized (mCacheLock) {
+            if (mCache == null) {
+                return;
+            }
+            final String backup = uri.getQueryParameter("backup");
+            if (backup == null || getType() == Type.UNDEFINED) {
+                // changed in both databases or we don't know which one we are
+                mCacheModCount++;
+                mCache = null;
+                return;
+            }
+            if (!backup.equals(Type.USER.equals(getType()) ? "true" : "false")) {
+                // changed an item of the same module with a different type
+                return;
+            }
+            if (cacheModCount != mCacheModCount) {
+                // the cache was changed while reading the items, they could be outdated
+                mCacheModCount++;
+                mCache = null;
+                return;
+            }
+            mCacheModCount++;
+            final String key = uri.getPathSegments().get(2);
+            if (items.isEmpty()) {
+                mCache.remove(key);
+            } else {
+                putCache(items.get(0));
+            }
+        }
     }
 }
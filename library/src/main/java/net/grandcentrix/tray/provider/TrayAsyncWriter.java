@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.EditOperation;
+import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayLog;
+import net.grandcentrix.tray.core.TrayStorage;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Process wide writer for {@link ContentProviderStorage#apply(Collection)}. Changes are queued
+ * and written on a single background thread. Multiple changes of the same item which are queued
+ * at the same time are written only once, all queued changes are written in a single batch.
+ * <p>
+ * Pending changes can be read with {@link #getPending(TrayStorage.Type, String, String)} until
+ * they are written. A failed batch is retried up to {@link #MAX_ATTEMPTS} times, newer changes
+ * of the same items queued in the meantime win. Changes which couldn't be written after all
+ * attempts or haven't been written when the process dies are lost.
+ */
+/*package*/ final class TrayAsyncWriter {
+
+    /**
+     * a queued change of a single item
+     */
+    static final class PendingWrite {
+
+        /**
+         * number of failed attempts to write this change
+         */
+        final int mFailures;
+
+        final String mModule;
+
+        final EditOperation mOperation;
+
+        final long mTime;
+
+        final TrayStorage.Type mType;
+
+        PendingWrite(@NonNull final TrayStorage.Type type, @NonNull final String module,
+                @NonNull final EditOperation operation, final long time) {
+            this(type, module, operation, time, 0);
+        }
+
+        PendingWrite(@NonNull final TrayStorage.Type type, @NonNull final String module,
+                @NonNull final EditOperation operation, final long time, final int failures) {
+            mType = type;
+            mModule = module;
+            mOperation = operation;
+            mTime = time;
+            mFailures = failures;
+        }
+
+        /**
+         * @return the item how it will be saved, {@code null} if it will be removed
+         */
+        @Nullable
+        TrayItem toTrayItem() {
+            if (mOperation.getAction() == EditOperation.Action.REMOVE) {
+                return null;
+            }
+            final Object data = mOperation.getData();
+            // the created date is unknown for existing items until the item is written
+            final Date date = new Date(mTime);
+            return TrayItem.create(mModule, mOperation.getKey(), mOperation.getMigrationKey(),
+                    data, date, date);
+        }
+    }
+
+    /**
+     * how often a change is written before it gets dropped
+     */
+    @VisibleForTesting
+    static final int MAX_ATTEMPTS = 3;
+
+    @VisibleForTesting
+    static TrayAsyncWriter sInstance;
+
+    private final Executor mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "TrayAsyncWriter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * held while changes are written, see {@link #discard(TrayStorage.Type, String, Collection)}
+     */
+    private final Object mFlushLock = new Object();
+
+    private boolean mFlushScheduled = false;
+
+    /**
+     * changes which are currently written. Still visible for reads until they are written
+     */
+    private Map<String, PendingWrite> mInFlight = Collections.emptyMap();
+
+    /**
+     * queued changes mapped by {@link #id(TrayStorage.Type, String, String)}. Guards all other
+     * fields
+     */
+    private final LinkedHashMap<String, PendingWrite> mPending = new LinkedHashMap<>();
+
+    private final TrayProviderHelper mProviderHelper;
+
+    private final TrayUri mTrayUri;
+
+    @VisibleForTesting
+    TrayAsyncWriter(@NonNull final Context context) {
+        mProviderHelper = new TrayProviderHelper(context);
+        mTrayUri = new TrayUri(context);
+    }
+
+    /**
+     * @return the process wide instance, created when required
+     */
+    @NonNull
+    static synchronized TrayAsyncWriter getInstance(@NonNull final Context context) {
+        if (sInstance == null) {
+            sInstance = new TrayAsyncWriter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the process wide instance, {@code null} if nothing was written asynchronously yet
+     */
+    @Nullable
+    static synchronized TrayAsyncWriter peekInstance() {
+        return sInstance;
+    }
+
+    /**
+     * removes queued changes which are not written yet. Waits until the changes which are
+     * currently written are saved. Call this before writing synchronously, otherwise a queued
+     * change would override the newer data.
+     *
+     * @param keys the keys to discard, {@code null} for all keys of the module
+     */
+    void discard(@NonNull final TrayStorage.Type type, @NonNull final String module,
+            @Nullable final Collection<String> keys) {
+        synchronized (mFlushLock) {
+            synchronized (mPending) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                if (keys != null) {
+                    for (final String key : keys) {
+                        if (type == TrayStorage.Type.UNDEFINED) {
+                            mPending.remove(id(TrayStorage.Type.USER, module, key));
+                            mPending.remove(id(TrayStorage.Type.DEVICE, module, key));
+                        } else {
+                            mPending.remove(id(type, module, key));
+                        }
+                    }
+                    return;
+                }
+                final Iterator<PendingWrite> iterator = mPending.values().iterator();
+                while (iterator.hasNext()) {
+                    final PendingWrite write = iterator.next();
+                    if (matches(write, type, module)) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * queues the changes and schedules a write
+     *
+     * @param type UNDEFINED queues the changes for both databases, the lookups of the typed
+     *             storages find them
+     */
+    void enqueue(@NonNull final TrayStorage.Type type, @NonNull final String module,
+            @NonNull final Collection<EditOperation> operations) {
+        final long now = System.currentTimeMillis();
+        final TrayStorage.Type[] types = type == TrayStorage.Type.UNDEFINED
+                ? new TrayStorage.Type[]{TrayStorage.Type.USER, TrayStorage.Type.DEVICE}
+                : new TrayStorage.Type[]{type};
+        synchronized (mPending) {
+            for (final EditOperation operation : operations) {
+                for (final TrayStorage.Type resolved : types) {
+                    final String id = id(resolved, module, operation.getKey());
+                    // remove first to keep the order of the last change
+                    mPending.remove(id);
+                    mPending.put(id, new PendingWrite(resolved, module, operation, now));
+                }
+            }
+            if (mFlushScheduled) {
+                // the scheduled flush will write the new changes, too
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * writes all queued changes synchronously
+     */
+    void flush() {
+        synchronized (mFlushLock) {
+            final List<PendingWrite> writes;
+            synchronized (mPending) {
+                mFlushScheduled = false;
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                mInFlight = new LinkedHashMap<>(mPending);
+                mPending.clear();
+                writes = new ArrayList<>(mInFlight.values());
+            }
+
+            final ArrayList<ContentProviderOperation> batch = new ArrayList<>(writes.size());
+            for (final PendingWrite write : writes) {
+                final EditOperation operation = write.mOperation;
+                final Uri uri = mTrayUri.builder()
+                        .setType(write.mType)
+                        .setModule(write.mModule)
+                        .setKey(operation.getKey())
+                        .build();
+                if (operation.getAction() == EditOperation.Action.REMOVE) {
+                    batch.add(TrayProviderHelper.newRemoveOperation(uri));
+                } else {
+                    batch.add(TrayProviderHelper.newPersistOperation(uri,
+                            operation.getData(), operation.getMigrationKey()));
+                }
+            }
+
+            final boolean written = mProviderHelper.applyBatch(batch);
+            final boolean retry;
+            synchronized (mPending) {
+                final Map<String, PendingWrite> inFlight = mInFlight;
+                mInFlight = Collections.emptyMap();
+                retry = !written && requeueLocked(inFlight);
+            }
+            if (retry) {
+                scheduleFlush();
+            }
+        }
+    }
+
+    /**
+     * @param type UNDEFINED matches the changes of all types
+     * @return the queued change for the item or {@code null} if there is none
+     */
+    @Nullable
+    PendingWrite getPending(@NonNull final TrayStorage.Type type, @NonNull final String module,
+            @NonNull final String key) {
+        synchronized (mPending) {
+            if (mPending.isEmpty() && mInFlight.isEmpty()) {
+                return null;
+            }
+            if (type == TrayStorage.Type.UNDEFINED) {
+                final PendingWrite user = getPendingLocked(TrayStorage.Type.USER, module, key);
+                return user != null ? user
+                        : getPendingLocked(TrayStorage.Type.DEVICE, module, key);
+            }
+            return getPendingLocked(type, module, key);
+        }
+    }
+
+    /**
+     * @param type UNDEFINED matches the changes of all types
+     * @return all queued changes of the module
+     */
+    @NonNull
+    List<PendingWrite> getPending(@NonNull final TrayStorage.Type type,
+            @NonNull final String module) {
+        final List<PendingWrite> writes = new ArrayList<>();
+        synchronized (mPending) {
+            // in flight first, queued changes are newer
+            for (final PendingWrite write : mInFlight.values()) {
+                if (matches(write, type, module)) {
+                    writes.add(write);
+                }
+            }
+            for (final PendingWrite write : mPending.values()) {
+                if (matches(write, type, module)) {
+                    writes.add(write);
+                }
+            }
+        }
+        return writes;
+    }
+
+    @Nullable
+    private PendingWrite getPendingLocked(@NonNull final TrayStorage.Type type,
+            @NonNull final String module, @NonNull final String key) {
+        final String id = id(type, module, key);
+        final PendingWrite write = mPending.get(id);
+        return write != null ? write : mInFlight.get(id);
+    }
+
+    /**
+     * puts the changes of a failed batch back into the queue, in front of the newer changes.
+     * Requires the lock of {@link #mPending}
+     *
+     * @return true when a flush has to be scheduled for the retry
+     */
+    private boolean requeueLocked(@NonNull final Map<String, PendingWrite> failed) {
+        final LinkedHashMap<String, PendingWrite> retries = new LinkedHashMap<>();
+        int dropped = 0;
+        for (final Map.Entry<String, PendingWrite> entry : failed.entrySet()) {
+            if (mPending.containsKey(entry.getKey())) {
+                // a newer change of the item was queued
+                continue;
+            }
+            final PendingWrite write = entry.getValue();
+            if (write.mFailures + 1 >= MAX_ATTEMPTS) {
+                dropped++;
+                continue;
+            }
+            retries.put(entry.getKey(), new PendingWrite(write.mType, write.mModule,
+                    write.mOperation, write.mTime, write.mFailures + 1));
+        }
+        if (dropped > 0) {
+            TrayLog.w("could not write " + dropped + " pending changes after " + MAX_ATTEMPTS
+                    + " attempts, they are lost");
+        }
+        if (retries.isEmpty()) {
+            return false;
+        }
+        TrayLog.w("could not write " + retries.size() + " pending changes, retrying");
+        retries.putAll(mPending);
+        mPending.clear();
+        mPending.putAll(retries);
+        if (mFlushScheduled) {
+            return false;
+        }
+        mFlushScheduled = true;
+        return true;
+    }
+
+    private void scheduleFlush() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    @NonNull
+    private static String id(@NonNull final TrayStorage.Type type, @NonNull final String module,
+            @NonNull final String key) {
+        // the length prevents collisions of modules and keys containing the separator
+        return type.name() + "/" + module.length() + "/" + module + "/" + key;
+    }
+
+    private static boolean matches(@NonNull final PendingWrite write,
+            @NonNull final TrayStorage.Type type, @NonNull final String module) {
+        return write.mModule.equals(module)
+                && (type == TrayStorage.Type.UNDEFINED || type == write.mType);
+    }
+}
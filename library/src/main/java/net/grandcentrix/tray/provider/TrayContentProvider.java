@@ -16,22 +16,41 @@
 
 package net.grandcentrix.tray.provider;
 
+import net.grandcentrix.tray.core.TrayItem;
 import net.grandcentrix.tray.core.TrayLog;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The ContentProvider which stores all data for Tray. It accesses two databases {@link
@@ -44,10 +63,61 @@ import java.util.Date;
  * TrayContract.Preferences.Columns#MODULE} overrides the already
  * existing data. So <code>insert</code> works as <code>insertOrUpdate</code>.
  * <p>
+ * {@link #applyBatch(ArrayList)} and {@link #bulkInsert(Uri, ContentValues[])} run in a single
+ * transaction and notify once per changed module.
+ * <p>
+ * The durability of the databases can be configured with meta-data of the provider in the
+ * AndroidManifest: {@link #META_DATA_WRITE_AHEAD_LOGGING} and {@link #META_DATA_SYNCHRONOUS}
+ * or {@link #META_DATA_SYNCHRONOUS_BACKUP_EXCLUDED} for the database excluded from backups.
+ * {@link #META_DATA_NOTIFICATION_DELAY} merges the change notifications of a time window.
+ * <p>
+ * Items saved with {@link TrayContract.Preferences.Columns#EXPIRES} are hidden after that time
+ * and deleted in the background by {@link #compactExpired()}.
+ * <p>
  * Created by jannisveerkamp on 16.09.14.
  */
 public class TrayContentProvider extends ContentProvider {
 
+    /**
+     * boolean meta-data enabling the write-ahead log of both databases. Default is false
+     */
+    public static final String META_DATA_WRITE_AHEAD_LOGGING
+            = "net.grandcentrix.tray.WRITE_AHEAD_LOGGING";
+
+    /**
+     * meta-data setting the {@code synchronous} level of the database which gets backed up,
+     * one of {@link TrayDBHelper#SYNCHRONOUS_OFF}, {@link TrayDBHelper#SYNCHRONOUS_NORMAL} or
+     * {@link TrayDBHelper#SYNCHRONOUS_FULL}. Default is the sqlite default
+     */
+    public static final String META_DATA_SYNCHRONOUS = "net.grandcentrix.tray.SYNCHRONOUS";
+
+    /**
+     * same as {@link #META_DATA_SYNCHRONOUS} for the database excluded from backups. Defaults
+     * to the value of {@link #META_DATA_SYNCHRONOUS}
+     */
+    public static final String META_DATA_SYNCHRONOUS_BACKUP_EXCLUDED
+            = "net.grandcentrix.tray.SYNCHRONOUS_BACKUP_EXCLUDED";
+
+    /**
+     * integer meta-data, the time in ms changes are collected before the observers get notified.
+     * All changes of a module within this window result in a single notification. Default is 0,
+     * changes outside of a batch are notified immediately
+     */
+    public static final String META_DATA_NOTIFICATION_DELAY
+            = "net.grandcentrix.tray.NOTIFICATION_DELAY";
+
+    /**
+     * maximum number of expired items deleted in a single transaction by {@link
+     * #compactExpired()}
+     */
+    @VisibleForTesting
+    static final int COMPACTION_BATCH_SIZE = 500;
+
+    /**
+     * minimum time in ms between two compactions, items expiring in between are deleted together
+     */
+    private static final long COMPACTION_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
     private static final int SINGLE_PREFERENCE = 10;
 
     private static final int MODULE_PREFERENCE = 20;
@@ -60,14 +130,237 @@ public class TrayContentProvider extends ContentProvider {
 
     private static final int INTERNAL_ALL_PREFERENCE = 130;
 
+    private static final int CHANGES_MODULE_PREFERENCE = 220;
+
+    private static final int CHANGES_ALL_PREFERENCE = 230;
+
     private static UriMatcher sURIMatcher;
 
+    /**
+     * the columns read by {@link #annex(Uri, Uri)}
+     */
+    private static final String[] PROJECTION_ANNEX = {
+            TrayContract.Preferences.Columns.KEY,
+            TrayContract.Preferences.Columns.VALUE,
+            TrayContract.Preferences.Columns.MIGRATED_KEY,
+            TrayContract.Preferences.Columns.TYPE,
+            TrayContract.Preferences.Columns.INT_VALUE,
+            TrayContract.Preferences.Columns.REAL_VALUE,
+            TrayContract.Preferences.Columns.EXPIRES
+    };
+
+    /**
+     * collects the changes per module while a batch is applied on the current thread. {@code
+     * null} when no batch is running
+     */
+    private final ThreadLocal<Map<Uri, TrayNotification>> mBatchChanges = new ThreadLocal<>();
+
     TrayDBHelper mDeviceDbHelper;
 
     TrayDBHelper mUserDbHelper;
 
+    /**
+     * see {@link #META_DATA_NOTIFICATION_DELAY}
+     */
+    volatile int mNotificationDelay = 0;
+
+    /**
+     * changes per module waiting for the end of the {@link #mNotificationDelay}. Guarded by
+     * itself
+     */
+    private final Map<Uri, TrayNotification> mPendingNotifications = new LinkedHashMap<>();
+
+    /**
+     * publishes the {@link #mPendingNotifications}, only created with a {@link
+     * #mNotificationDelay}
+     */
+    private ScheduledExecutorService mNotificationExecutor;
+
+    private boolean mNotificationScheduled = false;
+
+    /**
+     * the info passed to {@link #attachInfo(Context, ProviderInfo)}, {@code null} in tests
+     */
+    @Nullable
+    private ProviderInfo mProviderInfo;
+
+    /**
+     * deletes the expired items in the background, created with the first item with a ttl.
+     * Guarded by {@link #mCompactionLock}
+     */
+    private ScheduledExecutorService mCompactionExecutor;
+
+    /**
+     * the time the next compaction runs, 0 if none is scheduled
+     */
+    private long mCompactionAt = 0;
+
+    private ScheduledFuture<?> mCompactionFuture;
+
+    private final Object mCompactionLock = new Object();
+
+    /**
+     * true after the items saved with a ttl by a previous process were looked up
+     */
+    private final AtomicBoolean mExpiryChecked = new AtomicBoolean(false);
+
+    private long mLastCompaction = 0;
+
+    /**
+     * applies all operations in a single transaction. Listeners get notified after all operations
+     * were applied, once per changed module.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(
+            @NonNull final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        beginBatch();
+        boolean successful = false;
+        try {
+            final ContentProviderResult[] results = super.applyBatch(operations);
+            successful = true;
+            return results;
+        } finally {
+            endBatch(successful);
+        }
+    }
+
+    /**
+     * inserts all values into the module of the given uri in a single transaction. Every {@link
+     * ContentValues} requires a {@link TrayContract.Preferences.Columns#KEY}.
+     *
+     * @param uri    uri of a module
+     * @param values the items to insert
+     * @return number of inserted items, all or nothing
+     */
+    @Override
+    public int bulkInsert(@NonNull final Uri uri, @NonNull final ContentValues[] values) {
+        final int match = sURIMatcher.match(uri);
+        switch (match) {
+            case MODULE_PREFERENCE:
+            case INTERNAL_MODULE_PREFERENCE:
+                break;
+            default:
+                throw new IllegalArgumentException("Bulk insert is not supported for Uri: " + uri);
+        }
+
+        beginBatch();
+        boolean successful = false;
+        try {
+            for (final ContentValues value : values) {
+                final String key = value.getAsString(TrayContract.Preferences.Columns.KEY);
+                if (key == null) {
+                    throw new IllegalArgumentException("Bulk insert requires a key for " + value);
+                }
+                if (insert(uri.buildUpon().appendPath(key).build(), value) == null) {
+                    return 0;
+                }
+            }
+            successful = true;
+            return values.length;
+        } finally {
+            endBatch(successful);
+        }
+    }
+
+    /**
+     * Fast path for single items without the overhead of a {@link Cursor}. Supports the methods of
+     * {@link TrayContract.Call}, {@code arg} is the uri of the item.
+     */
+    @Override
+    public Bundle call(@NonNull final String method, final String arg, final Bundle extras) {
+        if (arg == null) {
+            throw new IllegalArgumentException("Call requires an Uri as arg");
+        }
+        final Uri uri = Uri.parse(arg);
+        final Bundle result = new Bundle();
+        final int match = sURIMatcher.match(uri);
+        if (TrayContract.Call.METHOD_CHECKPOINT.equals(method)) {
+            if (match != ALL_PREFERENCE) {
+                throw new IllegalArgumentException("Checkpoint is not supported for Uri: " + uri);
+            }
+            final String mode = extras == null ? null
+                    : extras.getString(TrayContract.Call.EXTRA_CHECKPOINT_MODE);
+            result.putBoolean(TrayContract.Call.RESULT,
+                    checkpoint(uri, mode != null ? mode : TrayDBHelper.CHECKPOINT_PASSIVE));
+            return result;
+        }
+        if (TrayContract.Call.METHOD_ANNEX.equals(method)) {
+            final String source = extras == null ? null
+                    : extras.getString(TrayContract.Call.EXTRA_SOURCE);
+            if (source == null) {
+                throw new IllegalArgumentException("Annex requires the source module as extra");
+            }
+            result.putInt(TrayContract.Call.RESULT, annex(uri, Uri.parse(source)));
+            return result;
+        }
+        switch (match) {
+            case SINGLE_PREFERENCE:
+            case INTERNAL_SINGLE_PREFERENCE:
+                break;
+            default:
+                throw new IllegalArgumentException("Call is not supported for Uri: " + uri);
+        }
+
+        switch (method) {
+            case TrayContract.Call.METHOD_GET:
+            case TrayContract.Call.METHOD_CONTAINS: {
+                final Cursor cursor = query(uri, TrayContract.Call.METHOD_GET.equals(method)
+                        ? TrayContract.Preferences.PROJECTION_ITEM
+                        : TrayContract.Preferences.PROJECTION_KEY, null, null, null);
+                int count = 0;
+                if (cursor != null) {
+                    try {
+                        count = cursor.getCount();
+                        if (TrayContract.Call.METHOD_GET.equals(method)
+                                && cursor.moveToFirst()) {
+                            putItem(result, cursor);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                if (TrayContract.Call.METHOD_GET.equals(method)) {
+                    result.putInt(TrayContract.Call.RESULT, count);
+                } else {
+                    result.putBoolean(TrayContract.Call.RESULT, count > 0);
+                }
+                return result;
+            }
+            case TrayContract.Call.METHOD_PUT: {
+                final ContentValues values = new ContentValues();
+                values.put(TrayContract.Preferences.Columns.VALUE, extras == null ? null
+                        : extras.getString(TrayContract.Preferences.Columns.VALUE));
+                values.put(TrayContract.Preferences.Columns.MIGRATED_KEY, extras == null ? null
+                        : extras.getString(TrayContract.Preferences.Columns.MIGRATED_KEY));
+                if (extras != null) {
+                    values.put(TrayContract.Preferences.Columns.TYPE,
+                            extras.getInt(TrayContract.Preferences.Columns.TYPE));
+                    values.put(TrayContract.Preferences.Columns.INT_VALUE,
+                            extras.getLong(TrayContract.Preferences.Columns.INT_VALUE));
+                    values.put(TrayContract.Preferences.Columns.REAL_VALUE,
+                            extras.getDouble(TrayContract.Preferences.Columns.REAL_VALUE));
+                    if (extras.containsKey(TrayContract.Preferences.Columns.EXPIRES)) {
+                        values.put(TrayContract.Preferences.Columns.EXPIRES,
+                                extras.getLong(TrayContract.Preferences.Columns.EXPIRES));
+                    }
+                }
+                result.putBoolean(TrayContract.Call.RESULT, insert(uri, values) != null);
+                return result;
+            }
+            case TrayContract.Call.METHOD_REMOVE:
+                result.putInt(TrayContract.Call.RESULT, delete(uri, null, null));
+                return result;
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
     @Override
     public int delete(final Uri uri, String selection, String[] selectionArgs) {
+        // the deleted keys are unknown when the caller selects the items
+        final boolean customSelection = selection != null;
 
         final int match = sURIMatcher.match(uri);
         switch (match) {
@@ -107,7 +400,19 @@ public class TrayContentProvider extends ContentProvider {
 
         // Don't force an UI refresh if nothing has changed
         if (rows > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            final TrayNotification notification = new TrayNotification();
+            if (customSelection) {
+                notification.markUnknown();
+            } else if (match == SINGLE_PREFERENCE || match == INTERNAL_SINGLE_PREFERENCE) {
+                notification.remove(uri.getPathSegments().get(2));
+            } else {
+                notification.clear();
+            }
+            if (backup != null && TrayDBHelper.TABLE_NAME.equals(getTable(uri))) {
+                notification.setSequence((shouldBackup(uri) ? mUserDbHelper : mDeviceDbHelper)
+                        .querySequence());
+            }
+            notifyChange(uri, notification);
         }
 
         return rows;
@@ -141,6 +446,10 @@ public class TrayContentProvider extends ContentProvider {
             case INTERNAL_MODULE_PREFERENCE:
             case INTERNAL_ALL_PREFERENCE:
                 return TrayDBHelper.INTERNAL_TABLE_NAME;
+
+            case CHANGES_MODULE_PREFERENCE:
+            case CHANGES_ALL_PREFERENCE:
+                return TrayDBHelper.CHANGES_VIEW_NAME;
         }
     }
 
@@ -159,14 +468,13 @@ public class TrayContentProvider extends ContentProvider {
 
     @Override
     public Uri insert(final Uri uri, final ContentValues values) {
-        Date date = new Date();
+        final long now = System.currentTimeMillis();
         final int match = sURIMatcher.match(uri);
         switch (match) {
             case SINGLE_PREFERENCE:
             case INTERNAL_SINGLE_PREFERENCE:
-                // Add created and updated dates
-                values.put(TrayContract.Preferences.Columns.CREATED, date.getTime());
-                values.put(TrayContract.Preferences.Columns.UPDATED, date.getTime());
+                // Add updated date, the created date is kept for existing items
+                values.put(TrayContract.Preferences.Columns.UPDATED, now);
                 values.put(TrayContract.Preferences.Columns.MODULE, uri.getPathSegments().get(1));
                 values.put(TrayContract.Preferences.Columns.KEY, uri.getPathSegments().get(2));
                 break;
@@ -174,22 +482,22 @@ public class TrayContentProvider extends ContentProvider {
             default:
                 throw new IllegalArgumentException("Insert is not supported for Uri: " + uri);
         }
+        checkExpiry();
 
-        final String prefSelection =
-                TrayContract.Preferences.Columns.MODULE + " = ?"
-                        + "AND " + TrayContract.Preferences.Columns.KEY + " = ?";
-        final String[] prefSelectionArgs = {
-                values.getAsString(TrayContract.Preferences.Columns.MODULE),
-                values.getAsString(TrayContract.Preferences.Columns.KEY)
-        };
-
-        final String[] excludeForUpdate = {TrayContract.Preferences.Columns.CREATED};
-
-        final int status = insertOrUpdate(getWritableDatabase(uri), getTable(uri),
-                prefSelection, prefSelectionArgs, values, excludeForUpdate);
+        final TrayDBHelper dbHelper = shouldBackup(uri) ? mUserDbHelper : mDeviceDbHelper;
+        final int status = upsert(dbHelper, getTable(uri), values);
 
         if (status >= 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            final long expires = getExpires(values);
+            final TrayNotification notification = new TrayNotification();
+            notification.put(uri.getPathSegments().get(2), getType(values));
+            if (match == SINGLE_PREFERENCE) {
+                notification.setSequence(dbHelper.querySequence());
+            }
+            notifyChange(uri, notification);
+            if (expires > 0) {
+                scheduleCompaction(expires);
+            }
             return uri;
 
         } else if (status == -1) {
@@ -201,6 +509,11 @@ public class TrayContentProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * @deprecated the provider uses {@link #upsert(TrayDBHelper, String, ContentValues)} which
+     * needs a single statement instead of a query and an insert or update
+     */
+    @Deprecated
     public int insertOrUpdate(final SQLiteDatabase writableDatabase, final String table,
             final String prefSelection, final String[] prefSelectionArgs,
             final ContentValues values, final String[] excludeForUpdate) {
@@ -209,67 +522,236 @@ public class TrayContentProvider extends ContentProvider {
                         excludeForUpdate);
     }
 
+    /**
+     * inserts or updates the item described by the values with a precompiled statement of the
+     * {@link TrayDBHelper}
+     *
+     * @param dbHelper the database to write to
+     * @param table    the table to write to
+     * @param values   requires {@link TrayContract.Preferences.Columns#MODULE}, {@link
+     *                 TrayContract.Preferences.Columns#KEY} and {@link
+     *                 TrayContract.Preferences.Columns#UPDATED}. The optional {@link
+     *                 TrayContract.Preferences.Columns#TYPE} saves the native value next to
+     *                 the string, the optional {@link TrayContract.Preferences.Columns#EXPIRES}
+     *                 the end of the ttl
+     * @return 0 for success, -1 if something goes wrong
+     */
+    public int upsert(final TrayDBHelper dbHelper, final String table,
+            final ContentValues values) {
+        final long row = dbHelper.upsert(table,
+                values.getAsString(TrayContract.Preferences.Columns.MODULE),
+                values.getAsString(TrayContract.Preferences.Columns.KEY),
+                values.getAsString(TrayContract.Preferences.Columns.VALUE),
+                values.getAsString(TrayContract.Preferences.Columns.MIGRATED_KEY),
+                values.getAsLong(TrayContract.Preferences.Columns.UPDATED),
+                getType(values), getLongValue(values), getDoubleValue(values),
+                getExpires(values));
+        return row == -1 ? -1 : 0;
+    }
+
+    /**
+     * moves all items of the source module into the target module and deletes the source
+     * module including its version. Runs in a single transaction per database and notifies
+     * once per module. Existing items of the target get overwritten, the moved items get new
+     * created and updated dates.
+     *
+     * @param targetUri uri of a module with the backup param
+     * @param sourceUri uri of a module, without the backup param the items of both databases
+     *                  get moved
+     * @return the number of moved items, -1 when nothing was changed because of an error
+     */
+    public int annex(@NonNull final Uri targetUri, @NonNull final Uri sourceUri) {
+        if (sURIMatcher.match(targetUri) != MODULE_PREFERENCE
+                || targetUri.getQueryParameter("backup") == null) {
+            throw new IllegalArgumentException("Annex is not supported for Uri: " + targetUri);
+        }
+        if (sURIMatcher.match(sourceUri) != MODULE_PREFERENCE) {
+            throw new IllegalArgumentException("Annex is not supported for Uri: " + sourceUri);
+        }
+        if (targetUri.equals(sourceUri)) {
+            return 0;
+        }
+
+        beginBatch();
+        boolean successful = false;
+        try {
+            // read the items first, the source may contain the target when it has no type
+            final Map<String, ContentValues> items = new LinkedHashMap<>();
+            final Cursor cursor = query(sourceUri, PROJECTION_ANNEX, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    final ContentValues values = new ContentValues();
+                    values.put(TrayContract.Preferences.Columns.VALUE, cursor.getString(1));
+                    values.put(TrayContract.Preferences.Columns.MIGRATED_KEY,
+                            cursor.getString(2));
+                    values.put(TrayContract.Preferences.Columns.TYPE, cursor.getInt(3));
+                    values.put(TrayContract.Preferences.Columns.INT_VALUE, cursor.getLong(4));
+                    values.put(TrayContract.Preferences.Columns.REAL_VALUE, cursor.getDouble(5));
+                    if (!cursor.isNull(6)) {
+                        values.put(TrayContract.Preferences.Columns.EXPIRES, cursor.getLong(6));
+                    }
+                    // like get() the first item wins when both databases contain the key
+                    if (!items.containsKey(cursor.getString(0))) {
+                        items.put(cursor.getString(0), values);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            // a source without type and the name of the target is the other database only,
+            // the items and the version of the target must not be deleted
+            final String module = sourceUri.getPathSegments().get(1);
+            final Uri deleteUri = sourceUri.getQueryParameter("backup") == null
+                    && module.equals(targetUri.getPathSegments().get(1))
+                    ? sourceUri.buildUpon().appendQueryParameter("backup",
+                    String.valueOf(!shouldBackup(targetUri))).build()
+                    : sourceUri;
+            delete(deleteUri, null, null);
+            delete(deleteUri.buildUpon()
+                    .path(TrayContract.InternalPreferences.BASE_PATH)
+                    .appendPath(module)
+                    .build(), null, null);
+
+            for (final Map.Entry<String, ContentValues> item : items.entrySet()) {
+                final Uri uri = targetUri.buildUpon().appendPath(item.getKey()).build();
+                if (insert(uri, item.getValue()) == null) {
+                    return -1;
+                }
+            }
+            successful = true;
+            return items.size();
+        } finally {
+            endBatch(successful);
+        }
+    }
+
+    /**
+     * deletes the expired items of both databases in batches of {@link #COMPACTION_BATCH_SIZE}.
+     * Every batch is a short transaction of its own, readers and writers of other items are not
+     * blocked for the whole compaction. Runs in the background after an item expired, the
+     * observers of the modules get notified about the removed keys after each batch.
+     *
+     * @return the number of deleted items
+     */
+    public int compactExpired() {
+        final long now = System.currentTimeMillis();
+        int deleted = 0;
+        for (final TrayDBHelper dbHelper : new TrayDBHelper[]{mUserDbHelper, mDeviceDbHelper}) {
+            int rows;
+            do {
+                final Map<String, Set<String>> deletedKeys = new HashMap<>();
+                rows = dbHelper.deleteExpired(now, COMPACTION_BATCH_SIZE, deletedKeys);
+                deleted += rows;
+                if (rows > 0) {
+                    notifyExpired(dbHelper, deletedKeys);
+                }
+            } while (rows == COMPACTION_BATCH_SIZE);
+        }
+        TrayLog.v("deleted %s expired items", deleted);
+        return deleted;
+    }
+
+    /**
+     * runs a checkpoint of the write-ahead log
+     *
+     * @param uri  selects the database with the backup param, both databases if not set
+     * @param mode the checkpoint mode, see {@link TrayDBHelper#checkpoint(String)}
+     * @return false if a checkpoint could not complete
+     */
+    public boolean checkpoint(@NonNull final Uri uri, @NonNull final String mode) {
+        if (uri.getQueryParameter("backup") != null) {
+            return (shouldBackup(uri) ? mUserDbHelper : mDeviceDbHelper).checkpoint(mode);
+        }
+        final boolean user = mUserDbHelper.checkpoint(mode);
+        final boolean device = mDeviceDbHelper.checkpoint(mode);
+        return user && device;
+    }
+
     @Override
     public boolean onCreate() {
-        mUserDbHelper = new TrayDBHelper(getContext(), true);
-        mDeviceDbHelper = new TrayDBHelper(getContext(), false);
+        final Bundle metaData = getMetaData();
+        final boolean wal = metaData != null
+                && metaData.getBoolean(META_DATA_WRITE_AHEAD_LOGGING, false);
+        final String synchronous = metaData == null ? null
+                : metaData.getString(META_DATA_SYNCHRONOUS);
+        final String synchronousExcluded = metaData == null ? null
+                : metaData.getString(META_DATA_SYNCHRONOUS_BACKUP_EXCLUDED, synchronous);
+        mUserDbHelper = new TrayDBHelper(getContext(), true, wal, synchronous);
+        mDeviceDbHelper = new TrayDBHelper(getContext(), false, wal, synchronousExcluded);
+        setNotificationDelay(metaData == null ? 0
+                : metaData.getInt(META_DATA_NOTIFICATION_DELAY, 0));
         return true;
     }
 
     @Override
     public void attachInfo(Context context, ProviderInfo info) {
+        // super calls onCreate() which reads the meta-data of the info
+        mProviderInfo = info;
         super.attachInfo(context, info);
         setAuthority(info.authority);
-        TrayLog.v("TrayContentProvider registered for authority: " + info.authority);
+        // the uris of this process don't require a PackageManager lookup of the authority
+        TrayContract.setAuthority(info.authority);
+        TrayLog.v("TrayContentProvider registered for authority: %s", info.authority);
     }
 
     @Override
-    public Cursor query(final Uri uri, final String[] projection, final String selection,
-            final String[] selectionArgs, final String sortOrder) {
-        final SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+    public Cursor query(final Uri uri, final String[] projection, String selection,
+            String[] selectionArgs, final String sortOrder) {
+        // the module and key are bound as arguments. This results in a small set of sql
+        // statements which get reused from the prepared statement cache of the database
         final int match = sURIMatcher.match(uri);
-
         switch (match) {
             case SINGLE_PREFERENCE:
             case INTERNAL_SINGLE_PREFERENCE:
-                builder.appendWhere(
-                        TrayContract.Preferences.Columns.KEY + " = " +
-                                DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(2)));
+                selection = SqliteHelper.extendSelection(selection,
+                        TrayContract.Preferences.Columns.KEY + " = ?");
+                selectionArgs = SqliteHelper.extendSelectionArgs(selectionArgs,
+                        new String[]{uri.getPathSegments().get(2)});
                 // no break
             case MODULE_PREFERENCE:
             case INTERNAL_MODULE_PREFERENCE:
-                if (match == SINGLE_PREFERENCE
-                        || match == INTERNAL_SINGLE_PREFERENCE) {
-                    builder.appendWhere(" AND ");
-                }
-                builder.appendWhere(
-                        TrayContract.Preferences.Columns.MODULE + " = " +
-                                DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(1)));
+            case CHANGES_MODULE_PREFERENCE:
+                selection = SqliteHelper.extendSelection(selection,
+                        TrayContract.Preferences.Columns.MODULE + " = ?");
+                selectionArgs = SqliteHelper.extendSelectionArgs(selectionArgs,
+                        new String[]{uri.getPathSegments().get(1)});
                 // no break
             case ALL_PREFERENCE:
             case INTERNAL_ALL_PREFERENCE:
-                builder.setTables(getTable(uri));
+            case CHANGES_ALL_PREFERENCE:
                 break;
             default:
                 throw new IllegalArgumentException("Query is not supported for Uri: " + uri);
         }
 
+        final String table = getTable(uri);
+        if (TrayDBHelper.TABLE_NAME.equals(table)
+                || TrayDBHelper.CHANGES_VIEW_NAME.equals(table)) {
+            // expired items are hidden until the compaction deletes them. The columns of the
+            // view have no affinity, the argument has to be compared as integer
+            checkExpiry();
+            selection = SqliteHelper.extendSelection(selection,
+                    TrayContract.Preferences.Columns.EXPIRES + " IS NULL OR "
+                            + TrayContract.Preferences.Columns.EXPIRES
+                            + " > CAST(? AS INTEGER)");
+            selectionArgs = SqliteHelper.extendSelectionArgs(selectionArgs,
+                    new String[]{String.valueOf(System.currentTimeMillis())});
+        }
         final Cursor cursor;
         final String backup = uri.getQueryParameter("backup");
         if (backup == null) {
             // backup not set, query both dbs
-            Cursor cursor1 = builder
-                    .query(mUserDbHelper.getReadableDatabase(), projection, selection,
-                            selectionArgs, null, null, sortOrder);
-            Cursor cursor2 = builder
-                    .query(mDeviceDbHelper.getReadableDatabase(), projection, selection,
-                            selectionArgs, null, null, sortOrder);
+            Cursor cursor1 = query(mUserDbHelper.getReadableDatabase(), table, projection,
+                    selection, selectionArgs, sortOrder);
+            Cursor cursor2 = query(mDeviceDbHelper.getReadableDatabase(), table, projection,
+                    selection, selectionArgs, sortOrder);
 
             cursor = new MergeCursor(new Cursor[]{cursor1, cursor2});
         } else {
             // Query
-            cursor = builder.query(getReadableDatabase(uri), projection, selection,
-                    selectionArgs, null, null, sortOrder);
+            cursor = query(getReadableDatabase(uri), table, projection, selection,
+                    selectionArgs, sortOrder);
         }
 
         if (cursor != null) {
@@ -280,6 +762,15 @@ public class TrayContentProvider extends ContentProvider {
 
     @Override
     public void shutdown() {
+        setNotificationDelay(0);
+        synchronized (mCompactionLock) {
+            if (mCompactionExecutor != null) {
+                mCompactionExecutor.shutdownNow();
+                mCompactionExecutor = null;
+                mCompactionFuture = null;
+                mCompactionAt = 0;
+            }
+        }
         mUserDbHelper.close();
         mDeviceDbHelper.close();
     }
@@ -327,6 +818,357 @@ public class TrayContentProvider extends ContentProvider {
         return !"false".equals(backup);
     }
 
+    /**
+     * starts a transaction on both databases and collects all changes until {@link
+     * #endBatch(boolean)}
+     */
+    private void beginBatch() {
+        mBatchChanges.set(new LinkedHashMap<Uri, TrayNotification>());
+        mUserDbHelper.getWritableDatabase().beginTransaction();
+        mDeviceDbHelper.getWritableDatabase().beginTransaction();
+    }
+
+    /**
+     * ends the transactions started in {@link #beginBatch()} and notifies about the collected
+     * changes when successful
+     *
+     * @param successful true to commit the transaction, false to roll back
+     */
+    private void endBatch(final boolean successful) {
+        final SQLiteDatabase userDb = mUserDbHelper.getWritableDatabase();
+        final SQLiteDatabase deviceDb = mDeviceDbHelper.getWritableDatabase();
+        final Map<Uri, TrayNotification> changes = mBatchChanges.get();
+        mBatchChanges.remove();
+        try {
+            if (successful) {
+                deviceDb.setTransactionSuccessful();
+                userDb.setTransactionSuccessful();
+            }
+        } finally {
+            try {
+                deviceDb.endTransaction();
+            } finally {
+                userDb.endTransaction();
+            }
+        }
+
+        if (!successful || changes == null) {
+            return;
+        }
+        for (final Map.Entry<Uri, TrayNotification> entry : changes.entrySet()) {
+            dispatch(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * schedules a compaction for the items saved with a ttl by a previous process, once per
+     * process
+     */
+    private void checkExpiry() {
+        if (mExpiryChecked.compareAndSet(false, true)) {
+            try {
+                scheduleNextCompaction();
+            } catch (RuntimeException e) {
+                // the expired items stay hidden, only the compaction is missing
+                TrayLog.w("could not look up the items with a ttl: " + e);
+            }
+        }
+    }
+
+    /**
+     * schedules a compaction at the given time or earlier. Compactions run at most once per
+     * {@link #COMPACTION_INTERVAL}
+     *
+     * @param expires the time in ms an item expires
+     */
+    private void scheduleCompaction(final long expires) {
+        synchronized (mCompactionLock) {
+            final long at = Math.max(expires, mLastCompaction + COMPACTION_INTERVAL);
+            if (mCompactionFuture != null) {
+                if (mCompactionAt <= at) {
+                    return;
+                }
+                mCompactionFuture.cancel(false);
+            }
+            if (mCompactionExecutor == null) {
+                mCompactionExecutor = Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(@NonNull final Runnable runnable) {
+                                final Thread thread = new Thread(runnable, "TrayCompaction");
+                                thread.setDaemon(true);
+                                thread.setPriority(Thread.MIN_PRIORITY);
+                                return thread;
+                            }
+                        });
+            }
+            mCompactionAt = at;
+            mCompactionFuture = mCompactionExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mCompactionLock) {
+                        mCompactionFuture = null;
+                        mCompactionAt = 0;
+                        mLastCompaction = System.currentTimeMillis();
+                    }
+                    try {
+                        compactExpired();
+                    } catch (RuntimeException e) {
+                        // retried with the next item saved with a ttl
+                        TrayLog.w("could not delete the expired items: " + e);
+                        return;
+                    }
+                    scheduleNextCompaction();
+                }
+            }, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * schedules a compaction for the earliest item with a ttl of both databases
+     */
+    private void scheduleNextCompaction() {
+        final long user = mUserDbHelper.queryNextExpiry();
+        final long device = mDeviceDbHelper.queryNextExpiry();
+        final long next = user == 0 ? device : device == 0 ? user : Math.min(user, device);
+        if (next > 0) {
+            scheduleCompaction(next);
+        }
+    }
+
+    /**
+     * @return the meta-data of this provider in the AndroidManifest, {@code null} if not defined
+     */
+    @Nullable
+    private Bundle getMetaData() {
+        final ProviderInfo attached = mProviderInfo;
+        if (attached != null && attached.metaData != null) {
+            return attached.metaData;
+        }
+        // the info passed to attachInfo doesn't contain the meta-data on all platform versions
+        final Context context = getContext();
+        try {
+            final ProviderInfo info = context.getPackageManager().getProviderInfo(
+                    new ComponentName(context, getClass()), PackageManager.GET_META_DATA);
+            return info == null ? null : info.metaData;
+        } catch (PackageManager.NameNotFoundException | RuntimeException e) {
+            // not registered in the manifest, i.e. in tests
+            TrayLog.v("could not read the meta-data of the TrayContentProvider: %s", e);
+            return null;
+        }
+    }
+
+    /**
+     * notifies the observers about the changes of a module immediately or collects them for the
+     * {@link #mNotificationDelay}
+     */
+    private void dispatch(@NonNull final Uri moduleUri,
+            @NonNull final TrayNotification changes) {
+        if (mNotificationDelay > 0) {
+            synchronized (mPendingNotifications) {
+                // the delay could have been disabled in the meantime
+                if (mNotificationExecutor != null) {
+                    final TrayNotification pending = mPendingNotifications.get(moduleUri);
+                    if (pending == null) {
+                        mPendingNotifications.put(moduleUri, changes);
+                    } else {
+                        pending.merge(changes);
+                    }
+                    if (!mNotificationScheduled) {
+                        mNotificationScheduled = true;
+                        mNotificationExecutor.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                publishPendingNotifications();
+                            }
+                        }, mNotificationDelay, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+            }
+        }
+        publish(moduleUri, changes);
+    }
+
+    /**
+     * notifies the observers about the change or collects the change when a batch is running
+     *
+     * @param uri     the changed uri
+     * @param changes the changes of the uri
+     */
+    private void notifyChange(@NonNull final Uri uri, @NonNull final TrayNotification changes) {
+        final Uri moduleUri = getModuleUri(uri);
+        final Map<Uri, TrayNotification> batchChanges = mBatchChanges.get();
+        if (batchChanges == null) {
+            dispatch(moduleUri, changes);
+            return;
+        }
+        final TrayNotification pending = batchChanges.get(moduleUri);
+        if (pending == null) {
+            batchChanges.put(moduleUri, changes);
+        } else {
+            pending.merge(changes);
+        }
+    }
+
+    /**
+     * notifies the observers of every module about the keys the compaction deleted
+     */
+    private void notifyExpired(@NonNull final TrayDBHelper dbHelper,
+            @NonNull final Map<String, Set<String>> deletedKeys) {
+        final long sequence = dbHelper.querySequence();
+        final Uri contentUri = TrayContract.generateContentUri(getContext());
+        for (final Map.Entry<String, Set<String>> entry : deletedKeys.entrySet()) {
+            final TrayNotification notification = new TrayNotification();
+            for (final String key : entry.getValue()) {
+                notification.remove(key);
+            }
+            notification.setSequence(sequence);
+            final Uri moduleUri = contentUri.buildUpon()
+                    .appendPath(entry.getKey())
+                    .appendQueryParameter("backup", String.valueOf(dbHelper == mUserDbHelper))
+                    .build();
+            dispatch(moduleUri, notification);
+        }
+    }
+
+    /**
+     * notifies the observers with the changes as part of the uri. A module with a single change
+     * gets notified with the exact uri of the changed item, otherwise the module itself is
+     * notified.
+     */
+    @VisibleForTesting
+    void publish(@NonNull final Uri moduleUri,
+            @NonNull final TrayNotification notification) {
+        final String key = notification.getSingleKey();
+        final Uri uri = key != null && moduleUri.getPathSegments().size() == 2
+                ? moduleUri.buildUpon().appendPath(key).build() : moduleUri;
+        getContext().getContentResolver().notifyChange(notification.toUri(uri), null);
+    }
+
+    private void publishPendingNotifications() {
+        final ArrayList<Map.Entry<Uri, TrayNotification>> pending;
+        synchronized (mPendingNotifications) {
+            pending = new ArrayList<>(mPendingNotifications.entrySet());
+            mPendingNotifications.clear();
+            mNotificationScheduled = false;
+        }
+        for (final Map.Entry<Uri, TrayNotification> entry : pending) {
+            publish(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @param delay see {@link #META_DATA_NOTIFICATION_DELAY}, 0 publishes the pending
+     *              notifications and notifies immediately
+     */
+    /*package*/ void setNotificationDelay(final int delay) {
+        synchronized (mPendingNotifications) {
+            mNotificationDelay = delay;
+            if (delay > 0 && mNotificationExecutor == null) {
+                mNotificationExecutor = Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(@NonNull final Runnable runnable) {
+                                final Thread thread = new Thread(runnable, "TrayNotifications");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+            } else if (delay <= 0 && mNotificationExecutor != null) {
+                mNotificationExecutor.shutdown();
+                mNotificationExecutor = null;
+            }
+        }
+        if (delay <= 0) {
+            publishPendingNotifications();
+        }
+    }
+
+    /**
+     * @return the uri of the module of an item uri including the query parameters, other uris
+     * unchanged
+     */
+    @NonNull
+    private static Uri getModuleUri(@NonNull final Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() <= 2) {
+            return uri;
+        }
+        return uri.buildUpon()
+                .path(null)
+                .appendPath(segments.get(0))
+                .appendPath(segments.get(1))
+                .build();
+    }
+
+    /**
+     * writes the current row of the cursor into the bundle
+     */
+    private static void putItem(@NonNull final Bundle bundle, @NonNull final Cursor cursor) {
+        bundle.putString(TrayContract.Preferences.Columns.MODULE, cursor.getString(
+                cursor.getColumnIndexOrThrow(TrayContract.Preferences.Columns.MODULE)));
+        bundle.putString(TrayContract.Preferences.Columns.KEY, cursor.getString(
+                cursor.getColumnIndexOrThrow(TrayContract.Preferences.Columns.KEY)));
+        bundle.putString(TrayContract.Preferences.Columns.MIGRATED_KEY, cursor.getString(
+                cursor.getColumnIndexOrThrow(TrayContract.Preferences.Columns.MIGRATED_KEY)));
+        bundle.putString(TrayContract.Preferences.Columns.VALUE, cursor.getString(
+                cursor.getColumnIndexOrThrow(TrayContract.Preferences.Columns.VALUE)));
+        bundle.putLong(TrayContract.Preferences.Columns.CREATED, cursor.getLong(
+                cursor.getColumnIndexOrThrow(TrayContract.Preferences.Columns.CREATED)));
+        bundle.putLong(TrayContract.Preferences.Columns.UPDATED, cursor.getLong(
+                cursor.getColumnIndexOrThrow(TrayContract.Preferences.Columns.UPDATED)));
+        bundle.putInt(TrayContract.Preferences.Columns.TYPE, cursor.getInt(
+                cursor.getColumnIndexOrThrow(TrayContract.Preferences.Columns.TYPE)));
+        bundle.putLong(TrayContract.Preferences.Columns.INT_VALUE, cursor.getLong(
+                cursor.getColumnIndexOrThrow(TrayContract.Preferences.Columns.INT_VALUE)));
+        bundle.putDouble(TrayContract.Preferences.Columns.REAL_VALUE, cursor.getDouble(
+                cursor.getColumnIndexOrThrow(TrayContract.Preferences.Columns.REAL_VALUE)));
+        final int expires = cursor.getColumnIndexOrThrow(
+                TrayContract.Preferences.Columns.EXPIRES);
+        if (!cursor.isNull(expires)) {
+            bundle.putLong(TrayContract.Preferences.Columns.EXPIRES, cursor.getLong(expires));
+        }
+    }
+
+    /**
+     * @return the {@link TrayContract.Preferences.Columns#EXPIRES} of the values, 0 for items
+     * without a ttl
+     */
+    private static long getExpires(@NonNull final ContentValues values) {
+        final Long expires = values.getAsLong(TrayContract.Preferences.Columns.EXPIRES);
+        return expires != null ? expires : 0;
+    }
+
+    private static double getDoubleValue(@NonNull final ContentValues values) {
+        final Double value = values.getAsDouble(TrayContract.Preferences.Columns.REAL_VALUE);
+        return value != null ? value : 0;
+    }
+
+    private static long getLongValue(@NonNull final ContentValues values) {
+        final Long value = values.getAsLong(TrayContract.Preferences.Columns.INT_VALUE);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * @return the {@link TrayContract.Preferences.Columns#TYPE} of the values, {@link
+     * TrayItem#TYPE_STRING} for callers which only send the string value
+     */
+    private static int getType(@NonNull final ContentValues values) {
+        final Integer type = values.getAsInteger(TrayContract.Preferences.Columns.TYPE);
+        return type != null ? type : TrayItem.TYPE_STRING;
+    }
+
+    @Nullable
+    private static Cursor query(@Nullable final SQLiteDatabase db, @Nullable final String table,
+            final String[] projection, final String selection, final String[] selectionArgs,
+            final String sortOrder) {
+        if (db == null || table == null) {
+            return null;
+        }
+        return db.query(table, projection, selection, selectionArgs, null, null, sortOrder);
+    }
+
     static void setAuthority(final String authority) {
         sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -357,6 +1199,15 @@ public class TrayContentProvider extends ContentProvider {
         sURIMatcher.addURI(authority,
                 TrayContract.InternalPreferences.BASE_PATH + "/*/*",
                 INTERNAL_SINGLE_PREFERENCE);
+
+        sURIMatcher.addURI(authority,
+                TrayContract.Changes.BASE_PATH,
+                CHANGES_ALL_PREFERENCE);
+
+        // CHANGES_BASE/module
+        sURIMatcher.addURI(authority,
+                TrayContract.Changes.BASE_PATH + "/*",
+                CHANGES_MODULE_PREFERENCE);
     }
 
 }
@@ -20,17 +20,16 @@ import net.grandcentrix.tray.R;
 import net.grandcentrix.tray.core.TrayLog;
 import net.grandcentrix.tray.core.TrayRuntimeException;
 
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.net.Uri;
-import android.os.Process;
 import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
-import java.util.List;
-
 /**
  * Contract defining the data in the {@link TrayContentProvider}. Use {@link TrayProviderHelper} to
  * access them.
@@ -59,8 +58,57 @@ class TrayContract {
             String UPDATED = TrayDBHelper.UPDATED; // DATE
 
             String MIGRATED_KEY = TrayDBHelper.MIGRATED_KEY;
+
+            String TYPE = TrayDBHelper.TYPE;
+
+            String INT_VALUE = TrayDBHelper.INT_VALUE;
+
+            String REAL_VALUE = TrayDBHelper.REAL_VALUE;
+
+            String SEQUENCE = TrayDBHelper.SEQUENCE;
+
+            String EXPIRES = TrayDBHelper.EXPIRES; // DATE
         }
 
+        /**
+         * all columns of an item, without the {@link Columns#ID}
+         */
+        String[] PROJECTION_ITEM = {
+                Columns.MODULE,
+                Columns.KEY,
+                Columns.MIGRATED_KEY,
+                Columns.VALUE,
+                Columns.CREATED,
+                Columns.UPDATED,
+                Columns.TYPE,
+                Columns.INT_VALUE,
+                Columns.REAL_VALUE,
+                Columns.EXPIRES
+        };
+
+        /**
+         * the columns required to read the value of an item, items read with this projection
+         * have no module, migrated key and dates
+         */
+        String[] PROJECTION_VALUE = {
+                Columns.KEY,
+                Columns.VALUE,
+                Columns.TYPE,
+                Columns.INT_VALUE,
+                Columns.REAL_VALUE
+        };
+
+        /**
+         * only the key of an item
+         */
+        String[] PROJECTION_KEY = {Columns.KEY};
+
+        /**
+         * a single column with the number of matching items. Queries without the backup param
+         * return one row per database
+         */
+        String[] PROJECTION_COUNT = {"COUNT(*)"};
+
         String BASE_PATH = "preferences";
     }
 
@@ -72,8 +120,95 @@ class TrayContract {
         String BASE_PATH = "internal_preferences";
     }
 
+    /**
+     * saved and deleted preferences with the {@link Preferences.Columns#SEQUENCE} of their last
+     * change. Read only, query with the backup param because the sequence numbers of both
+     * databases are independent
+     */
+    public interface Changes {
+
+        interface Columns extends Preferences.Columns {
+
+            /**
+             * 1 when the item was deleted, only module and key are set
+             */
+            String DELETED = TrayDBHelper.DELETED;
+        }
+
+        String[] PROJECTION = {
+                Columns.MODULE,
+                Columns.KEY,
+                Columns.MIGRATED_KEY,
+                Columns.VALUE,
+                Columns.CREATED,
+                Columns.UPDATED,
+                Columns.TYPE,
+                Columns.INT_VALUE,
+                Columns.REAL_VALUE,
+                Columns.SEQUENCE,
+                Columns.DELETED,
+                Columns.EXPIRES
+        };
+
+        String BASE_PATH = "changes";
+    }
+
+    /**
+     * methods of {@link TrayContentProvider#call(String, String, android.os.Bundle)}. The uri
+     * of a single item is passed as {@code arg}. Items are exchanged as {@link android.os.Bundle}
+     * using the {@link Preferences.Columns} as keys.
+     */
+    public interface Call {
+
+        /**
+         * returns the item, {@link #RESULT} is the number of found items
+         */
+        String METHOD_GET = "get";
+
+        /**
+         * {@link #RESULT} is true when the item exists
+         */
+        String METHOD_CONTAINS = "contains";
+
+        /**
+         * saves {@link Preferences.Columns#VALUE}, {@link Preferences.Columns#MIGRATED_KEY}, the
+         * typed value and the optional {@link Preferences.Columns#EXPIRES} of the extras. {@link
+         * #RESULT} is true when successful
+         */
+        String METHOD_PUT = "put";
+
+        /**
+         * {@link #RESULT} is the number of removed items
+         */
+        String METHOD_REMOVE = "remove";
+
+        /**
+         * runs a checkpoint of the write-ahead log. Requires the uri of all items, the backup
+         * param selects the database. The mode is read from {@link #EXTRA_CHECKPOINT_MODE}.
+         * {@link #RESULT} is false when a checkpoint could not complete
+         */
+        String METHOD_CHECKPOINT = "checkpoint";
+
+        String EXTRA_CHECKPOINT_MODE = "checkpointMode";
+
+        /**
+         * moves all items of the module in {@link #EXTRA_SOURCE} into the module passed as uri
+         * and deletes the source module including its version. Requires module uris, the target
+         * with the backup param. {@link #RESULT} is the number of moved items
+         */
+        String METHOD_ANNEX = "annex";
+
+        String EXTRA_SOURCE = "source";
+
+        String RESULT = "result";
+    }
+
+    /**
+     * the authority of the {@link TrayContentProvider}, set when the provider gets attached in
+     * this process or found with the {@link android.content.pm.PackageManager}
+     */
     @VisibleForTesting
-    static String sAuthority;
+    static volatile String sAuthority;
 
     @NonNull
     public static Uri generateContentUri(@NonNull final Context context) {
@@ -85,6 +220,11 @@ class TrayContract {
         return generateContentUri(context, InternalPreferences.BASE_PATH);
     }
 
+    @NonNull
+    /*package*/ static Uri generateChangesContentUri(@NonNull final Context context) {
+        return generateContentUri(context, Changes.BASE_PATH);
+    }
+
     /**
      * Inform if someone use the old way to set or override the authority
      */
@@ -113,25 +253,47 @@ class TrayContract {
         return contentUri;
     }
 
+    /**
+     * sets the authority without asking the {@link android.content.pm.PackageManager}. Called
+     * by the {@link TrayContentProvider} which gets attached before the {@link
+     * android.app.Application} is created in its process
+     */
+    /*package*/ static void setAuthority(@NonNull final String authority) {
+        sAuthority = authority;
+    }
+
+    @NonNull
+    private static String getAuthority(@NonNull final Context context) {
+        final String authority = sAuthority;
+        if (authority != null) {
+            return authority;
+        }
+        return findAuthority(context);
+    }
+
+    /**
+     * slow path for processes without the attached {@link TrayContentProvider}, reads the
+     * provider of this package
+     */
     @NonNull
-    private static synchronized String getAuthority(@NonNull final Context context) {
+    private static synchronized String findAuthority(@NonNull final Context context) {
         if (sAuthority != null) {
             return sAuthority;
         }
 
         checkOldWayToSetAuthority(context);
 
-        // read all providers of the app and find the TrayContentProvider to read the authority
-        final List<ProviderInfo> providers = context.getPackageManager()
-                .queryContentProviders(context.getPackageName(), Process.myUid(), 0);
-        if (providers != null) {
-            for (ProviderInfo provider : providers) {
-                if (provider.name.equals(TrayContentProvider.class.getName())) {
-                    sAuthority = provider.authority;
-                    TrayLog.v("found authority: " + sAuthority);
-                    return sAuthority;
-                }
+        // look up the TrayContentProvider of this app directly instead of scanning all
+        try {
+            final ProviderInfo provider = context.getPackageManager().getProviderInfo(
+                    new ComponentName(context, TrayContentProvider.class), 0);
+            if (provider != null && provider.authority != null) {
+                sAuthority = provider.authority;
+                TrayLog.v("found authority: %s", sAuthority);
+                return sAuthority;
             }
+        } catch (PackageManager.NameNotFoundException e) {
+            TrayLog.w("TrayContentProvider is not registered: " + e);
         }
 
         // Should never happen. Otherwise we implemented tray in a wrong way!
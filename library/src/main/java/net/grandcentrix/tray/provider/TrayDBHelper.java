@@ -17,15 +17,23 @@
 package net.grandcentrix.tray.provider;
 
 
+import net.grandcentrix.tray.core.TrayItem;
 import net.grandcentrix.tray.core.TrayLog;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Helper to access the two internal databases where all tray data are saved
  * <p>
@@ -54,6 +62,66 @@ public class TrayDBHelper extends SQLiteOpenHelper {
 
     public static final String MIGRATED_KEY = "MIGRATED_KEY";
 
+    /**
+     * one of the {@code TYPE_} constants of {@link TrayItem}, tells which column holds the native
+     * value. {@link #VALUE} always holds the string representation
+     */
+    public static final String TYPE = "TYPE";
+
+    /**
+     * native value of int, long and boolean items
+     */
+    public static final String INT_VALUE = "INT_VALUE";
+
+    /**
+     * native value of float items
+     */
+    public static final String REAL_VALUE = "REAL_VALUE";
+
+    /**
+     * number of the last change of an item, increasing with every change of the database. Only
+     * in {@link #TABLE_NAME} and {@link #DELETED_TABLE_NAME}
+     */
+    public static final String SEQUENCE = "SEQUENCE";
+
+    /**
+     * the time in ms when an item expires, {@code null} for items without a ttl. Expired items
+     * are hidden by the {@link TrayContentProvider} until {@link #deleteExpired(long, int)}
+     * removes them
+     */
+    public static final String EXPIRES = "EXPIRES";
+
+    /**
+     * {@link #EXPIRES} of the items {@link #deleteExpired(long, int)} is about to delete, the
+     * delete trigger doesn't record them in {@link #DELETED_TABLE_NAME}
+     */
+    private static final int EXPIRES_COMPACTED = -1;
+
+    /**
+     * the module, key and {@link #SEQUENCE} of deleted items of {@link #TABLE_NAME}. Rows get
+     * removed when an item with the same module and key is saved again. Expired items are
+     * deleted without a row, readers of {@link #CHANGES_VIEW_NAME} drop them by their {@link
+     * #EXPIRES}
+     */
+    public static final String DELETED_TABLE_NAME = "TrayDeleted";
+
+    /**
+     * a single row with the last used {@link #SEQUENCE}
+     */
+    public static final String SEQUENCE_TABLE_NAME = "TraySequence";
+
+    /**
+     * view of the items of {@link #TABLE_NAME} and the deleted items of {@link
+     * #DELETED_TABLE_NAME}. Reading both with a single statement doesn't miss changes written
+     * between two queries
+     */
+    public static final String CHANGES_VIEW_NAME = "TrayChangeLog";
+
+    /**
+     * 1 for rows of {@link #CHANGES_VIEW_NAME} which are deleted items, 0 otherwise
+     */
+    public static final String DELETED = "DELETED";
+
     // TODO add additional meta fields:
     // public static final String APP_VERSION_CODE = "APP_VERSION_CODE";
 
@@ -89,17 +157,183 @@ public class TrayDBHelper extends SQLiteOpenHelper {
             + ")"
             + ");";
 
-    /*package*/ static final int DATABASE_VERSION = 2;
+    public static final String[] V3_ALTER_TABLES = {
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + TYPE + " INT DEFAULT 0",
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + INT_VALUE + " INT",
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + REAL_VALUE + " REAL",
+            "ALTER TABLE " + INTERNAL_TABLE_NAME + " ADD COLUMN " + TYPE + " INT DEFAULT 0",
+            "ALTER TABLE " + INTERNAL_TABLE_NAME + " ADD COLUMN " + INT_VALUE + " INT",
+            "ALTER TABLE " + INTERNAL_TABLE_NAME + " ADD COLUMN " + REAL_VALUE + " REAL"
+    };
+
+    /**
+     * assigns the next {@link #SEQUENCE} to every insert, update and delete of {@link
+     * #TABLE_NAME}, deletes are recorded in {@link #DELETED_TABLE_NAME}. The upsert replaces
+     * rows without firing the delete trigger
+     */
+    public static final String[] V4_CREATE_SEQUENCE = {
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SEQUENCE + " INT DEFAULT 0",
+            // existing items changed in the order of their ids
+            "UPDATE " + TABLE_NAME + " SET " + SEQUENCE + " = " + BaseColumns._ID,
+            "CREATE INDEX " + TABLE_NAME + "_" + SEQUENCE + " ON " + TABLE_NAME
+                    + " (" + SEQUENCE + ")",
+            "CREATE TABLE " + SEQUENCE_TABLE_NAME + " (" + VALUE + " INT NOT NULL)",
+            "INSERT INTO " + SEQUENCE_TABLE_NAME + " (" + VALUE + ") SELECT IFNULL(MAX("
+                    + SEQUENCE + "), 0) FROM " + TABLE_NAME,
+            "CREATE TABLE " + DELETED_TABLE_NAME + " ( "
+                    + MODULE + " TEXT, "
+                    + KEY + " TEXT NOT NULL, "
+                    + SEQUENCE + " INT NOT NULL, "
+                    + "UNIQUE (" + MODULE + ", " + KEY + ")"
+                    + ");",
+            "CREATE INDEX " + DELETED_TABLE_NAME + "_" + SEQUENCE + " ON " + DELETED_TABLE_NAME
+                    + " (" + SEQUENCE + ")",
+            "CREATE TRIGGER " + TABLE_NAME + "_insert AFTER INSERT ON " + TABLE_NAME
+                    + " BEGIN "
+                    + "UPDATE " + SEQUENCE_TABLE_NAME + " SET " + VALUE + " = " + VALUE + " + 1; "
+                    + "UPDATE " + TABLE_NAME + " SET " + SEQUENCE + " = (SELECT " + VALUE
+                    + " FROM " + SEQUENCE_TABLE_NAME + ") WHERE " + BaseColumns._ID
+                    + " = NEW." + BaseColumns._ID + "; "
+                    + "DELETE FROM " + DELETED_TABLE_NAME + " WHERE " + MODULE + " = NEW."
+                    + MODULE + " AND " + KEY + " = NEW." + KEY + "; "
+                    + "END",
+            "CREATE TRIGGER " + TABLE_NAME + "_update AFTER UPDATE OF "
+                    + KEY + ", " + VALUE + ", " + MODULE + ", " + MIGRATED_KEY + ", "
+                    + TYPE + ", " + INT_VALUE + ", " + REAL_VALUE
+                    + " ON " + TABLE_NAME
+                    + " BEGIN "
+                    + "UPDATE " + SEQUENCE_TABLE_NAME + " SET " + VALUE + " = " + VALUE + " + 1; "
+                    + "UPDATE " + TABLE_NAME + " SET " + SEQUENCE + " = (SELECT " + VALUE
+                    + " FROM " + SEQUENCE_TABLE_NAME + ") WHERE " + BaseColumns._ID
+                    + " = NEW." + BaseColumns._ID + "; "
+                    + "END",
+            "CREATE TRIGGER " + TABLE_NAME + "_delete AFTER DELETE ON " + TABLE_NAME
+                    + " BEGIN "
+                    + "UPDATE " + SEQUENCE_TABLE_NAME + " SET " + VALUE + " = " + VALUE + " + 1; "
+                    + "INSERT OR REPLACE INTO " + DELETED_TABLE_NAME + " ("
+                    + MODULE + ", " + KEY + ", " + SEQUENCE + ") VALUES (OLD." + MODULE
+                    + ", OLD." + KEY + ", (SELECT " + VALUE + " FROM " + SEQUENCE_TABLE_NAME
+                    + ")); "
+                    + "END",
+            "CREATE VIEW " + CHANGES_VIEW_NAME + " AS "
+                    + "SELECT " + MODULE + ", " + KEY + ", " + MIGRATED_KEY + ", " + VALUE + ", "
+                    + CREATED + ", " + UPDATED + ", " + TYPE + ", " + INT_VALUE + ", "
+                    + REAL_VALUE + ", " + SEQUENCE + ", 0 AS " + DELETED
+                    + " FROM " + TABLE_NAME
+                    + " UNION ALL "
+                    + "SELECT " + MODULE + ", " + KEY + ", NULL, NULL, NULL, NULL, "
+                    + TrayItem.TYPE_STRING + ", 0, 0, " + SEQUENCE + ", 1"
+                    + " FROM " + DELETED_TABLE_NAME
+    };
+
+    /**
+     * adds {@link #EXPIRES} to both tables, only the items of {@link #TABLE_NAME} get a ttl.
+     * {@link #CHANGES_VIEW_NAME} gets recreated with the column, the expired items can be
+     * filtered before the compaction deleted them. The delete trigger gets recreated without a
+     * tombstone for the compacted items, otherwise short lived keys would grow {@link
+     * #DELETED_TABLE_NAME} forever
+     */
+    public static final String[] V5_ADD_EXPIRES = {
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + EXPIRES + " INT",
+            "ALTER TABLE " + INTERNAL_TABLE_NAME + " ADD COLUMN " + EXPIRES + " INT",
+            "CREATE INDEX " + TABLE_NAME + "_" + EXPIRES + " ON " + TABLE_NAME
+                    + " (" + EXPIRES + ")",
+            "DROP VIEW " + CHANGES_VIEW_NAME,
+            "CREATE VIEW " + CHANGES_VIEW_NAME + " AS "
+                    + "SELECT " + MODULE + ", " + KEY + ", " + MIGRATED_KEY + ", " + VALUE + ", "
+                    + CREATED + ", " + UPDATED + ", " + TYPE + ", " + INT_VALUE + ", "
+                    + REAL_VALUE + ", " + SEQUENCE + ", 0 AS " + DELETED + ", " + EXPIRES
+                    + " FROM " + TABLE_NAME
+                    + " UNION ALL "
+                    + "SELECT " + MODULE + ", " + KEY + ", NULL, NULL, NULL, NULL, "
+                    + TrayItem.TYPE_STRING + ", 0, 0, " + SEQUENCE + ", 1, NULL"
+                    + " FROM " + DELETED_TABLE_NAME,
+            "DROP TRIGGER " + TABLE_NAME + "_delete",
+            "CREATE TRIGGER " + TABLE_NAME + "_delete AFTER DELETE ON " + TABLE_NAME
+                    + " WHEN OLD." + EXPIRES + " IS NOT " + EXPIRES_COMPACTED
+                    + " BEGIN "
+                    + "UPDATE " + SEQUENCE_TABLE_NAME + " SET " + VALUE + " = " + VALUE + " + 1; "
+                    + "INSERT OR REPLACE INTO " + DELETED_TABLE_NAME + " ("
+                    + MODULE + ", " + KEY + ", " + SEQUENCE + ") VALUES (OLD." + MODULE
+                    + ", OLD." + KEY + ", (SELECT " + VALUE + " FROM " + SEQUENCE_TABLE_NAME
+                    + ")); "
+                    + "END"
+    };
+
+    /*package*/ static final int DATABASE_VERSION = 5;
+
+    private static final String UPSERT_SQL = buildUpsertSql(TABLE_NAME);
+
+    private static final String INTERNAL_UPSERT_SQL = buildUpsertSql(INTERNAL_TABLE_NAME);
+
+    private static final String QUERY_SEQUENCE_SQL = "SELECT " + VALUE + " FROM "
+            + SEQUENCE_TABLE_NAME;
+
+    /**
+     * deletes a batch of expired items. Bind arguments: 1 now, 2 batch size
+     */
+    // both select the same rows ordered by the id, the delete runs in the same transaction
+    private static final String QUERY_EXPIRED_SQL = "SELECT " + MODULE + ", " + KEY + " FROM "
+            + TABLE_NAME + " WHERE " + EXPIRES + " <= ?1 ORDER BY " + BaseColumns._ID
+            + " LIMIT ?2";
+
+    private static final String MARK_EXPIRED_SQL = "UPDATE " + TABLE_NAME + " SET " + EXPIRES
+            + " = " + EXPIRES_COMPACTED + " WHERE " + BaseColumns._ID + " IN (SELECT "
+            + BaseColumns._ID + " FROM " + TABLE_NAME + " WHERE " + EXPIRES + " <= ?1 ORDER BY "
+            + BaseColumns._ID + " LIMIT ?2)";
+
+    private static final String DELETE_EXPIRED_SQL = "DELETE FROM " + TABLE_NAME + " WHERE "
+            + EXPIRES + " = " + EXPIRES_COMPACTED;
+
+    private static final String QUERY_NEXT_EXPIRY_SQL = "SELECT MIN(" + EXPIRES + ") FROM "
+            + TABLE_NAME;
+
+    private static final String LOG_TAG_BACKUP = "tray internal db (backup): ";
+
+    private static final String LOG_TAG_NO_BACKUP = "tray internal db (no backup): ";
+
+    /**
+     * values for the {@code synchronous} pragma, see
+     * <a href="https://www.sqlite.org/pragma.html#pragma_synchronous">sqlite.org</a>
+     */
+    public static final String SYNCHRONOUS_OFF = "OFF";
+
+    public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+
+    public static final String SYNCHRONOUS_FULL = "FULL";
+
+    /**
+     * modes for {@link #checkpoint(String)}, see
+     * <a href="https://www.sqlite.org/pragma.html#pragma_wal_checkpoint">sqlite.org</a>
+     */
+    public static final String CHECKPOINT_PASSIVE = "PASSIVE";
+
+    public static final String CHECKPOINT_FULL = "FULL";
+
+    public static final String CHECKPOINT_RESTART = "RESTART";
+
+    public static final String CHECKPOINT_TRUNCATE = "TRUNCATE";
 
     private final int mCreateVersion;
 
+    /**
+     * {@code synchronous} level applied when the database gets opened, {@code null} keeps the
+     * sqlite default
+     */
+    @Nullable
+    private final String mSynchronous;
+
     private final boolean mWithBackup;
 
+    private final boolean mWriteAheadLogging;
+
     /*package*/ TrayDBHelper(Context context, String databaseName, final boolean withBackup,
             int databaseVersion) {
         super(context, databaseName, null, databaseVersion);
         mWithBackup = withBackup;
         mCreateVersion = databaseVersion;
+        mWriteAheadLogging = false;
+        mSynchronous = null;
     }
 
     public TrayDBHelper(Context context) {
@@ -107,44 +341,309 @@ public class TrayDBHelper extends SQLiteOpenHelper {
     }
 
     public TrayDBHelper(Context context, final boolean withBackup) {
+        this(context, withBackup, false, null);
+    }
+
+    /**
+     * @param withBackup        {@link #DATABASE_NAME} when true, otherwise {@link
+     *                          #DATABASE_NAME_NO_BACKUP}
+     * @param writeAheadLogging enables the write-ahead log. Readers no longer block writers
+     *                          and a commit doesn't need to sync the database file
+     * @param synchronous       one of {@link #SYNCHRONOUS_OFF}, {@link #SYNCHRONOUS_NORMAL} or
+     *                          {@link #SYNCHRONOUS_FULL}, {@code null} for the sqlite default
+     */
+    public TrayDBHelper(Context context, final boolean withBackup,
+            final boolean writeAheadLogging, @Nullable final String synchronous) {
         super(context, withBackup ? DATABASE_NAME : DATABASE_NAME_NO_BACKUP, null,
                 DATABASE_VERSION);
+        if (synchronous != null && !SYNCHRONOUS_OFF.equals(synchronous)
+                && !SYNCHRONOUS_NORMAL.equals(synchronous)
+                && !SYNCHRONOUS_FULL.equals(synchronous)) {
+            throw new IllegalArgumentException("unknown synchronous level: " + synchronous);
+        }
         mWithBackup = withBackup;
         mCreateVersion = DATABASE_VERSION;
+        mWriteAheadLogging = writeAheadLogging;
+        mSynchronous = synchronous;
+    }
+
+    /**
+     * Builds a statement which inserts an item or replaces the item with the same {@link
+     * #MODULE} and {@link #KEY}. The {@link #CREATED} date of a replaced item is preserved.
+     * <p>
+     * Bind arguments: 1 module, 2 key, 3 value, 4 migrated key, 5 current time, 6 type, 7 int
+     * value, 8 real value
+     *
+     * @param table {@link #TABLE_NAME} or {@link #INTERNAL_TABLE_NAME}
+     * @return the sql statement
+     */
+    /*package*/
+    static String buildUpsertSql(@NonNull final String table) {
+        return "INSERT OR REPLACE INTO " + table + " ("
+                + MODULE + ", "
+                + KEY + ", "
+                + VALUE + ", "
+                + MIGRATED_KEY + ", "
+                + CREATED + ", "
+                + UPDATED + ", "
+                + TYPE + ", "
+                + INT_VALUE + ", "
+                + REAL_VALUE + ", "
+                + EXPIRES
+                + ") VALUES (?1, ?2, ?3, ?4, COALESCE((SELECT " + CREATED
+                + " FROM " + table
+                + " WHERE " + MODULE + " = ?1 AND " + KEY + " = ?2), ?5), ?5, ?6, ?7, ?8, ?9)";
+    }
+
+    /**
+     * copies the content of the write-ahead log into the database file. Does nothing when the
+     * write-ahead log isn't enabled.
+     *
+     * @param mode one of {@link #CHECKPOINT_PASSIVE}, {@link #CHECKPOINT_FULL}, {@link
+     *             #CHECKPOINT_RESTART} or {@link #CHECKPOINT_TRUNCATE}
+     * @return false if the checkpoint could not complete because of other connections
+     */
+    public boolean checkpoint(@NonNull final String mode) {
+        if (!CHECKPOINT_PASSIVE.equals(mode) && !CHECKPOINT_FULL.equals(mode)
+                && !CHECKPOINT_RESTART.equals(mode) && !CHECKPOINT_TRUNCATE.equals(mode)) {
+            throw new IllegalArgumentException("unknown checkpoint mode: " + mode);
+        }
+        if (!mWriteAheadLogging) {
+            return true;
+        }
+        // returns a single row: busy, frames in the log, checkpointed frames
+        final Cursor cursor = getWritableDatabase()
+                .rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+        try {
+            final boolean busy = cursor.moveToFirst() && cursor.getInt(0) != 0;
+            TrayLog.v("%scheckpoint %s %s", logTag(), mode, busy ? "busy" : "done");
+            return !busy;
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
     public void onCreate(final SQLiteDatabase db) {
-        TrayLog.v(logTag() + "onCreate with version " + mCreateVersion);
+        TrayLog.v("%sonCreate with version %s", logTag(), mCreateVersion);
 
         createV1(db);
-        TrayLog.v(logTag() + "created database version 1");
+        TrayLog.v("%screated database version 1", logTag());
 
         if (mCreateVersion > 1) {
             onUpgrade(db, 1, mCreateVersion);
         }
     }
 
+    @Override
+    public void onOpen(final SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        // onConfigure would be the better place but requires api 16
+        if (mWriteAheadLogging) {
+            db.enableWriteAheadLogging();
+        }
+        // after enabling the log, changing the journal mode resets the synchronous level
+        if (mSynchronous != null) {
+            db.execSQL("PRAGMA synchronous = " + mSynchronous);
+        }
+    }
+
     @Override
     public void onUpgrade(final SQLiteDatabase db, final int oldVersion,
             final int newVersion) {
-        TrayLog.v(logTag() + "upgrading Database from version " + oldVersion
-                + " to version " + newVersion);
+        TrayLog.v("%supgrading Database from version %s to version %s", logTag(), oldVersion,
+                newVersion);
 
+        if (oldVersion <= 0) {
+            throw new IllegalArgumentException(
+                    "onUpgrade() with oldVersion <= 0 is useless");
+        }
         // increase the version here after the upgrade was implemented
-        if (newVersion > 2) {
+        if (newVersion > 5) {
             throw new IllegalStateException(
                     "onUpgrade doesn't support the upgrade to version " + newVersion);
         }
 
-        switch (oldVersion) {
-            case 1:
-                upgradeToV2(db);
-                TrayLog.v(logTag() + "upgraded Database to version 2");
-                break;
-            default:
-                throw new IllegalArgumentException(
-                        "onUpgrade() with oldVersion <= 0 is useless");
+        if (oldVersion < 2 && newVersion >= 2) {
+            upgradeToV2(db);
+            TrayLog.v("%supgraded Database to version 2", logTag());
+        }
+        if (oldVersion < 3 && newVersion >= 3) {
+            upgradeToV3(db);
+            TrayLog.v("%supgraded Database to version 3", logTag());
+        }
+        if (oldVersion < 4 && newVersion >= 4) {
+            upgradeToV4(db);
+            TrayLog.v("%supgraded Database to version 4", logTag());
+        }
+        if (oldVersion < 5 && newVersion >= 5) {
+            upgradeToV5(db);
+            TrayLog.v("%supgraded Database to version 5", logTag());
+        }
+    }
+
+    /**
+     * inserts or updates an item with a single precompiled statement. Keeps the {@link #CREATED}
+     * date of an existing item.
+     * <p>
+     * Every call compiles its own statement, the connection of the database reuses the prepared
+     * statement of the same sql from its cache. A statement shared between threads would need a
+     * lock which is held while waiting for the connection, a running transaction of another
+     * thread which needs the same statement would deadlock.
+     *
+     * @param table       {@link #TABLE_NAME} or {@link #INTERNAL_TABLE_NAME}
+     * @param module      module of the item
+     * @param key         key of the item
+     * @param value       the value to save
+     * @param migratedKey the key before the migration
+     * @param time        the time of the change, used for {@link #UPDATED} and {@link #CREATED}
+     *                    for new items
+     * @return the row id of the item, -1 if an error occurred
+     */
+    public long upsert(@NonNull final String table, @NonNull final String module,
+            @NonNull final String key, @Nullable final String value,
+            @Nullable final String migratedKey, final long time) {
+        return upsert(table, module, key, value, migratedKey, time, TrayItem.TYPE_STRING, 0, 0);
+    }
+
+    /**
+     * same as {@link #upsert(String, String, String, String, String, long)} but saves the native
+     * value in {@link #INT_VALUE} or {@link #REAL_VALUE} next to its string representation
+     *
+     * @param type        one of the {@code TYPE_} constants of {@link TrayItem}
+     * @param longValue   saved as {@link #INT_VALUE} for int, long and boolean items
+     * @param doubleValue saved as {@link #REAL_VALUE} for float items
+     */
+    public long upsert(@NonNull final String table, @NonNull final String module,
+            @NonNull final String key, @Nullable final String value,
+            @Nullable final String migratedKey, final long time, final int type,
+            final long longValue, final double doubleValue) {
+        return upsert(table, module, key, value, migratedKey, time, type, longValue, doubleValue,
+                0);
+    }
+
+    /**
+     * same as {@link #upsert(String, String, String, String, String, long, int, long, double)}
+     * for items with a ttl
+     *
+     * @param expires saved as {@link #EXPIRES}, 0 for items without a ttl
+     */
+    public long upsert(@NonNull final String table, @NonNull final String module,
+            @NonNull final String key, @Nullable final String value,
+            @Nullable final String migratedKey, final long time, final int type,
+            final long longValue, final double doubleValue, final long expires) {
+        final SQLiteStatement statement = getWritableDatabase().compileStatement(
+                TABLE_NAME.equals(table) ? UPSERT_SQL : INTERNAL_UPSERT_SQL);
+        try {
+            statement.bindString(1, module);
+            statement.bindString(2, key);
+            bindStringOrNull(statement, 3, value);
+            bindStringOrNull(statement, 4, migratedKey);
+            statement.bindLong(5, time);
+            statement.bindLong(6, type);
+            bindTypedValues(statement, type, longValue, doubleValue);
+            if (expires > 0) {
+                statement.bindLong(9, expires);
+            } else {
+                statement.bindNull(9);
+            }
+            return statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * @return the last {@link #SEQUENCE} assigned to a change of {@link #TABLE_NAME}
+     */
+    public long querySequence() {
+        final SQLiteStatement statement = getWritableDatabase()
+                .compileStatement(QUERY_SEQUENCE_SQL);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * deletes up to {@code limit} expired items of {@link #TABLE_NAME}. Every call is a short
+     * transaction of its own, call it repeatedly until it returns less than the limit. The
+     * deleted items don't leave a row in {@link #DELETED_TABLE_NAME}
+     *
+     * @param now   the current time in ms, items with an {@link #EXPIRES} before are deleted
+     * @param limit the maximum number of deleted items
+     * @return the number of deleted items
+     */
+    public int deleteExpired(final long now, final int limit) {
+        return deleteExpired(now, limit, null);
+    }
+
+    /**
+     * same as {@link #deleteExpired(long, int)} but collects the keys of the deleted items
+     *
+     * @param deletedKeys receives the keys of the deleted items per module, may be null
+     */
+    public int deleteExpired(final long now, final int limit,
+            @Nullable final Map<String, Set<String>> deletedKeys) {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (deletedKeys != null) {
+                final Cursor cursor = db.rawQuery(QUERY_EXPIRED_SQL,
+                        new String[]{String.valueOf(now), String.valueOf(limit)});
+                try {
+                    while (cursor.moveToNext()) {
+                        Set<String> keys = deletedKeys.get(cursor.getString(0));
+                        if (keys == null) {
+                            keys = new HashSet<>();
+                            deletedKeys.put(cursor.getString(0), keys);
+                        }
+                        keys.add(cursor.getString(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            // marked items are deleted without a tombstone, the update of EXPIRES doesn't
+            // assign a new sequence
+            final SQLiteStatement mark = db.compileStatement(MARK_EXPIRED_SQL);
+            try {
+                mark.bindLong(1, now);
+                mark.bindLong(2, limit);
+                mark.executeUpdateDelete();
+            } finally {
+                mark.close();
+            }
+            final int rows;
+            final SQLiteStatement statement = db.compileStatement(DELETE_EXPIRED_SQL);
+            try {
+                rows = statement.executeUpdateDelete();
+            } finally {
+                statement.close();
+            }
+            db.setTransactionSuccessful();
+            return rows;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the earliest {@link #EXPIRES} of all items of {@link #TABLE_NAME}, 0 when no item
+     * has a ttl
+     */
+    public long queryNextExpiry() {
+        final SQLiteStatement statement = getWritableDatabase()
+                .compileStatement(QUERY_NEXT_EXPIRY_SQL);
+        try {
+            // MIN() of no rows is null which is read as 0
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
         }
     }
 
@@ -154,11 +653,86 @@ public class TrayDBHelper extends SQLiteOpenHelper {
 
     @NonNull
     private String logTag() {
-        return "tray internal db (" + (mWithBackup ? "backup" : "no backup") + "): ";
+        return mWithBackup ? LOG_TAG_BACKUP : LOG_TAG_NO_BACKUP;
     }
 
     private void upgradeToV2(final SQLiteDatabase db) {
         db.execSQL(V2_ALTER_PREFERENCES_TABLE);
         db.execSQL(V2_CREATE_INTERNAL_TRAY_TABLE);
     }
+
+    /**
+     * Converts the existing string values of a table to native values. Only values which survive
+     * the round trip unchanged are converted, {@code "007"} or {@code "1.0E10"} stay strings and
+     * the getters parse them as before. Reals are converted to floats after the integers, reading
+     * them as float gives the same result as parsing the string.
+     * <p>
+     * Runs within the transaction of {@link #onUpgrade(SQLiteDatabase, int, int)}, a statement
+     * per kind of value converts the whole table.
+     */
+    private void backfillV3(final SQLiteDatabase db, final String table) {
+        db.execSQL("UPDATE " + table + " SET "
+                + TYPE + " = " + TrayItem.TYPE_BOOLEAN + ", "
+                + INT_VALUE + " = (" + VALUE + " = 'true')"
+                + " WHERE " + VALUE + " IN ('true', 'false')");
+        db.execSQL("UPDATE " + table + " SET "
+                + TYPE + " = CASE WHEN CAST(" + VALUE + " AS INTEGER)"
+                + " BETWEEN " + Integer.MIN_VALUE + " AND " + Integer.MAX_VALUE
+                + " THEN " + TrayItem.TYPE_INT + " ELSE " + TrayItem.TYPE_LONG + " END, "
+                + INT_VALUE + " = CAST(" + VALUE + " AS INTEGER)"
+                + " WHERE CAST(CAST(" + VALUE + " AS INTEGER) AS TEXT) = " + VALUE);
+        db.execSQL("UPDATE " + table + " SET "
+                + TYPE + " = " + TrayItem.TYPE_FLOAT + ", "
+                + REAL_VALUE + " = CAST(" + VALUE + " AS REAL)"
+                + " WHERE " + TYPE + " = " + TrayItem.TYPE_STRING
+                + " AND CAST(CAST(" + VALUE + " AS REAL) AS TEXT) = " + VALUE);
+    }
+
+    private void upgradeToV3(final SQLiteDatabase db) {
+        for (final String sql : V3_ALTER_TABLES) {
+            db.execSQL(sql);
+        }
+        backfillV3(db, TABLE_NAME);
+        backfillV3(db, INTERNAL_TABLE_NAME);
+    }
+
+    private void upgradeToV4(final SQLiteDatabase db) {
+        for (final String sql : V4_CREATE_SEQUENCE) {
+            db.execSQL(sql);
+        }
+    }
+
+    private void upgradeToV5(final SQLiteDatabase db) {
+        for (final String sql : V5_ADD_EXPIRES) {
+            db.execSQL(sql);
+        }
+    }
+
+    private static void bindTypedValues(@NonNull final SQLiteStatement statement,
+            final int type, final long longValue, final double doubleValue) {
+        switch (type) {
+            case TrayItem.TYPE_INT:
+            case TrayItem.TYPE_LONG:
+            case TrayItem.TYPE_BOOLEAN:
+                statement.bindLong(7, longValue);
+                statement.bindNull(8);
+                break;
+            case TrayItem.TYPE_FLOAT:
+                statement.bindNull(7);
+                statement.bindDouble(8, doubleValue);
+                break;
+            default:
+                statement.bindNull(7);
+                statement.bindNull(8);
+        }
+    }
+
+    private static void bindStringOrNull(@NonNull final SQLiteStatement statement,
+            final int index, @Nullable final String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Describes the changes of a module which get published with the uri of a {@link
+ * android.database.ContentObserver} notification. Only the keys and types of the changed items
+ * are published, the uri is visible to all observers and gets logged. Observers read the values
+ * from the {@link TrayContentProvider}.
+ * <p>
+ * The changes are applied in this order: {@link #isCleared()}, {@link #getRemovedKeys()}, {@link
+ * #getChangedKeys()}.
+ */
+/*package*/ final class TrayNotification {
+
+    /**
+     * JSON array of the keys and types of the saved items
+     */
+    /*package*/ static final String PARAM_CHANGED = "changed";
+
+    /**
+     * JSON array of the removed keys
+     */
+    /*package*/ static final String PARAM_REMOVED = "removed";
+
+    /**
+     * true when items were deleted without knowing their keys, i.e. a module was cleared
+     */
+    /*package*/ static final String PARAM_CLEARED = "cleared";
+
+    /**
+     * the {@link TrayDBHelper#SEQUENCE} of the database after the changes
+     */
+    /*package*/ static final String PARAM_SEQUENCE = "sequence";
+
+    /**
+     * notifications are delivered with binder transactions, bigger changes are published
+     * without details and have to be queried by the observers
+     */
+    /*package*/ static final int MAX_PAYLOAD_LENGTH = 16 * 1024;
+
+    /**
+     * the types of the saved items mapped by key
+     */
+    private final LinkedHashMap<String, Integer> mChanged = new LinkedHashMap<>();
+
+    private boolean mCleared;
+
+    private final LinkedHashSet<String> mRemoved = new LinkedHashSet<>();
+
+    private long mSequence = -1;
+
+    /**
+     * true when the changes are not known, observers have to query the data
+     */
+    private boolean mUnknown;
+
+    /**
+     * @param uri the uri of an observer notification
+     * @return the published changes, {@code null} if the uri contains no details
+     */
+    @Nullable
+    public static TrayNotification parse(@NonNull final Uri uri) {
+        final String changed = uri.getQueryParameter(PARAM_CHANGED);
+        final String removed = uri.getQueryParameter(PARAM_REMOVED);
+        final boolean cleared = "true".equals(uri.getQueryParameter(PARAM_CLEARED));
+        if (changed == null && removed == null && !cleared) {
+            return null;
+        }
+        final TrayNotification notification = new TrayNotification();
+        notification.mCleared = cleared;
+        try {
+            final String sequence = uri.getQueryParameter(PARAM_SEQUENCE);
+            if (sequence != null) {
+                notification.mSequence = Long.parseLong(sequence);
+            }
+            if (removed != null) {
+                final JSONArray keys = new JSONArray(removed);
+                for (int i = 0; i < keys.length(); i++) {
+                    notification.mRemoved.add(keys.getString(i));
+                }
+            }
+            if (changed != null) {
+                final JSONArray array = new JSONArray(changed);
+                for (int i = 0; i < array.length(); i++) {
+                    final JSONObject item = array.getJSONObject(i);
+                    notification.mChanged.put(
+                            item.getString(TrayContract.Preferences.Columns.KEY),
+                            item.optInt(TrayContract.Preferences.Columns.TYPE,
+                                    TrayItem.TYPE_STRING));
+                }
+            }
+        } catch (JSONException | NumberFormatException e) {
+            TrayLog.w("could not read the changes of " + uri + ": " + e);
+            return null;
+        }
+        return notification;
+    }
+
+    /**
+     * @param uri the uri of an observer notification
+     * @return the notified uri without the published changes, can be queried
+     */
+    @NonNull
+    public static Uri removeChanges(@NonNull final Uri uri) {
+        final String backup = uri.getQueryParameter("backup");
+        final Uri.Builder builder = uri.buildUpon().clearQuery();
+        if (backup != null) {
+            builder.appendQueryParameter("backup", backup);
+        }
+        return builder.build();
+    }
+
+    /**
+     * all items were removed, drops all earlier changes
+     */
+    public void clear() {
+        mChanged.clear();
+        mRemoved.clear();
+        mCleared = true;
+    }
+
+    /**
+     * @return the keys of the saved items in the order they were saved
+     */
+    @NonNull
+    public Set<String> getChangedKeys() {
+        return new LinkedHashSet<>(mChanged.keySet());
+    }
+
+    /**
+     * @return the removed keys
+     */
+    @NonNull
+    public Set<String> getRemovedKeys() {
+        return new LinkedHashSet<>(mRemoved);
+    }
+
+    /**
+     * @return the {@link TrayDBHelper#SEQUENCE} of the database after the changes, -1 if unknown
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return the key of the only saved or removed item, {@code null} for other changes
+     */
+    @Nullable
+    public String getSingleKey() {
+        if (mCleared || mUnknown || mChanged.size() + mRemoved.size() != 1) {
+            return null;
+        }
+        return mChanged.isEmpty() ? mRemoved.iterator().next()
+                : mChanged.keySet().iterator().next();
+    }
+
+    /**
+     * @param key a key of {@link #getChangedKeys()}
+     * @return the type of the saved item, i.e. {@link TrayItem#TYPE_STRING}
+     */
+    public int getType(@NonNull final String key) {
+        final Integer type = mChanged.get(key);
+        return type != null ? type : TrayItem.TYPE_STRING;
+    }
+
+    /**
+     * @return true when all items got removed before the other changes
+     */
+    public boolean isCleared() {
+        return mCleared;
+    }
+
+    /**
+     * adds changes which happened after the changes of this notification
+     */
+    public void merge(@NonNull final TrayNotification changes) {
+        if (changes.mUnknown) {
+            mUnknown = true;
+        }
+        if (changes.mCleared) {
+            clear();
+        }
+        for (final String key : changes.mRemoved) {
+            remove(key);
+        }
+        for (final String key : changes.mChanged.keySet()) {
+            put(key, changes.mChanged.get(key));
+        }
+        setSequence(changes.mSequence);
+    }
+
+    /**
+     * something changed but it's unknown what. The changes can't be published
+     */
+    public void markUnknown() {
+        mUnknown = true;
+    }
+
+    /**
+     * @param type the type of the saved item, i.e. {@link TrayItem#TYPE_STRING}
+     */
+    public void put(@NonNull final String key, final int type) {
+        mRemoved.remove(key);
+        mChanged.put(key, type);
+    }
+
+    public void remove(@NonNull final String key) {
+        mChanged.remove(key);
+        mRemoved.add(key);
+    }
+
+    /**
+     * @param sequence the {@link TrayDBHelper#SEQUENCE} after the changes, only increases
+     */
+    public void setSequence(final long sequence) {
+        if (sequence > mSequence) {
+            mSequence = sequence;
+        }
+    }
+
+    /**
+     * appends the changes to the uri
+     *
+     * @param uri the notified uri
+     * @return the uri with the changes or the uri itself if the changes are too big
+     */
+    @NonNull
+    public Uri toUri(@NonNull final Uri uri) {
+        if (mUnknown) {
+            return uri;
+        }
+        final Uri.Builder builder = uri.buildUpon();
+        int length = 0;
+        try {
+            if (mCleared) {
+                builder.appendQueryParameter(PARAM_CLEARED, "true");
+            }
+            if (!mRemoved.isEmpty()) {
+                final String removed = new JSONArray(mRemoved).toString();
+                length += removed.length();
+                builder.appendQueryParameter(PARAM_REMOVED, removed);
+            }
+            if (!mChanged.isEmpty()) {
+                final JSONArray items = new JSONArray();
+                for (final String key : mChanged.keySet()) {
+                    final JSONObject json = new JSONObject()
+                            .put(TrayContract.Preferences.Columns.KEY, key);
+                    // strings are the default
+                    final int type = mChanged.get(key);
+                    if (type != TrayItem.TYPE_STRING) {
+                        json.put(TrayContract.Preferences.Columns.TYPE, type);
+                    }
+                    items.put(json);
+                }
+                final String changed = items.toString();
+                length += changed.length();
+                builder.appendQueryParameter(PARAM_CHANGED, changed);
+            }
+            if (mSequence >= 0) {
+                builder.appendQueryParameter(PARAM_SEQUENCE, String.valueOf(mSequence));
+            }
+        } catch (JSONException e) {
+            TrayLog.w("could not write the changes of " + uri + ": " + e);
+            return uri;
+        }
+        if (length > MAX_PAYLOAD_LENGTH) {
+            return uri;
+        }
+        return builder.build();
+    }
+}
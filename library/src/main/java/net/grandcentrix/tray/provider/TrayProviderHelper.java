@@ -18,19 +18,27 @@ package net.grandcentrix.tray.provider;
 
 import net.grandcentrix.tray.TrayPreferences;
 import net.grandcentrix.tray.core.AbstractTrayPreference;
+import net.grandcentrix.tray.core.TrayChanges;
 import net.grandcentrix.tray.core.TrayException;
 import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayStorage;
+import net.grandcentrix.tray.core.VersionCheckRegistry;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Helper for accessing the {@link TrayContentProvider}
@@ -39,6 +47,12 @@ import java.util.List;
  */
 public class TrayProviderHelper {
 
+    /**
+     * the keys of a single query in {@link #queryKeys(Uri, Collection)}. Stays below the limit of
+     * sqlite arguments (999) including the arguments added by the provider
+     */
+    private static final int MAX_KEYS_PER_QUERY = 500;
+
     private final Context mContext;
 
     private final TrayUri mTrayUri;
@@ -48,6 +62,253 @@ public class TrayProviderHelper {
         mTrayUri = new TrayUri(context);
     }
 
+    /**
+     * applies all operations in a single transaction of the {@link TrayContentProvider}. Listeners
+     * get notified once per changed module after all operations were applied.
+     * <p>
+     * Create the operations with {@link #newPersistOperation(Uri, String, String)} and {@link
+     * #newRemoveOperation(Uri)}
+     *
+     * @param operations the operations to apply
+     * @return true when all operations were applied, false if nothing was changed
+     */
+    public boolean applyBatch(@NonNull final ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return true;
+        }
+        try {
+            mContext.getContentResolver().applyBatch(mTrayUri.get().getAuthority(), operations);
+            return true;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * saves multiple values into a module in a single transaction
+     *
+     * @param moduleUri uri of the module, use {@link TrayUri#builder()} without a key
+     * @param values    values mapped by key
+     * @return true when all values were saved, false if nothing was saved
+     */
+    public boolean bulkPersist(@NonNull final Uri moduleUri,
+            @NonNull final Map<String, String> values) {
+        if (values.isEmpty()) {
+            return true;
+        }
+        final ContentValues[] contentValues = new ContentValues[values.size()];
+        int i = 0;
+        for (final Map.Entry<String, String> entry : values.entrySet()) {
+            final ContentValues value = new ContentValues();
+            value.put(TrayContract.Preferences.Columns.KEY, entry.getKey());
+            value.put(TrayContract.Preferences.Columns.VALUE, entry.getValue());
+            contentValues[i++] = value;
+        }
+        try {
+            return mContext.getContentResolver().bulkInsert(moduleUri, contentValues)
+                    == contentValues.length;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * checks if an item exists using the {@link TrayContentProvider#call(String, String, Bundle)}
+     * fast path
+     *
+     * @param uri uri of a single item
+     * @return true when the item exists
+     * @throws TrayException when something is wrong with the provider/database
+     */
+    public boolean callContains(@NonNull final Uri uri) throws TrayException {
+        return call(uri, TrayContract.Call.METHOD_CONTAINS, null)
+                .getBoolean(TrayContract.Call.RESULT);
+    }
+
+    /**
+     * reads a single item using the {@link TrayContentProvider#call(String, String, Bundle)} fast
+     * path which doesn't require a {@link Cursor}
+     *
+     * @param uri uri of a single item with a type, use {@link #queryProvider(Uri)} to read items
+     *            of both databases
+     * @return the item or null when not found
+     * @throws TrayException when something is wrong with the provider/database
+     */
+    @Nullable
+    public TrayItem callGet(@NonNull final Uri uri) throws TrayException {
+        final Bundle result = call(uri, TrayContract.Call.METHOD_GET, null);
+        if (result.getInt(TrayContract.Call.RESULT) == 0) {
+            return null;
+        }
+        return new TrayItem(
+                result.getString(TrayContract.Preferences.Columns.MODULE),
+                result.getString(TrayContract.Preferences.Columns.KEY),
+                result.getString(TrayContract.Preferences.Columns.MIGRATED_KEY),
+                result.getString(TrayContract.Preferences.Columns.VALUE),
+                new Date(result.getLong(TrayContract.Preferences.Columns.CREATED)),
+                new Date(result.getLong(TrayContract.Preferences.Columns.UPDATED)),
+                result.getInt(TrayContract.Preferences.Columns.TYPE),
+                result.getLong(TrayContract.Preferences.Columns.INT_VALUE),
+                result.getDouble(TrayContract.Preferences.Columns.REAL_VALUE),
+                result.containsKey(TrayContract.Preferences.Columns.EXPIRES)
+                        ? new Date(result.getLong(TrayContract.Preferences.Columns.EXPIRES))
+                        : null);
+    }
+
+    /**
+     * same as {@link #persist(Uri, String, String)} but uses the {@link
+     * TrayContentProvider#call(String, String, Bundle)} fast path
+     *
+     * @param uri         uri of a single item
+     * @param value       data to save
+     * @param previousKey key used before migration
+     * @return true when successfully written
+     */
+    public boolean callPersist(@NonNull final Uri uri, @Nullable final String value,
+            @Nullable final String previousKey) {
+        return callPersist(uri, (Object) value, previousKey);
+    }
+
+    /**
+     * same as {@link #callPersist(Uri, String, String)} but saves int, long, float and boolean
+     * data in the typed columns which don't require parsing when read
+     *
+     * @param data        data to save, the string representation is saved for all types
+     * @param previousKey key used before migration
+     * @return true when successfully written
+     */
+    public boolean callPersist(@NonNull final Uri uri, @Nullable final Object data,
+            @Nullable final String previousKey) {
+        return callPersist(uri, data, previousKey, 0);
+    }
+
+    /**
+     * same as {@link #callPersist(Uri, Object, String)} for items with a ttl
+     *
+     * @param expires the time in ms when the item gets removed, 0 for items without a ttl
+     * @return true when successfully written
+     */
+    public boolean callPersist(@NonNull final Uri uri, @Nullable final Object data,
+            @Nullable final String previousKey, final long expires) {
+        final int type = TrayItem.typeOf(data);
+        final Bundle extras = new Bundle();
+        extras.putString(TrayContract.Preferences.Columns.VALUE,
+                data == null ? null : String.valueOf(data));
+        extras.putString(TrayContract.Preferences.Columns.MIGRATED_KEY, previousKey);
+        extras.putInt(TrayContract.Preferences.Columns.TYPE, type);
+        extras.putLong(TrayContract.Preferences.Columns.INT_VALUE,
+                TrayItem.longValueOf(type, data));
+        extras.putDouble(TrayContract.Preferences.Columns.REAL_VALUE,
+                TrayItem.doubleValueOf(type, data));
+        if (expires > 0) {
+            extras.putLong(TrayContract.Preferences.Columns.EXPIRES, expires);
+        }
+        try {
+            return call(uri, TrayContract.Call.METHOD_PUT, extras)
+                    .getBoolean(TrayContract.Call.RESULT);
+        } catch (TrayException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * same as {@link #removeAndCount(Uri)} but uses the {@link TrayContentProvider#call(String,
+     * String, Bundle)} fast path
+     *
+     * @param uri uri of a single item
+     * @return number of deleted rows
+     */
+    public int callRemove(@NonNull final Uri uri) {
+        try {
+            return call(uri, TrayContract.Call.METHOD_REMOVE, null)
+                    .getInt(TrayContract.Call.RESULT);
+        } catch (TrayException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * moves all items of a module into another module inside the {@link TrayContentProvider}
+     * and deletes the old module including its version. The items are not transferred through
+     * the {@link android.content.ContentResolver} and the observers get notified once per
+     * module.
+     *
+     * @param targetUri uri of the module receiving the items, requires a type
+     * @param sourceUri uri of the module which gets deleted
+     * @return the number of moved items, -1 when nothing was changed because of an error
+     */
+    public int annex(@NonNull final Uri targetUri, @NonNull final Uri sourceUri) {
+        final Bundle extras = new Bundle();
+        extras.putString(TrayContract.Call.EXTRA_SOURCE, sourceUri.toString());
+        try {
+            return call(targetUri, TrayContract.Call.METHOD_ANNEX, extras)
+                    .getInt(TrayContract.Call.RESULT);
+        } catch (TrayException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * runs a checkpoint of the write-ahead log of both databases. Does nothing when the
+     * write-ahead log isn't enabled.
+     *
+     * @param mode one of {@link TrayDBHelper#CHECKPOINT_PASSIVE}, {@link
+     *             TrayDBHelper#CHECKPOINT_FULL}, {@link TrayDBHelper#CHECKPOINT_RESTART} or
+     *             {@link TrayDBHelper#CHECKPOINT_TRUNCATE}
+     * @return true when the checkpoint completed for both databases
+     * @see TrayContentProvider#META_DATA_WRITE_AHEAD_LOGGING
+     */
+    public boolean checkpoint(@NonNull final String mode) {
+        final Bundle extras = new Bundle();
+        extras.putString(TrayContract.Call.EXTRA_CHECKPOINT_MODE, mode);
+        try {
+            return call(mTrayUri.get(), TrayContract.Call.METHOD_CHECKPOINT, extras)
+                    .getBoolean(TrayContract.Call.RESULT);
+        } catch (TrayException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * counts <b>all</b> saved items without reading them. Module independent.
+     *
+     * @return the number of items, 0 when the provider couldn't be accessed
+     */
+    public int count() {
+        try {
+            return count(mTrayUri.get());
+        } catch (TrayException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * counts the items without reading them
+     *
+     * @param uri path to data
+     * @return the number of items, items of both databases are summed up
+     * @throws TrayException when something is wrong with the provider/database
+     */
+    public int count(@NonNull final Uri uri) throws TrayException {
+        final Cursor cursor = query(uri, TrayContract.Preferences.PROJECTION_COUNT);
+        try {
+            int count = 0;
+            for (boolean hasRow = cursor.moveToFirst(); hasRow; hasRow = cursor.moveToNext()) {
+                count += cursor.getInt(0);
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * clears <b>all</b> Preferences saved. Module independent. Erases all preference data
      *
@@ -144,9 +405,7 @@ public class TrayProviderHelper {
 
     public boolean persist(@NonNull final Uri uri, @Nullable String value,
             @Nullable final String previousKey) {
-        ContentValues values = new ContentValues();
-        values.put(TrayContract.Preferences.Columns.VALUE, value);
-        values.put(TrayContract.Preferences.Columns.MIGRATED_KEY, previousKey);
+        final ContentValues values = toContentValues(value, previousKey);
         try {
             return mContext.getContentResolver().insert(uri, values) != null;
         } catch (Throwable e) {
@@ -164,28 +423,177 @@ public class TrayProviderHelper {
      */
     @NonNull
     public List<TrayItem> queryProvider(@NonNull final Uri uri) throws TrayException {
-        final Cursor cursor;
-        try {
-            cursor = mContext.getContentResolver().query(uri, null, null, null, null);
-        } catch (Throwable e) {
-            throw new TrayException("Hard error accessing the ContentProvider", e);
+        return queryProvider(uri, null, null);
+    }
+
+    /**
+     * reads the changes of the items of one database since the given sequence number with a
+     * single query
+     *
+     * @param uri      uri of a module or all items with the backup param, use {@link
+     *                 TrayUri#builder()} without a key
+     * @param sequence the {@link TrayChanges#getSequence()} of the last call, 0 for all items
+     * @return saved and removed items with a higher sequence number
+     * @throws TrayException when something is wrong with the provider/database
+     */
+    @NonNull
+    public TrayChanges queryChanges(@NonNull final Uri uri, final long sequence)
+            throws TrayException {
+        final String backup = uri.getQueryParameter("backup");
+        if (backup == null) {
+            throw new IllegalArgumentException("sequence numbers are per database, "
+                    + "the backup param is required: " + uri);
+        }
+        final Uri.Builder builder = mTrayUri.getChanges().buildUpon();
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() > 1) {
+            builder.appendPath(segments.get(1));
         }
+        final Uri changesUri = builder.appendQueryParameter("backup", backup).build();
 
-        // Return Preference if found
-        if (cursor == null) {
-            // When running in here, please check if your ContentProvider has the correct authority
-            throw new TrayException("could not access stored data with uri " + uri);
+        // the columns of a compound view may have no affinity, the bound string would not be
+        // converted to a number
+        final Cursor cursor = query(changesUri, TrayContract.Changes.PROJECTION,
+                TrayContract.Changes.Columns.SEQUENCE + " > CAST(? AS INTEGER)",
+                new String[]{String.valueOf(sequence)},
+                TrayContract.Changes.Columns.SEQUENCE);
+        try {
+            final List<TrayItem> changed = new ArrayList<>();
+            final List<TrayItem> removed = new ArrayList<>();
+            final ItemMapper mapper = new ItemMapper(cursor);
+            final int sequenceIndex = cursor.getColumnIndexOrThrow(
+                    TrayContract.Changes.Columns.SEQUENCE);
+            final int deletedIndex = cursor.getColumnIndexOrThrow(
+                    TrayContract.Changes.Columns.DELETED);
+            final int moduleIndex = cursor.getColumnIndexOrThrow(
+                    TrayContract.Changes.Columns.MODULE);
+            final int keyIndex = cursor.getColumnIndexOrThrow(TrayContract.Changes.Columns.KEY);
+            long last = sequence;
+            for (boolean hasRow = cursor.moveToFirst(); hasRow; hasRow = cursor.moveToNext()) {
+                if (cursor.getInt(deletedIndex) != 0) {
+                    removed.add(new TrayItem(cursor.getString(moduleIndex),
+                            cursor.getString(keyIndex), null, null, null, null));
+                } else {
+                    changed.add(mapper.map(cursor));
+                }
+                last = Math.max(last, cursor.getLong(sequenceIndex));
+            }
+            return new TrayChanges(last, changed, removed);
+        } finally {
+            cursor.close();
         }
+    }
 
+    /**
+     * reads the items with the given keys of a module with as few queries as possible
+     *
+     * @param moduleUri uri of a module, use {@link TrayUri#builder()} without a key
+     * @param keys      the keys to read
+     * @return the found items, keys without an item are ignored
+     * @throws TrayException when something is wrong with the provider/database
+     */
+    @NonNull
+    public List<TrayItem> queryKeys(@NonNull final Uri moduleUri,
+            @NonNull final Collection<String> keys) throws TrayException {
         final ArrayList<TrayItem> list = new ArrayList<>();
-        for (boolean hasItem = cursor.moveToFirst(); hasItem; hasItem = cursor.moveToNext()) {
-            final TrayItem trayItem = cursorToTrayItem(cursor);
-            list.add(trayItem);
+        final List<String> chunk = new ArrayList<>();
+        final Iterator<String> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            chunk.add(iterator.next());
+            if (chunk.size() == MAX_KEYS_PER_QUERY || !iterator.hasNext()) {
+                final StringBuilder selection = new StringBuilder()
+                        .append(TrayContract.Preferences.Columns.KEY)
+                        .append(" IN (");
+                for (int i = 0; i < chunk.size(); i++) {
+                    selection.append(i == 0 ? "?" : ",?");
+                }
+                selection.append(")");
+                list.addAll(queryProvider(moduleUri, selection.toString(),
+                        chunk.toArray(new String[chunk.size()])));
+                chunk.clear();
+            }
         }
-        cursor.close();
         return list;
     }
 
+    /**
+     * sends a query for TrayItems to the provider
+     *
+     * @param uri           path to data
+     * @param selection     additional selection, may be {@code null}
+     * @param selectionArgs arguments for the selection
+     * @return list of items
+     * @throws TrayException when something is wrong with the provider/database
+     */
+    @NonNull
+    public List<TrayItem> queryProvider(@NonNull final Uri uri, @Nullable final String selection,
+            @Nullable final String[] selectionArgs) throws TrayException {
+        return queryProvider(uri, TrayContract.Preferences.PROJECTION_ITEM, selection,
+                selectionArgs);
+    }
+
+    /**
+     * sends a query for TrayItems to the provider which only reads the given columns
+     *
+     * @param uri           path to data
+     * @param projection    one of the {@code PROJECTION} constants of {@link
+     *                      TrayContract.Preferences}. Columns which aren't part of the projection
+     *                      are {@code null} in the items
+     * @param selection     additional selection, may be {@code null}
+     * @param selectionArgs arguments for the selection
+     * @return list of items
+     * @throws TrayException when something is wrong with the provider/database
+     */
+    @NonNull
+    public List<TrayItem> queryProvider(@NonNull final Uri uri, @NonNull final String[] projection,
+            @Nullable final String selection, @Nullable final String[] selectionArgs)
+            throws TrayException {
+        final Cursor cursor = query(uri, projection, selection, selectionArgs);
+        try {
+            final ArrayList<TrayItem> list = new ArrayList<>(cursor.getCount());
+            final ItemMapper mapper = new ItemMapper(cursor);
+            for (boolean hasItem = cursor.moveToFirst(); hasItem; hasItem = cursor.moveToNext()) {
+                list.add(mapper.map(cursor));
+            }
+            return list;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * reads only the keys of the items
+     *
+     * @param uri path to data
+     * @return the keys, may contain a key twice when the uri selects both databases
+     * @throws TrayException when something is wrong with the provider/database
+     */
+    @NonNull
+    public List<String> queryKeyNames(@NonNull final Uri uri) throws TrayException {
+        final Cursor cursor = query(uri, TrayContract.Preferences.PROJECTION_KEY);
+        try {
+            final List<String> keys = new ArrayList<>(cursor.getCount());
+            for (boolean hasRow = cursor.moveToFirst(); hasRow; hasRow = cursor.moveToNext()) {
+                keys.add(cursor.getString(0));
+            }
+            return keys;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * same as {@link #queryProvider(Uri)} but reads only the columns of {@link
+     * TrayContract.Preferences#PROJECTION_VALUE}
+     *
+     * @return list of items without module, migrated key and dates
+     * @throws TrayException when something is wrong with the provider/database
+     */
+    @NonNull
+    public List<TrayItem> queryValues(@NonNull final Uri uri) throws TrayException {
+        return queryProvider(uri, TrayContract.Preferences.PROJECTION_VALUE, null, null);
+    }
+
     /**
      * sends a query for TrayItems to the provider, doesn't throw when the database access couldn't
      * be established
@@ -233,6 +641,30 @@ public class TrayProviderHelper {
         }
     }
 
+    /**
+     * reads the changes of all modules of a database since the given sequence number
+     *
+     * @param type     the database, {@link TrayStorage.Type#UNDEFINED} isn't supported because
+     *                 the sequence numbers of both databases are independent
+     * @param sequence the {@link TrayChanges#getSequence()} of the last call, 0 for all items
+     * @return the changes, empty with the given sequence number when an error occured
+     */
+    @NonNull
+    public TrayChanges getChangesSince(@NonNull final TrayStorage.Type type,
+            final long sequence) {
+        if (type == TrayStorage.Type.UNDEFINED) {
+            throw new IllegalArgumentException("sequence numbers are per database, "
+                    + "the type is required");
+        }
+        try {
+            return queryChanges(mTrayUri.builder().setType(type).build(), sequence);
+        } catch (TrayException e) {
+            e.printStackTrace();
+            return new TrayChanges(sequence, new ArrayList<TrayItem>(),
+                    new ArrayList<TrayItem>());
+        }
+    }
+
     /**
      * wipes all data, including meta data for the preferences like the current version number.
      *
@@ -242,6 +674,8 @@ public class TrayProviderHelper {
         if (!clear()) {
             return false;
         }
+        // the versions get deleted
+        VersionCheckRegistry.clear();
         try {
             return mContext.getContentResolver().delete(mTrayUri.getInternal(), null, null) > 0;
         } catch (Throwable e) {
@@ -250,6 +684,95 @@ public class TrayProviderHelper {
         }
     }
 
+    @NonNull
+    private Bundle call(@NonNull final Uri uri, @NonNull final String method,
+            @Nullable final Bundle extras) throws TrayException {
+        final Bundle result;
+        try {
+            result = mContext.getContentResolver().call(uri, method, uri.toString(), extras);
+        } catch (Throwable e) {
+            throw new TrayException("Hard error accessing the ContentProvider", e);
+        }
+        if (result == null) {
+            // When running in here, please check if your ContentProvider has the correct authority
+            throw new TrayException("could not call '" + method + "' with uri " + uri);
+        }
+        return result;
+    }
+
+    @NonNull
+    private Cursor query(@NonNull final Uri uri, @NonNull final String[] projection)
+            throws TrayException {
+        return query(uri, projection, null, null);
+    }
+
+    @NonNull
+    private Cursor query(@NonNull final Uri uri, @NonNull final String[] projection,
+            @Nullable final String selection, @Nullable final String[] selectionArgs)
+            throws TrayException {
+        return query(uri, projection, selection, selectionArgs, null);
+    }
+
+    @NonNull
+    private Cursor query(@NonNull final Uri uri, @NonNull final String[] projection,
+            @Nullable final String selection, @Nullable final String[] selectionArgs,
+            @Nullable final String sortOrder) throws TrayException {
+        final Cursor cursor;
+        try {
+            cursor = mContext.getContentResolver().query(uri, projection, selection,
+                    selectionArgs, sortOrder);
+        } catch (Throwable e) {
+            throw new TrayException("Hard error accessing the ContentProvider", e);
+        }
+
+        // Return Preference if found
+        if (cursor == null) {
+            // When running in here, please check if your ContentProvider has the correct authority
+            throw new TrayException("could not access stored data with uri " + uri);
+        }
+        return cursor;
+    }
+
+    /**
+     * creates an operation for {@link #applyBatch(ArrayList)} which saves the value
+     *
+     * @param uri         uri of the item
+     * @param value       data to save
+     * @param previousKey key used before migration
+     * @return the insert operation
+     * @see #persist(Uri, String, String)
+     */
+    @NonNull
+    public static ContentProviderOperation newPersistOperation(@NonNull final Uri uri,
+            @Nullable final String value, @Nullable final String previousKey) {
+        return newPersistOperation(uri, (Object) value, previousKey);
+    }
+
+    /**
+     * same as {@link #newPersistOperation(Uri, String, String)} but saves int, long, float and
+     * boolean data in the typed columns
+     */
+    @NonNull
+    public static ContentProviderOperation newPersistOperation(@NonNull final Uri uri,
+            @Nullable final Object data, @Nullable final String previousKey) {
+        return ContentProviderOperation.newInsert(uri)
+                .withValues(toContentValues(data, previousKey))
+                .build();
+    }
+
+    /**
+     * creates an operation for {@link #applyBatch(ArrayList)} which removes the items for the
+     * given uri
+     *
+     * @param uri what to remove
+     * @return the delete operation
+     * @see #remove(Uri)
+     */
+    @NonNull
+    public static ContentProviderOperation newRemoveOperation(@NonNull final Uri uri) {
+        return ContentProviderOperation.newDelete(uri).build();
+    }
+
     /**
      * converts a {@link Cursor} to a {@link TrayItem}
      * <p>
@@ -258,21 +781,88 @@ public class TrayProviderHelper {
      *
      * @param cursor (size > 1)
      * @return a {@link TrayItem} filled with data
+     * @see ItemMapper for mapping all rows of a cursor
      */
     @NonNull
     static TrayItem cursorToTrayItem(final Cursor cursor) {
-        final String module = cursor.getString(cursor
-                .getColumnIndexOrThrow(TrayContract.Preferences.Columns.MODULE));
-        final String key = cursor.getString(cursor
-                .getColumnIndexOrThrow(TrayContract.Preferences.Columns.KEY));
-        final String migratedKey = cursor.getString(cursor
-                .getColumnIndexOrThrow(TrayContract.Preferences.Columns.MIGRATED_KEY));
-        final String value = cursor.getString(cursor
-                .getColumnIndexOrThrow(TrayContract.Preferences.Columns.VALUE));
-        final Date created = new Date(cursor.getLong(cursor
-                .getColumnIndexOrThrow(TrayContract.Preferences.Columns.CREATED)));
-        final Date updated = new Date(cursor.getLong(cursor
-                .getColumnIndexOrThrow(TrayContract.Preferences.Columns.UPDATED)));
-        return new TrayItem(module, key, migratedKey, value, created, updated);
+        return new ItemMapper(cursor).map(cursor);
+    }
+
+    /**
+     * converts the rows of a {@link Cursor} to {@link TrayItem}s. The column indexes are
+     * resolved once for all rows, columns missing in the projection are {@code null} or 0 in
+     * the items
+     */
+    /*package*/ static final class ItemMapper {
+
+        private final int mCreated;
+
+        private final int mExpires;
+
+        private final int mIntValue;
+
+        private final int mKey;
+
+        private final int mMigratedKey;
+
+        private final int mModule;
+
+        private final int mRealValue;
+
+        private final int mType;
+
+        private final int mUpdated;
+
+        private final int mValue;
+
+        /*package*/ ItemMapper(@NonNull final Cursor cursor) {
+            mModule = cursor.getColumnIndex(TrayContract.Preferences.Columns.MODULE);
+            mKey = cursor.getColumnIndexOrThrow(TrayContract.Preferences.Columns.KEY);
+            mMigratedKey = cursor.getColumnIndex(TrayContract.Preferences.Columns.MIGRATED_KEY);
+            mValue = cursor.getColumnIndex(TrayContract.Preferences.Columns.VALUE);
+            mCreated = cursor.getColumnIndex(TrayContract.Preferences.Columns.CREATED);
+            mUpdated = cursor.getColumnIndex(TrayContract.Preferences.Columns.UPDATED);
+            mType = cursor.getColumnIndex(TrayContract.Preferences.Columns.TYPE);
+            mIntValue = cursor.getColumnIndex(TrayContract.Preferences.Columns.INT_VALUE);
+            mRealValue = cursor.getColumnIndex(TrayContract.Preferences.Columns.REAL_VALUE);
+            mExpires = cursor.getColumnIndex(TrayContract.Preferences.Columns.EXPIRES);
+        }
+
+        /**
+         * @return the item of the current row
+         */
+        @NonNull
+        /*package*/ TrayItem map(@NonNull final Cursor cursor) {
+            // cursors of older databases or custom projections may not contain all columns
+            final int type = mType == -1 || mIntValue == -1 || mRealValue == -1
+                    ? TrayItem.TYPE_STRING : cursor.getInt(mType);
+            return new TrayItem(
+                    mModule == -1 ? null : cursor.getString(mModule),
+                    cursor.getString(mKey),
+                    mMigratedKey == -1 ? null : cursor.getString(mMigratedKey),
+                    mValue == -1 ? null : cursor.getString(mValue),
+                    mCreated == -1 ? null : new Date(cursor.getLong(mCreated)),
+                    mUpdated == -1 ? null : new Date(cursor.getLong(mUpdated)),
+                    type,
+                    type == TrayItem.TYPE_STRING ? 0 : cursor.getLong(mIntValue),
+                    type == TrayItem.TYPE_STRING ? 0 : cursor.getDouble(mRealValue),
+                    mExpires == -1 || cursor.isNull(mExpires)
+                            ? null : new Date(cursor.getLong(mExpires)));
+        }
+    }
+
+    @NonNull
+    private static ContentValues toContentValues(@Nullable final Object data,
+            @Nullable final String previousKey) {
+        final int type = TrayItem.typeOf(data);
+        final ContentValues values = new ContentValues();
+        values.put(TrayContract.Preferences.Columns.VALUE,
+                data == null ? null : String.valueOf(data));
+        values.put(TrayContract.Preferences.Columns.MIGRATED_KEY, previousKey);
+        values.put(TrayContract.Preferences.Columns.TYPE, type);
+        values.put(TrayContract.Preferences.Columns.INT_VALUE, TrayItem.longValueOf(type, data));
+        values.put(TrayContract.Preferences.Columns.REAL_VALUE,
+                TrayItem.doubleValueOf(type, data));
+        return values;
     }
 }
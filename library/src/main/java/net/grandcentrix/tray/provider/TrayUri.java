@@ -66,6 +66,8 @@ class TrayUri {
 
     private final Uri mContentUri;
 
+    private final Uri mContentUriChanges;
+
     private final Uri mContentUriInternal;
 
     private Context mContext;
@@ -74,6 +76,7 @@ class TrayUri {
         mContext = context;
         mContentUri = TrayContract.generateContentUri(context);
         mContentUriInternal = TrayContract.generateInternalContentUri(context);
+        mContentUriChanges = TrayContract.generateChangesContentUri(context);
     }
 
     public Builder builder() {
@@ -84,6 +87,14 @@ class TrayUri {
         return mContentUri;
     }
 
+    /**
+     * @return uri of {@link TrayContract.Changes}, append the module and the backup param like
+     * the {@link #builder()} does
+     */
+    public Uri getChanges() {
+        return mContentUriChanges;
+    }
+
     public Uri getInternal() {
         return mContentUriInternal;
     }